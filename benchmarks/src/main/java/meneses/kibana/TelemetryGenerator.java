@@ -0,0 +1,234 @@
+package meneses.kibana;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.function.Consumer;
+
+/**
+ * Generates synthetic telemetry in the CSV layout written by {@link Save}, deterministically from a seed, so that
+ * benchmarks can be reproduced without the real exports, and at any size.
+ * <p>
+ * Users install between 2017 and mid 2019, in one of a few offsets, with one product and one or two languages. Each one
+ * keeps using it for an exponentially distributed number of days (4 months on average), pinging on a fraction of those
+ * days, and most pings have analyses. About 2% of the users have no install time, and 0.5% of the pings are days
+ * before the install, so that Load has rows to skip and to reject. Rows are shuffled by blocks of users, so that users
+ * are interleaved as in an export sorted by time. Each user makes about 50 rows and 13 KB of CSV.
+ * <p>
+ * Usage: {@code TelemetryGenerator <output file> [users, default 20000] [seed, default 42]}
+ */
+public class TelemetryGenerator {
+  private static final int BLOCK_USERS = 1000;
+  private static final long DAY_MILLIS = 24L * 3600 * 1000;
+  private static final long FIRST_INSTALL = LocalDateTime.of(2017, 1, 1, 0, 0).toInstant(ZoneOffset.UTC).toEpochMilli();
+  private static final int INSTALL_DAYS = 911;
+  private static final long EXPORT_END = LocalDateTime.of(2020, 1, 1, 0, 0).toInstant(ZoneOffset.UTC).toEpochMilli();
+  private static final DateTimeFormatter FORMATTER = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss.SSSXXX");
+
+  private static final ZoneOffset[] OFFSETS = {ZoneOffset.ofHours(1), ZoneOffset.ofHours(2), ZoneOffset.UTC,
+    ZoneOffset.ofHours(-5), ZoneOffset.ofHoursMinutes(5, 30), ZoneOffset.ofHours(-8), ZoneOffset.ofHours(9)};
+  private static final int[] OFFSET_WEIGHTS = {40, 20, 15, 10, 5, 5, 5};
+  private static final String[] PRODUCTS = {"SonarLint IntelliJ", "SonarLint Eclipse", "SonarLint Visual Studio", "SonarLint VSCode"};
+  private static final int[] PRODUCT_WEIGHTS = {45, 25, 15, 15};
+  private static final String[] LANGUAGES = {"java", "js", "py", "php", "cs", "ts"};
+  private static final int[] LANGUAGE_WEIGHTS = {40, 20, 15, 10, 10, 5};
+  private static final String[] LEVELS = {"0-300", "300-500", "500-1000", "1000-2000", "2000-4000", "4000+"};
+
+  private final long seed;
+  private final StringBuilder line = new StringBuilder(512);
+
+  public TelemetryGenerator(long seed) {
+    this.seed = seed;
+  }
+
+  public static void main(String[] args) throws IOException {
+    if (args.length < 1) {
+      System.err.println("Usage: TelemetryGenerator <output file> [users] [seed]");
+      System.exit(1);
+    }
+    Path path = Paths.get(args[0]);
+    int users = args.length > 1 ? Integer.parseInt(args[1]) : 20_000;
+    long seed = args.length > 2 ? Long.parseLong(args[2]) : 42;
+
+    long start = System.currentTimeMillis();
+    long rows;
+    try (Writer out = new BufferedWriter(Files.newBufferedWriter(path, StandardCharsets.UTF_8), 1 << 16)) {
+      rows = new TelemetryGenerator(seed).write(out, users);
+    }
+    System.out.println("Generated " + rows + " rows of " + users + " users in " + path + " (" + Files.size(path) + " bytes) in "
+      + (System.currentTimeMillis() - start) + " ms");
+  }
+
+  /**
+   * Writes the header and the rows of the given number of users. Returns the number of rows.
+   */
+  public long write(Writer out, int users) throws IOException {
+    out.write(String.join(Save.SEPARATOR, Save.FIELDS));
+    out.write('\n');
+    long[] rows = {0};
+    IOException[] failure = {null};
+    generate(users, l -> {
+      if (failure[0] == null) {
+        try {
+          out.write(l);
+          out.write('\n');
+          rows[0]++;
+        } catch (IOException e) {
+          failure[0] = e;
+        }
+      }
+    });
+    if (failure[0] != null) {
+      throw failure[0];
+    }
+    return rows[0];
+  }
+
+  /**
+   * Rows of the given number of users, without header
+   */
+  public List<String> lines(int users) {
+    List<String> lines = new ArrayList<>();
+    generate(users, lines::add);
+    return lines;
+  }
+
+  private void generate(int users, Consumer<String> out) {
+    List<String> block = new ArrayList<>();
+    for (int first = 0; first < users; first += BLOCK_USERS) {
+      for (int user = first; user < Math.min(users, first + BLOCK_USERS); user++) {
+        generateUser(new Random(seed * 1_000_003 + user), block);
+      }
+      Collections.shuffle(block, new Random(seed + first));
+      block.forEach(out);
+      block.clear();
+    }
+  }
+
+  private void generateUser(Random random, List<String> out) {
+    ZoneOffset offset = OFFSETS[pick(random, OFFSET_WEIGHTS)];
+    long installMillis = FIRST_INSTALL + (long) (random.nextDouble() * INSTALL_DAYS * DAY_MILLIS);
+    OffsetDateTime installTime = toDateTime(installMillis, offset);
+    boolean hasInstallTime = random.nextInt(50) != 0;
+    String product = PRODUCTS[pick(random, PRODUCT_WEIGHTS)];
+    boolean connected = random.nextInt(5) == 0;
+    String[] languages = random.nextInt(3) == 0
+      ? new String[] {LANGUAGES[pick(random, LANGUAGE_WEIGHTS)], LANGUAGES[pick(random, LANGUAGE_WEIGHTS)]}
+      : new String[] {LANGUAGES[pick(random, LANGUAGE_WEIGHTS)]};
+    if (languages.length == 2 && languages[0].equals(languages[1])) {
+      languages = new String[] {languages[0]};
+    }
+    // how fast analyses are on the user's machine, 0 being the fastest
+    double slowness = random.nextDouble();
+    int lifetime = (int) Math.min(1000, -Math.log(1 - random.nextDouble()) * 120);
+    double activity = 0.05 + 0.75 * random.nextDouble();
+
+    int daysOfUse = 0;
+    for (int day = 0; day <= lifetime; day++) {
+      if (day > 0 && random.nextDouble() >= activity) {
+        continue;
+      }
+      long systemMillis = installMillis + day * DAY_MILLIS + (long) (random.nextDouble() * DAY_MILLIS);
+      if (random.nextInt(200) == 0) {
+        systemMillis = installMillis - (5 + random.nextInt(25)) * DAY_MILLIS;
+      }
+      if (systemMillis >= EXPORT_END) {
+        break;
+      }
+      daysOfUse++;
+      OffsetDateTime systemTime = toDateTime(systemMillis, offset);
+      OffsetDateTime timestamp = toDateTime(systemMillis + random.nextInt(2000), ZoneOffset.UTC);
+
+      line.setLength(0);
+      if (hasInstallTime) {
+        line.append(FORMATTER.format(installTime));
+      }
+      line.append(';');
+      if (random.nextInt(10) < 7) {
+        appendAnalyses(random, languages, slowness);
+      }
+      line.append(';').append(connected)
+        .append(';').append(FORMATTER.format(systemTime))
+        .append(';').append("4.").append((systemMillis - FIRST_INSTALL) / (120 * DAY_MILLIS)).append('.').append(random.nextInt(3))
+        .append(';').append(product)
+        .append(';').append(FORMATTER.format(timestamp))
+        .append(';').append(connected)
+        .append(';').append(connected && systemTime.getYear() >= 2018 ? String.valueOf(random.nextBoolean()) : "")
+        .append(';').append("ping")
+        .append(';').append(daysOfUse)
+        .append(';').append(day);
+      out.add(line.toString());
+    }
+  }
+
+  /**
+   * Analyses as written by {@link Save}: compact JSON with the percentage of analyses in each duration range
+   */
+  private void appendAnalyses(Random random, String[] languages, double slowness) {
+    line.append('[');
+    for (int l = 0; l < languages.length; l++) {
+      if (l > 0) {
+        line.append(',');
+      }
+      line.append("{\"language\":\"").append(languages[l]).append("\",\"rate_per_duration\":{");
+      double[] weights = new double[LEVELS.length];
+      double total = 0;
+      for (int i = 0; i < LEVELS.length; i++) {
+        weights[i] = Math.exp(-i * (0.5 + 4 * (1 - slowness))) * (0.5 + random.nextDouble());
+        total += weights[i];
+      }
+      for (int i = 0; i < LEVELS.length; i++) {
+        if (i > 0) {
+          line.append(',');
+        }
+        line.append('"').append(LEVELS[i]).append("\":");
+        appendPercentage(Math.round(10_000 * weights[i] / total));
+      }
+      line.append("}}");
+    }
+    line.append(']');
+  }
+
+  private void appendPercentage(long hundredths) {
+    line.append(hundredths / 100);
+    long fraction = hundredths % 100;
+    if (fraction != 0) {
+      line.append('.').append(fraction / 10);
+      if (fraction % 10 != 0) {
+        line.append(fraction % 10);
+      }
+    }
+  }
+
+  private static int pick(Random random, int[] weights) {
+    int total = 0;
+    for (int w : weights) {
+      total += w;
+    }
+    int r = random.nextInt(total);
+    for (int i = 0; i < weights.length; i++) {
+      r -= weights[i];
+      if (r < 0) {
+        return i;
+      }
+    }
+    return weights.length - 1;
+  }
+
+  private static OffsetDateTime toDateTime(long epochMillis, ZoneOffset offset) {
+    return OffsetDateTime.ofInstant(Instant.ofEpochMilli(epochMillis), offset);
+  }
+}
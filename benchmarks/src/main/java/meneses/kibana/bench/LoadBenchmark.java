@@ -0,0 +1,88 @@
+package meneses.kibana.bench;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import meneses.kibana.Load;
+import meneses.kibana.TelemetryGenerator;
+import meneses.kibana.processor.PerformanceProcessor;
+import meneses.kibana.processor.RetentionProcessor;
+import meneses.kibana.processor.UsersProcessor;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * End to end {@link Load#work}, with all processors, on a generated CSV file. Besides the time per run, it reports the
+ * rows per run, which gives the rows per second, and the allocation per row when divided into the allocation per run
+ * of {@code -prof gc}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class LoadBenchmark {
+  @Param({"20000"})
+  public int users;
+
+  private Path file;
+  private long rows;
+  private PrintStream out;
+
+  @State(Scope.Thread)
+  @AuxCounters(AuxCounters.Type.EVENTS)
+  public static class Rows {
+    public long rows;
+  }
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException {
+    file = Files.createTempFile("telemetry", ".csv");
+    try (Writer writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+      rows = new TelemetryGenerator(Telemetry.SEED).write(writer, users);
+    }
+    // the progress and the reports of Load
+    out = System.out;
+    System.setOut(new PrintStream(new OutputStream() {
+      @Override public void write(int b) {
+      }
+
+      @Override public void write(byte[] b, int off, int len) {
+      }
+    }));
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws IOException {
+    System.setOut(out);
+    Files.deleteIfExists(file);
+  }
+
+  @Benchmark
+  public void work(Rows counter) throws Exception {
+    RetentionProcessor retention = new RetentionProcessor();
+    new Load().work(Arrays.asList(retention, new UsersProcessor(retention), new PerformanceProcessor(retention)),
+      Collections.singletonList(file));
+    counter.rows += rows;
+  }
+}
@@ -0,0 +1,69 @@
+package meneses.kibana.bench;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import meneses.kibana.processor.PerformanceProcessor;
+import meneses.kibana.processor.Processor;
+import meneses.kibana.processor.RetentionProcessor;
+import meneses.kibana.processor.RowBatch;
+import meneses.kibana.processor.UsersProcessor;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Each processor on its own, processing the same batches over and over, so its state stops growing after the first
+ * pass. User ids are looked up on the first pass only, as they are cached by the batches. One operation is one batch
+ * of {@link RowBatch#CAPACITY} rows.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ProcessorBenchmark {
+  @Param({"retention", "users", "performance"})
+  public String processor;
+
+  @Param({"0", "12"})
+  public int precision;
+
+  private List<RowBatch> batches;
+  private Processor p;
+  private int next = 0;
+
+  @Setup
+  public void setUp() {
+    batches = Telemetry.batches(Telemetry.lines(2_000));
+    RetentionProcessor retention = new RetentionProcessor();
+    switch (processor) {
+      case "retention":
+        p = retention;
+        break;
+      case "users":
+        p = new UsersProcessor(retention, precision);
+        break;
+      case "performance":
+        p = new PerformanceProcessor(retention, precision);
+        break;
+      default:
+        throw new IllegalArgumentException(processor);
+    }
+    p.before();
+  }
+
+  @Benchmark
+  public void process() {
+    p.process(batches.get(next));
+    next = next + 1 == batches.size() ? 0 : next + 1;
+  }
+}
@@ -0,0 +1,77 @@
+package meneses.kibana.bench;
+
+import java.util.concurrent.TimeUnit;
+import meneses.kibana.LineSource;
+import meneses.kibana.MultiConsumerQueue;
+import meneses.kibana.Queue;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Handing off lines from a producer thread, that puts them as fast as it can, to the benchmark thread that takes them.
+ * One operation is one line.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class QueueBenchmark {
+  @Param({"spsc", "multi"})
+  public String queue;
+
+  private Thread producer;
+  private LineSource lines;
+
+  @Setup(Level.Iteration)
+  public void setUp() {
+    String line = Telemetry.lines(1).get(0);
+    Put put;
+    if ("spsc".equals(queue)) {
+      Queue q = new Queue();
+      put = q::put;
+      lines = q;
+    } else {
+      MultiConsumerQueue q = new MultiConsumerQueue();
+      put = q::put;
+      lines = q.consumer();
+    }
+    producer = new Thread(() -> {
+      try {
+        while (true) {
+          put.put(line);
+        }
+      } catch (InterruptedException e) {
+        // end of the iteration
+      }
+    }, "producer");
+    producer.start();
+  }
+
+  private interface Put {
+    void put(String line) throws InterruptedException;
+  }
+
+  @TearDown(Level.Iteration)
+  public void tearDown() throws InterruptedException {
+    producer.interrupt();
+    producer.join();
+  }
+
+  @Benchmark
+  public String take() throws InterruptedException {
+    return lines.take();
+  }
+}
@@ -0,0 +1,55 @@
+package meneses.kibana.bench;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import meneses.kibana.processor.Row;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Tokenizing rows, all fields or only up to the timestamp like Load does. One operation is one row.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class RowBenchmark {
+  static final int ROWS = 10_000;
+
+  private String[] lines;
+  private final Row row = new Row(';');
+
+  @Setup
+  public void setUp() {
+    List<String> all = Telemetry.lines(1_000);
+    lines = all.subList(0, Math.min(ROWS, all.size())).toArray(new String[0]);
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(ROWS)
+  public void tokenizeAll(Blackhole bh) {
+    for (String line : lines) {
+      bh.consume(row.reset(line).length(11));
+    }
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(ROWS)
+  public void tokenizeUntilTimestamp(Blackhole bh) {
+    for (String line : lines) {
+      bh.consume(row.reset(line, Telemetry.SYSTEM_TIME + 1).length(Telemetry.SYSTEM_TIME));
+    }
+  }
+}
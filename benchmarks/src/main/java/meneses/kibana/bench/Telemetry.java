@@ -0,0 +1,58 @@
+package meneses.kibana.bench;
+
+import java.util.ArrayList;
+import java.util.List;
+import meneses.kibana.TelemetryGenerator;
+import meneses.kibana.TimestampDecoder;
+import meneses.kibana.processor.Column;
+import meneses.kibana.processor.Row;
+import meneses.kibana.processor.RowBatch;
+
+/**
+ * Generated telemetry shared by the benchmarks, always with the same seed
+ */
+final class Telemetry {
+  static final long SEED = 42;
+  static final int INSTALL_TIME = 0;
+  static final int SYSTEM_TIME = 6;
+
+  private Telemetry() {
+  }
+
+  static List<String> lines(int users) {
+    return new TelemetryGenerator(SEED).lines(users);
+  }
+
+  /**
+   * The rows as filled by Load, with all columns, in as many batches as needed. Rows without system time are skipped,
+   * but invalid rows are kept.
+   */
+  static List<RowBatch> batches(List<String> lines) {
+    Row row = new Row(';');
+    TimestampDecoder installTimes = new TimestampDecoder();
+    TimestampDecoder systemTimes = new TimestampDecoder();
+    List<RowBatch> batches = new ArrayList<>();
+    RowBatch batch = null;
+    for (String line : lines) {
+      row.reset(line);
+      if (row.isEmpty(SYSTEM_TIME)) {
+        continue;
+      }
+      if (batch == null || batch.isFull()) {
+        batch = new RowBatch();
+        batches.add(batch);
+      }
+      systemTimes.decode(row.get(SYSTEM_TIME));
+      boolean hasInstallTime = !row.isEmpty(INSTALL_TIME);
+      if (hasInstallTime) {
+        installTimes.decode(row.get(INSTALL_TIME));
+      }
+      int r = batch.add(hasInstallTime ? installTimes.epochMillis() : RowBatch.NO_TIME, hasInstallTime ? installTimes.offsetSeconds() : 0,
+        systemTimes.epochMillis(), systemTimes.offsetSeconds());
+      batch.setAnalyses(r, row, Column.ANALYSES.field);
+      batch.setProduct(r, row.get(Column.PRODUCT.field));
+      batch.setVersion(r, row.get(Column.VERSION.field));
+    }
+    return batches;
+  }
+}
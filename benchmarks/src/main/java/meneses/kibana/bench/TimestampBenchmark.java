@@ -0,0 +1,80 @@
+package meneses.kibana.bench;
+
+import java.time.OffsetDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import meneses.kibana.TimestampDecoder;
+import meneses.kibana.processor.Row;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Decoding timestamps: the system times, which are all different, and the install times, which repeat for the pings
+ * of a user and hit the cache. Parsing with DateTimeFormatter is the reference. One operation is one timestamp.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class TimestampBenchmark {
+  static final int ROWS = 10_000;
+
+  private String[] systemTimes;
+  private String[] installTimes;
+  private final TimestampDecoder decoder = new TimestampDecoder();
+  private final TimestampDecoder cachedDecoder = new TimestampDecoder(64 * 1024);
+
+  @Setup
+  public void setUp() {
+    List<String> lines = Telemetry.lines(1_000);
+    int rows = Math.min(ROWS, lines.size());
+    systemTimes = new String[rows];
+    installTimes = new String[rows];
+    Row row = new Row(';');
+    for (int i = 0; i < rows; i++) {
+      row.reset(lines.get(i));
+      systemTimes[i] = row.getString(Telemetry.SYSTEM_TIME);
+      // rows without install time use their system time instead
+      installTimes[i] = row.isEmpty(Telemetry.INSTALL_TIME) ? systemTimes[i] : row.getString(Telemetry.INSTALL_TIME);
+    }
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(ROWS)
+  public void decodeSystemTimes(Blackhole bh) {
+    for (String s : systemTimes) {
+      decoder.decode(s);
+      bh.consume(decoder.epochMillis());
+    }
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(ROWS)
+  public void decodeCachedInstallTimes(Blackhole bh) {
+    for (String s : installTimes) {
+      cachedDecoder.decode(s);
+      bh.consume(cachedDecoder.epochMillis());
+    }
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(ROWS)
+  public void parseWithFormatter(Blackhole bh) {
+    for (String s : systemTimes) {
+      bh.consume(OffsetDateTime.parse(s, DateTimeFormatter.ISO_DATE_TIME));
+    }
+  }
+}
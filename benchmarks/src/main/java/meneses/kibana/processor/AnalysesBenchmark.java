@@ -0,0 +1,54 @@
+package meneses.kibana.processor;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import meneses.kibana.TelemetryGenerator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Decoding the analyses field of the rows that have one. It's in the processor package, where the decoder is.
+ * One operation is one field.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class AnalysesBenchmark {
+  private static final String[] LABELS = {"0-300", "300-500", "500-1000", "1000-2000", "2000-4000", "4000+"};
+
+  private String[] fields;
+  private int next = 0;
+  private final AnalysesDecoder decoder = new AnalysesDecoder(LABELS);
+
+  @Setup
+  public void setUp() {
+    List<String> analyses = new ArrayList<>();
+    Row row = new Row(';');
+    for (String line : new TelemetryGenerator(42).lines(500)) {
+      row.reset(line);
+      if (!row.isEmpty(Column.ANALYSES.field)) {
+        analyses.add(row.getString(Column.ANALYSES.field));
+      }
+    }
+    fields = analyses.toArray(new String[0]);
+  }
+
+  @Benchmark
+  public void decode(Blackhole bh) {
+    decoder.decode(fields[next], (language, levels) -> bh.consume(levels[0]));
+    next = next + 1 == fields.length ? 0 : next + 1;
+  }
+}
@@ -0,0 +1,159 @@
+package meneses.kibana;
+
+import java.util.concurrent.locks.LockSupport;
+import meneses.kibana.metrics.Counter;
+import meneses.kibana.metrics.FlightEvents;
+import meneses.kibana.metrics.Metrics;
+
+/**
+ * Producer side of a ring of pre-allocated batches of lines, which are filled in place and recycled once consumed, so
+ * that handing off lines allocates nothing and takes no lock.
+ * <p>
+ * The number of lines per batch adapts to the consumers: batches are halved (down to {@link #MIN_SIZE}) when they are
+ * published while the consumers have nothing left, so that they wait less, and doubled (up to {@link #SIZE}) when
+ * there is a backlog, so that the hand-off costs less per line.
+ * <p>
+ * {@link #put(String)} must always be called by the same thread. {@link #putBatch(String[], int)} can instead be called
+ * by several threads, which take turns, but not together with {@link #put(String)}.
+ * <p>
+ * The time the producer waits for a free batch and the time consumers wait for a published one are added to the
+ * {@code queue.producer.waitNanos} and {@code queue.consumer.waitNanos} {@link Metrics}, and each published batch is
+ * recorded as a {@link FlightEvents} batch hand-off.
+ */
+abstract class BatchRing {
+  static final int SIZE = 1_000;
+  static final int MIN_SIZE = 32;
+  static final int CAPACITY = 64;
+  static final Counter PRODUCER_WAIT = Metrics.counter("queue.producer.waitNanos");
+  static final Counter CONSUMER_WAIT = Metrics.counter("queue.consumer.waitNanos");
+  private static final Counter BATCHES = Metrics.counter("queue.batches");
+  private static final Counter LINES = Metrics.counter("queue.lines");
+
+  final Batch[] ring = new Batch[CAPACITY];
+  // set by close(): the number of batches ever published, then closed
+  volatile long end;
+  volatile boolean closed = false;
+  // number of batches published, for depth()
+  private volatile long published = 0;
+
+  private long writePos = 0;
+  private Batch writeBatch;
+  private int limit = SIZE;
+  private long claimNanos;
+
+  BatchRing() {
+    for (int i = 0; i < CAPACITY; i++) {
+      ring[i] = new Batch(i);
+    }
+  }
+
+  public void put(String line) throws InterruptedException {
+    if (writeBatch == null) {
+      long start = System.nanoTime();
+      writeBatch = claim(writePos);
+      claimNanos = System.nanoTime() - start;
+      PRODUCER_WAIT.add(claimNanos);
+      writeBatch.size = 0;
+    }
+    writeBatch.lines[writeBatch.size++] = line;
+    if (writeBatch.size >= limit) {
+      publish();
+    }
+  }
+
+  /**
+   * Puts the first lines of the array, which can be reused once the call returns. Can be called by several threads.
+   * The lines must not be null.
+   */
+  public synchronized void putBatch(String[] lines, int length) throws InterruptedException {
+    for (int i = 0; i < length; i++) {
+      put(lines[i]);
+    }
+  }
+
+  /**
+   * Publishes the lines put so far and marks the end of the lines. Must be called once, after the last put.
+   */
+  public synchronized void close() {
+    if (writeBatch != null && writeBatch.size > 0) {
+      publish();
+    }
+    end = writePos;
+    closed = true;
+  }
+
+  private void publish() {
+    int lines = writeBatch.size;
+    publish(writeBatch, writePos);
+    writePos++;
+    published = writePos;
+    writeBatch = null;
+
+    long backlog = writePos - released();
+    if (backlog <= 1) {
+      limit = Math.max(MIN_SIZE, limit >> 1);
+    } else {
+      limit = Math.min(SIZE, limit << 1);
+    }
+    BATCHES.increment();
+    LINES.add(lines);
+    if (FlightEvents.AVAILABLE) {
+      FlightEvents.batchHandOff(lines, backlog, limit, claimNanos);
+    }
+  }
+
+  /**
+   * Number of batches published and not consumed yet. Can be called by any thread, for monitoring.
+   */
+  public long depth() {
+    return Math.max(0, published - consumed());
+  }
+
+  /**
+   * Waits until the slot of the given position is released, and returns its batch
+   */
+  abstract Batch claim(long position) throws InterruptedException;
+
+  /**
+   * Makes the batch of the given position visible to the consumers
+   */
+  abstract void publish(Batch batch, long position);
+
+  /**
+   * Number of batches already consumed. Only called by the producer.
+   */
+  abstract long released();
+
+  /**
+   * Number of batches already consumed, or being consumed. Can be called by any thread.
+   */
+  abstract long consumed();
+
+  /**
+   * Waits a bit: spinning first, then yielding, then parking, as the wait gets longer
+   */
+  static void idle(int attempt) throws InterruptedException {
+    if (Thread.interrupted()) {
+      throw new InterruptedException();
+    }
+    if (attempt < 100) {
+      return;
+    }
+    if (attempt < 200) {
+      Thread.yield();
+    } else {
+      LockSupport.parkNanos(50_000);
+    }
+  }
+
+  static final class Batch {
+    final String[] lines = new String[SIZE];
+    int size;
+    // used by the multi-consumer ring to track the state of the slot
+    volatile long sequence;
+
+    private Batch(long sequence) {
+      this.sequence = sequence;
+    }
+  }
+}
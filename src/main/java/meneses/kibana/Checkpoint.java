@@ -0,0 +1,64 @@
+package meneses.kibana;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+
+/**
+ * Position of an incremental export: the sort values of the last exported document (its timestamp and tiebreaker),
+ * and the length of the export file once that document was flushed.
+ */
+class Checkpoint {
+  final long timestamp;
+  final String id;
+  final long fileLength;
+  final long rows;
+
+  Checkpoint(long timestamp, String id, long fileLength, long rows) {
+    this.timestamp = timestamp;
+    this.id = id;
+    this.fileLength = fileLength;
+    this.rows = rows;
+  }
+
+  Object[] sortValues() {
+    return new Object[] {timestamp, id};
+  }
+
+  /**
+   * Returns null if there is no checkpoint yet
+   */
+  static Checkpoint read(Path path) throws IOException {
+    if (!Files.exists(path)) {
+      return null;
+    }
+    Properties props = new Properties();
+    try (Reader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+      props.load(reader);
+    }
+    return new Checkpoint(Long.parseLong(props.getProperty("timestamp")), props.getProperty("id"),
+      Long.parseLong(props.getProperty("fileLength")), Long.parseLong(props.getProperty("rows")));
+  }
+
+  /**
+   * Replaces the checkpoint atomically, so that a crash never leaves a partially written file
+   */
+  void write(Path path) throws IOException {
+    Properties props = new Properties();
+    props.setProperty("timestamp", Long.toString(timestamp));
+    props.setProperty("id", id);
+    props.setProperty("fileLength", Long.toString(fileLength));
+    props.setProperty("rows", Long.toString(rows));
+
+    Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+    try (Writer writer = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+      props.store(writer, null);
+    }
+    Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+}
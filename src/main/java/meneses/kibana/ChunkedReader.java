@@ -0,0 +1,190 @@
+package meneses.kibana;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import meneses.kibana.metrics.Metrics;
+import meneses.kibana.metrics.Timer;
+
+/**
+ * Reads CSV files with several threads.
+ * <p>
+ * Each file is split into chunks of about {@link #CHUNK_SIZE} bytes, aligned on line boundaries, and the header line of
+ * each file is skipped. Chunks of all files are memory-mapped and split into lines in parallel, and the lines are put
+ * in the queue in batches. Lines of different chunks are interleaved in the queue.
+ * <p>
+ * Readers only split lines: tokenizing them, decoding their timestamps and filling row batches is left to the consumers
+ * of the queue, since it depends on the processors, sampling and grouping of each consumer. To spread that work over
+ * several threads too, {@link Load} consumes the lines with several shards ({@code -Dload.shards}).
+ * <p>
+ * Files can also be read from a given position, which must be the start of a line, to read only the lines appended
+ * since a previous read. The end of the read should be the end of a line too (see {@link #lastLineEnd(Path, long)}),
+ * otherwise the part of the line before it is read as a whole line.
+ */
+class ChunkedReader {
+  private static final long CHUNK_SIZE = 64L * 1024 * 1024;
+  // time to split chunks into lines and hand them off, with bytes as items
+  private static final Timer CHUNKS = Metrics.timer("load.read.chunks");
+
+  private final BatchRing queue;
+  private final int threads;
+
+  ChunkedReader(BatchRing queue, int threads) {
+    this.queue = queue;
+    this.threads = threads;
+  }
+
+  /**
+   * Reads the lines of each file between the given positions. A start of 0 is the first line after the header.
+   */
+  void read(List<Path> filePaths, long[] starts, long[] ends) throws IOException, InterruptedException {
+    ExecutorService executor = Executors.newFixedThreadPool(threads, r -> {
+      Thread t = new Thread(r, "chunk-reader");
+      t.setDaemon(true);
+      return t;
+    });
+
+    List<FileChannel> channels = new ArrayList<>();
+    List<Future<?>> futures = new ArrayList<>();
+    try {
+      for (int f = 0; f < filePaths.size(); f++) {
+        Path filePath = filePaths.get(f);
+        System.out.println("Reading " + filePath + (starts[f] > 0 ? " from " + starts[f] : ""));
+        FileChannel channel = FileChannel.open(filePath, StandardOpenOption.READ);
+        channels.add(channel);
+        long[] bounds = chunkBounds(channel, starts[f], ends[f]);
+        for (int i = 0; i < bounds.length - 1; i++) {
+          long start = bounds[i];
+          long end = bounds[i + 1];
+          if (end > start) {
+            futures.add(executor.submit(() -> {
+              readChunk(channel, start, end);
+              return null;
+            }));
+          }
+        }
+      }
+
+      for (Future<?> f : futures) {
+        f.get();
+      }
+    } catch (ExecutionException e) {
+      throw new IOException("Failed to read chunk", e.getCause());
+    } finally {
+      executor.shutdownNow();
+      for (FileChannel channel : channels) {
+        channel.close();
+      }
+    }
+  }
+
+  /**
+   * Returns the start of each chunk followed by the end. Every chunk but the first one starts right after a new line,
+   * and the first one starts at the given start, or after the header if it's 0.
+   */
+  private static long[] chunkBounds(FileChannel channel, long start, long end) throws IOException {
+    List<Long> bounds = new ArrayList<>();
+    bounds.add(start == 0 ? Math.min(nextLine(channel, 0), end) : start);
+    long nominal = bounds.get(0) + CHUNK_SIZE;
+    while (nominal < end) {
+      long bound = Math.min(nextLine(channel, nominal), end);
+      if (bound > bounds.get(bounds.size() - 1)) {
+        bounds.add(bound);
+      }
+      nominal = Math.max(bound, nominal) + CHUNK_SIZE;
+    }
+    bounds.add(end);
+    return bounds.stream().mapToLong(Long::longValue).toArray();
+  }
+
+  /**
+   * Position right after the first new line found from the given position, or the end of the file
+   */
+  private static long nextLine(FileChannel channel, long position) throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocate(8192);
+    long size = channel.size();
+    while (position < size) {
+      buffer.clear();
+      int read = channel.read(buffer, position);
+      for (int i = 0; i < read; i++) {
+        if (buffer.get(i) == '\n') {
+          return position + i + 1;
+        }
+      }
+      position += read;
+    }
+    return size;
+  }
+
+  /**
+   * Position right after the last new line before the given position, or 0 if there is none, so that a line still
+   * being appended to the file is left for a later read
+   */
+  static long lastLineEnd(Path filePath, long position) throws IOException {
+    try (FileChannel channel = FileChannel.open(filePath, StandardOpenOption.READ)) {
+      ByteBuffer buffer = ByteBuffer.allocate(8192);
+      while (position > 0) {
+        long from = Math.max(0, position - buffer.capacity());
+        buffer.clear();
+        buffer.limit((int) (position - from));
+        while (buffer.hasRemaining() && channel.read(buffer, from + buffer.position()) >= 0) {
+        }
+        for (int i = buffer.position() - 1; i >= 0; i--) {
+          if (buffer.get(i) == '\n') {
+            return from + i + 1;
+          }
+        }
+        position = from;
+      }
+      return 0;
+    }
+  }
+
+  private void readChunk(FileChannel channel, long start, long end) throws IOException, InterruptedException {
+    long startNanos = System.nanoTime();
+    MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+    int limit = buffer.limit();
+    byte[] line = new byte[4096];
+    String[] batch = new String[BatchRing.SIZE];
+    int batchSize = 0;
+
+    int lineStart = 0;
+    while (lineStart < limit) {
+      int lineEnd = lineStart;
+      while (lineEnd < limit && buffer.get(lineEnd) != '\n') {
+        lineEnd++;
+      }
+      int length = lineEnd - lineStart;
+      if (length > 0 && buffer.get(lineEnd - 1) == '\r') {
+        length--;
+      }
+
+      if (length > line.length) {
+        line = new byte[Math.max(length, 2 * line.length)];
+      }
+      buffer.position(lineStart);
+      buffer.get(line, 0, length);
+      batch[batchSize++] = new String(line, 0, length, StandardCharsets.UTF_8);
+      if (batchSize == batch.length) {
+        queue.putBatch(batch, batchSize);
+        batchSize = 0;
+      }
+      lineStart = lineEnd + 1;
+    }
+
+    if (batchSize > 0) {
+      queue.putBatch(batch, batchSize);
+    }
+    CHUNKS.recordSince(startNanos, end - start);
+  }
+}
@@ -1,13 +1,38 @@
 package meneses.kibana;
 
 import java.io.IOException;
+import java.net.ConnectException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.text.NumberFormat;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import meneses.kibana.metrics.Counter;
+import meneses.kibana.metrics.FlightEvents;
+import meneses.kibana.metrics.Metrics;
+import meneses.kibana.metrics.MetricsReporter;
+import meneses.kibana.metrics.Timer;
 import org.apache.http.HttpHost;
 import org.apache.http.auth.AuthScope;
 import org.apache.http.auth.UsernamePasswordCredentials;
 import org.apache.http.client.CredentialsProvider;
 import org.apache.http.impl.client.BasicCredentialsProvider;
+import org.elasticsearch.action.ActionListener;
 import org.elasticsearch.action.search.ClearScrollRequest;
-import org.elasticsearch.action.search.ClearScrollResponse;
 import org.elasticsearch.action.search.SearchRequest;
 import org.elasticsearch.action.search.SearchResponse;
 import org.elasticsearch.action.search.SearchScrollRequest;
@@ -20,13 +45,153 @@ import org.elasticsearch.common.unit.TimeValue;
 import org.elasticsearch.search.Scroll;
 import org.elasticsearch.search.SearchHit;
 import org.elasticsearch.search.builder.SearchSourceBuilder;
+import org.elasticsearch.search.slice.SliceBuilder;
 
 import static org.elasticsearch.index.query.QueryBuilders.matchAllQuery;
 
+/**
+ * Exports the telemetry index to CSV.
+ * <p>
+ * With {@code -Ddownload.slices=N} (N > 1) the query is split into N sliced scrolls, each one exported by its own worker
+ * into its own partition file. Sorting on {@code timestamp} can be disabled with {@code -Ddownload.sort=false}: it is
+ * expensive for the cluster and {@link Load} doesn't depend on the order of the rows.
+ * <p>
+ * With {@code -Ddownload.pipeline=N} (N > 0) the next page is fetched asynchronously while the current one is written by a
+ * separate writer thread, with at most N pages waiting to be written.
+ * <p>
+ * With {@code -Ddownload.checkpoint=<file>} the export is incremental: documents are paged with search_after on
+ * {@code timestamp} and a unique tiebreaker, {@code _id} unless {@code -Ddownload.tiebreaker} names a keyword field,
+ * and the position is saved to the given file after each page is flushed. The next run resumes from there and appends
+ * only the documents that come after it. Incremental exports can't be sliced. With {@code -Ddownload.adaptive=true}
+ * an export is also paged with search_after, without saving its position. It can't be sliced either, since
+ * Elasticsearch 6 only slices scrolls.
+ * <p>
+ * Pages fetched with search_after are sized by a {@link PageSizer}, so that a page takes about
+ * {@code -Ddownload.targetPageMillis} to fetch and has at most {@code -Ddownload.maxPageBytes} of sources, and failed
+ * fetches are retried with backoff (see {@link Retry}) from the same position. Scrolls are kept alive for a few times
+ * the longest time seen between two of their requests rather than for hours, and as a request of a scroll moves it
+ * forward, a failed one is only retried if it couldn't reach the cluster.
+ * <p>
+ * With {@code -Dsave.partitioned=true} the export (or each slice) is a directory with a file per month (see
+ * {@link Save}), which {@link Load} can read for a range of time only. Partitioned exports can't be incremental.
+ * <p>
+ * The latency of each page fetch and the time to write it are recorded in {@link Metrics} along with the number of
+ * hits, and page fetches as {@link FlightEvents}. {@code -Dmetrics.file=<file>} dumps them periodically.
+ * <p>
+ * {@code -Ddownload.url} replaces the URL of the cluster, for example by a local stand-in. {@link RemoteAggregate}
+ * gets the users report from aggregations of the same cluster instead of exporting every document.
+ */
 public class Download {
-  public static void main(String[] args) throws IOException {
+  private static final NumberFormat NUMBER_FORMAT = NumberFormat.getInstance(Locale.US);
+  static final String INDEX = "inactive-sonarlint-telemetry-2019-*";
+  // cluster to export from, which can be replaced by a local stand-in
+  private static final String URL = System.getProperty("download.url", "https://f3229ee9ff02175207a44fd63499d622.us-east-1.aws.found.io:9243");
+  private static final int SLICES = Integer.getInteger("download.slices", 1);
+  private static final boolean SORT = Boolean.parseBoolean(System.getProperty("download.sort", "true"));
+  private static final int PIPELINE = Integer.getInteger("download.pipeline", 0);
+  private static final String CHECKPOINT = System.getProperty("download.checkpoint");
+  // unique field ordering the documents of the same timestamp when paging with search_after, see fetchAfter
+  private static final String TIEBREAKER = System.getProperty("download.tiebreaker", "_id");
+  private static final boolean ADAPTIVE = Boolean.parseBoolean(System.getProperty("download.adaptive", "false"));
+  private static final int PAGE_SIZE = PageSizer.MAX_SIZE;
+  private static final int MIN_PAGE_SIZE = Integer.getInteger("download.minPageSize", 100);
+  private static final long TARGET_PAGE_MILLIS = Long.getLong("download.targetPageMillis", 5000);
+  private static final long MAX_PAGE_BYTES = Long.getLong("download.maxPageBytes", 64L * 1024 * 1024);
+  private static final int SOCKET_TIMEOUT_MILLIS = Integer.getInteger("download.socketTimeout", 120) * 1000;
+  private static final Retry RETRY = new Retry(Integer.getInteger("download.retries", 6), 1000, 60_000);
+  // scrolls are kept alive for this many times the longest time between two of their requests, within these bounds
+  private static final int KEEP_ALIVE_FACTOR = 4;
+  private static final long MIN_KEEP_ALIVE_MILLIS = 60_000;
+  private static final long MAX_KEEP_ALIVE_MILLIS = 3600_000;
+  // with hits as items
+  private static final Timer PAGE_FETCHES = Metrics.timer("download.pages.fetch");
+  private static final Timer PAGE_WRITES = Metrics.timer("download.pages.write");
+  private static final Counter HITS = Metrics.counter("download.hits");
+
+  public static void main(String[] args) throws IOException, InterruptedException {
+    long start = System.currentTimeMillis();
+    List<Save> saves = new ArrayList<>();
+
+    if (CHECKPOINT != null && Save.PARTITIONED) {
+      throw new IllegalArgumentException("Partitioned exports can't be incremental");
+    }
+    if (CHECKPOINT != null && SLICES > 1) {
+      throw new IllegalArgumentException("Incremental exports can't be sliced");
+    }
+    if (ADAPTIVE && SLICES > 1) {
+      throw new IllegalArgumentException("Adaptive exports can't be sliced");
+    }
+
+    MetricsReporter reporter = MetricsReporter.start();
+    try (RestHighLevelClient client = createClient(args[0])) {
+      if (CHECKPOINT != null) {
+        Save save = new Save();
+        saves.add(save);
+        exportSearchAfter(client, Paths.get(CHECKPOINT), save);
+      } else if (ADAPTIVE) {
+        Save save = new Save();
+        saves.add(save);
+        exportSearchAfter(client, null, save);
+      } else if (SLICES <= 1) {
+        Save save = new Save();
+        saves.add(save);
+        export(client, null, save);
+      } else {
+        ExecutorService executor = Executors.newFixedThreadPool(SLICES);
+        CompletionService<Void> slices = new ExecutorCompletionService<>(executor);
+        Map<Future<Void>, Integer> indexes = new HashMap<>();
+        for (int i = 0; i < SLICES; i++) {
+          SliceBuilder slice = new SliceBuilder(i, SLICES);
+          Save save = new Save(Save.partitionPath(i));
+          saves.add(save);
+          indexes.put(slices.submit(() -> {
+            export(client, slice, save);
+            return null;
+          }), i);
+        }
+        awaitSlices(executor, slices, indexes);
+      }
+    } finally {
+      reporter.close();
+    }
+
+    printSummary(saves, System.currentTimeMillis() - start);
+  }
+
+  /**
+   * Waits for all slices to be exported. Once a slice fails, the others are interrupted, so that they all stop before
+   * the client they share is closed, and the failures of all slices are thrown together.
+   */
+  private static void awaitSlices(ExecutorService executor, CompletionService<Void> slices, Map<Future<Void>, Integer> indexes)
+    throws IOException, InterruptedException {
+    executor.shutdown();
+    IOException failure = null;
+    for (int done = 0; done < indexes.size(); done++) {
+      Future<Void> slice = slices.take();
+      try {
+        slice.get();
+      } catch (CancellationException e) {
+        // never started
+      } catch (ExecutionException e) {
+        IOException sliceFailure = new IOException("Failed to export slice " + indexes.get(slice), e.getCause());
+        if (failure == null) {
+          failure = sliceFailure;
+          for (Runnable waiting : executor.shutdownNow()) {
+            ((Future<?>) waiting).cancel(false);
+          }
+        } else {
+          failure.addSuppressed(sliceFailure);
+        }
+      }
+    }
+    executor.awaitTermination(1, TimeUnit.MINUTES);
+    if (failure != null) {
+      throw failure;
+    }
+  }
+
+  static RestHighLevelClient createClient(String password) {
     CredentialsProvider credentialsProvider = new BasicCredentialsProvider();
-    String password = args[0];
     credentialsProvider.setCredentials(AuthScope.ANY, new UsernamePasswordCredentials("sonarlint_telemetry", password));
 
     RestClient.FailureListener failureListener = new RestClient.FailureListener() {
@@ -36,51 +201,334 @@ public class Download {
       }
     };
 
-    RestClientBuilder restClient = RestClient.builder(new HttpHost("f3229ee9ff02175207a44fd63499d622.us-east-1.aws.found.io", 9243, "https"))
+    RestClientBuilder restClient = RestClient.builder(HttpHost.create(URL))
       .setHttpClientConfigCallback(httpAsyncClientBuilder -> httpAsyncClientBuilder.setDefaultCredentialsProvider(credentialsProvider))
       .setFailureListener(failureListener)
-      .setRequestConfigCallback(requestConfigBuilder -> requestConfigBuilder.setConnectTimeout(30000).setSocketTimeout(300000))
-      .setMaxRetryTimeoutMillis(300000);
+      .setRequestConfigCallback(requestConfigBuilder -> requestConfigBuilder.setConnectTimeout(30000).setSocketTimeout(SOCKET_TIMEOUT_MILLIS))
+      .setMaxRetryTimeoutMillis(SOCKET_TIMEOUT_MILLIS);
+
+    return new RestHighLevelClient(restClient);
+  }
+
+  /**
+   * Scrolls through all documents of the given slice (or of the whole index if slice is null) and writes them with the given {@link Save}.
+   */
+  private static void export(RestHighLevelClient client, SliceBuilder slice, Save save) throws IOException, InterruptedException {
+    KeepAlive keepAlive = new KeepAlive();
+    // a lost scroll context expires with its keep-alive, so the first request can be retried
+    SearchResponse searchResponse = RETRY.run("first page", false, e -> { },
+      () -> new PageFetch().done(client.search(createSearchRequest(slice, keepAlive.next()), RequestOptions.DEFAULT)));
+
+    save.before();
+
+    String scrollId = PIPELINE > 0 ? scrollPipelined(client, keepAlive, searchResponse, save) : scroll(client, keepAlive, searchResponse, save);
+
+    ClearScrollRequest clearScrollRequest = new ClearScrollRequest();
+    clearScrollRequest.addScrollId(scrollId);
+    client.clearScroll(clearScrollRequest, RequestOptions.DEFAULT);
 
-    try (RestHighLevelClient client = new RestHighLevelClient(restClient)) {
-      Scroll scroll = new Scroll(TimeValue.timeValueHours(10L));
+    save.after();
+  }
+
+  private static SearchRequest createSearchRequest(SliceBuilder slice, Scroll scroll) {
+    SearchSourceBuilder searchSourceBuilder = new SearchSourceBuilder();
+    searchSourceBuilder.query(matchAllQuery());
+    if (SORT) {
+      searchSourceBuilder.sort("timestamp");
+    }
+    if (slice != null) {
+      searchSourceBuilder.slice(slice);
+    }
+    searchSourceBuilder.size(PAGE_SIZE);
+    searchSourceBuilder.timeout(TimeValue.timeValueMinutes(10));
+
+    SearchRequest searchRequest = new SearchRequest(INDEX);
+    searchRequest.source(searchSourceBuilder);
+    searchRequest.scroll(scroll);
+    return searchRequest;
+  }
+
+  /**
+   * Pages through the documents that come after the checkpoint, if any, with search_after. With a checkpoint file, after
+   * each page the export file is flushed and the checkpoint is saved, so that an interrupted run loses at most one page.
+   * A resumed run first truncates the file to the length recorded in the checkpoint, dropping any row written after it.
+   */
+  private static void exportSearchAfter(RestHighLevelClient client, Path checkpointPath, Save save) throws IOException {
+    Checkpoint checkpoint = checkpointPath == null ? null : Checkpoint.read(checkpointPath);
+    PageSizer sizer = new PageSizer(PAGE_SIZE, MIN_PAGE_SIZE, PageSizer.MAX_SIZE, TARGET_PAGE_MILLIS, MAX_PAGE_BYTES);
+    Metrics.gauge("download.pageSize", sizer::size);
+    long rows = 0;
+    if (checkpoint == null) {
+      save.before();
+    } else {
+      System.out.println("Resuming after " + NUMBER_FORMAT.format(checkpoint.rows) + " rows, timestamp " + checkpoint.timestamp);
+      save.resume(checkpoint.fileLength);
+      rows = checkpoint.rows;
+    }
+
+    Object[] after = checkpoint == null ? null : checkpoint.sortValues();
+    while (true) {
+      SearchHit[] searchHits = fetchAfter(client, after, sizer).getHits().getHits();
+      if (searchHits == null || searchHits.length == 0) {
+        break;
+      }
+
+      write(searchHits, save);
+      rows += searchHits.length;
+
+      after = searchHits[searchHits.length - 1].getSortValues();
+      if (checkpointPath != null) {
+        checkpoint = new Checkpoint(((Number) after[0]).longValue(), after[1].toString(), save.flush(), rows);
+        checkpoint.write(checkpointPath);
+      }
+    }
+
+    save.after();
+  }
+
+  /**
+   * Fetches the page after the given sort values (or the first one if null), of the size given by the sizer, which
+   * records how long it took and how big it was. Fetches are retried with a smaller page.
+   * <p>
+   * Documents of the same timestamp are ordered by {@link #TIEBREAKER}, which must be unique. The telemetry documents
+   * have no other unique field than {@code _id}, which Elasticsearch 6 sorts with fielddata rather than doc values: it
+   * is loaded on the heap of the data nodes once per segment and then cached, so the export pays for it once rather
+   * than per page. Sorting on {@code _id} is deprecated in later versions, where the id should be copied to a keyword
+   * field with doc values, given with {@code -Ddownload.tiebreaker}.
+   */
+  private static SearchResponse fetchAfter(RestHighLevelClient client, Object[] after, PageSizer sizer) throws IOException {
+    return RETRY.run("page", false, e -> sizer.failed(), () -> {
       SearchSourceBuilder searchSourceBuilder = new SearchSourceBuilder();
       searchSourceBuilder.query(matchAllQuery());
       searchSourceBuilder.sort("timestamp");
-      searchSourceBuilder.size(10000);
+      searchSourceBuilder.sort(TIEBREAKER);
+      searchSourceBuilder.size(sizer.size());
       searchSourceBuilder.timeout(TimeValue.timeValueMinutes(10));
+      if (after != null) {
+        searchSourceBuilder.searchAfter(after);
+      }
 
-      SearchRequest searchRequest = new SearchRequest("inactive-sonarlint-telemetry-2019-*");
+      SearchRequest searchRequest = new SearchRequest(INDEX);
       searchRequest.source(searchSourceBuilder);
-      searchRequest.scroll(scroll);
+      long start = System.nanoTime();
+      SearchResponse response = new PageFetch().done(client.search(searchRequest, RequestOptions.DEFAULT));
+      SearchHit[] hits = response.getHits().getHits();
+      if (hits != null) {
+        sizer.record(hits.length, System.nanoTime() - start, sourceBytes(hits));
+      }
+      return response;
+    });
+  }
+
+  private static long sourceBytes(SearchHit[] hits) {
+    long bytes = 0;
+    for (SearchHit hit : hits) {
+      bytes += hit.getSourceRef() == null ? 0 : hit.getSourceRef().length();
+    }
+    return bytes;
+  }
 
-      SearchResponse searchResponse = client.search(searchRequest, RequestOptions.DEFAULT);
-      String scrollId = searchResponse.getScrollId();
-      SearchHit[] searchHits = searchResponse.getHits().getHits();
+  /**
+   * Fetches the next page of a scroll. As it moves the scroll forward, it's only retried if it couldn't reach the cluster.
+   */
+  private static SearchResponse fetchScroll(RestHighLevelClient client, KeepAlive keepAlive, String scrollId) throws IOException {
+    return RETRY.run("scroll", true, e -> { }, () -> {
+      SearchScrollRequest scrollRequest = new SearchScrollRequest(scrollId);
+      scrollRequest.scroll(keepAlive.next());
+      return new PageFetch().done(client.scroll(scrollRequest, RequestOptions.DEFAULT));
+    });
+  }
 
-      Save save = new Save();
-      save.before();
+  /**
+   * Fetches a page, writes it, and only then fetches the next one.
+   * Returns the last scroll id.
+   */
+  private static String scroll(RestHighLevelClient client, KeepAlive keepAlive, SearchResponse searchResponse, Save save) throws IOException {
+    String scrollId = searchResponse.getScrollId();
+    SearchHit[] searchHits = searchResponse.getHits().getHits();
 
-      while (searchHits != null && searchHits.length > 0) {
-        for (int i = 0; i < searchHits.length; i++) {
-          SearchHit hit = searchHits[i];
-          save.processLine(hit);
-        }
+    while (searchHits != null && searchHits.length > 0) {
+      write(searchHits, save);
+
+      searchResponse = fetchScroll(client, keepAlive, scrollId);
+      scrollId = searchResponse.getScrollId();
+      searchHits = searchResponse.getHits().getHits();
+    }
+    return scrollId;
+  }
+
+  /**
+   * Requests the next page before handing the current one to a writer thread, so that the network latency and the
+   * serialization of a page overlap. The hand-off is bounded, so at most {@link #PIPELINE} pages wait in memory.
+   * Returns the last scroll id.
+   */
+  private static String scrollPipelined(RestHighLevelClient client, KeepAlive keepAlive, SearchResponse searchResponse, Save save)
+    throws IOException, InterruptedException {
+    PageWriter writer = new PageWriter(save, PIPELINE);
+    writer.start();
 
+    String scrollId = searchResponse.getScrollId();
+    SearchHit[] searchHits = searchResponse.getHits().getHits();
+
+    try {
+      while (searchHits != null && searchHits.length > 0) {
         SearchScrollRequest scrollRequest = new SearchScrollRequest(scrollId);
-        scrollRequest.scroll(scroll);
-        searchResponse = client.scroll(scrollRequest, RequestOptions.DEFAULT);
+        scrollRequest.scroll(keepAlive.next());
+        CompletableFuture<SearchResponse> next = new CompletableFuture<>();
+        PageFetch fetch = new PageFetch();
+        client.scrollAsync(scrollRequest, RequestOptions.DEFAULT,
+          ActionListener.wrap(r -> next.complete(fetch.done(r)), next::completeExceptionally));
+
+        writer.put(searchHits);
+
+        try {
+          searchResponse = next.get();
+        } catch (ExecutionException e) {
+          if (!(e.getCause() instanceof ConnectException)) {
+            throw new IOException("Failed to fetch next page", e.getCause());
+          }
+          // the request didn't reach the cluster, so the scroll is still at the same position
+          searchResponse = fetchScroll(client, keepAlive, scrollId);
+        }
         scrollId = searchResponse.getScrollId();
         searchHits = searchResponse.getHits().getHits();
       }
+    } catch (Exception | Error e) {
+      // the export failed, so the pages left aren't written
+      writer.abort();
+      throw e;
+    }
+    writer.finish();
+    return scrollId;
+  }
+
+  private static void write(SearchHit[] page, Save save) throws IOException {
+    long start = System.nanoTime();
+    for (SearchHit hit : page) {
+      save.processLine(hit);
+    }
+    PAGE_WRITES.recordSince(start, page.length);
+  }
+
+  /**
+   * Keep-alive of a scroll, a few times the longest time seen between two of its requests: long enough to write a page
+   * (or, when pipelined, to wait for the writer), without keeping contexts open for hours on the cluster
+   */
+  private static final class KeepAlive {
+    private long lastRequest = 0;
+    private long maxIntervalNanos = 0;
+
+    Scroll next() {
+      long now = System.nanoTime();
+      if (lastRequest != 0) {
+        maxIntervalNanos = Math.max(maxIntervalNanos, now - lastRequest);
+      }
+      lastRequest = now;
+      long millis = maxIntervalNanos == 0 ? MAX_KEEP_ALIVE_MILLIS / 4 : KEEP_ALIVE_FACTOR * maxIntervalNanos / 1_000_000;
+      return new Scroll(TimeValue.timeValueMillis(Math.max(MIN_KEEP_ALIVE_MILLIS, Math.min(MAX_KEEP_ALIVE_MILLIS, millis))));
+    }
+  }
+
+  /**
+   * Times a page fetch, from the request to the response, which may be received by another thread
+   */
+  private static final class PageFetch {
+    private final long start = System.nanoTime();
+    private final Object event = FlightEvents.AVAILABLE ? FlightEvents.beginPageFetch() : null;
+
+    SearchResponse done(SearchResponse response) {
+      SearchHit[] hits = response.getHits().getHits();
+      int count = hits == null ? 0 : hits.length;
+      PAGE_FETCHES.recordSince(start, count);
+      HITS.add(count);
+      if (event != null) {
+        FlightEvents.endPageFetch(event, count);
+      }
+      return response;
+    }
+  }
+
+  /**
+   * Writes pages with a {@link Save} in its own thread
+   */
+  private static class PageWriter extends Thread {
+    private static final SearchHit[] END = new SearchHit[0];
+
+    private final Save save;
+    private final BlockingQueue<SearchHit[]> pages;
+    private volatile IOException failure;
+
+    private PageWriter(Save save, int capacity) {
+      super("page-writer");
+      this.save = save;
+      this.pages = new ArrayBlockingQueue<>(capacity);
+    }
+
+    @Override
+    public void run() {
+      try {
+        while (true) {
+          SearchHit[] page = pages.take();
+          if (page == END) {
+            break;
+          }
+          write(page, save);
+        }
+      } catch (IOException e) {
+        failure = e;
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+
+    void put(SearchHit[] page) throws IOException, InterruptedException {
+      while (!pages.offer(page, 1, TimeUnit.SECONDS)) {
+        checkAlive();
+      }
+    }
+
+    /**
+     * Waits for all pages to be written
+     */
+    void finish() throws IOException, InterruptedException {
+      while (isAlive() && !pages.offer(END, 1, TimeUnit.SECONDS)) {
+        // writer still busy
+      }
+      join();
+      if (failure != null) {
+        throw failure;
+      }
+    }
 
-      ClearScrollRequest clearScrollRequest = new ClearScrollRequest();
-      clearScrollRequest.addScrollId(scrollId);
-      ClearScrollResponse clearScrollResponse = client.clearScroll(clearScrollRequest, RequestOptions.DEFAULT);
-      boolean succeeded = clearScrollResponse.isSucceeded();
+    /**
+     * Stops writing, without waiting for the pages left
+     */
+    void abort() {
+      interrupt();
+    }
 
-      save.after();
+    private void checkAlive() throws IOException {
+      if (!isAlive()) {
+        throw failure != null ? failure : new IOException("Page writer stopped");
+      }
     }
   }
 
+  private static void printSummary(List<Save> saves, long elapsedMs) {
+    int processed = 0;
+    int skipped = 0;
+    System.out.println("\n############################");
+    for (Save save : saves) {
+      processed += save.getLinesProcessed();
+      skipped += save.getLinesSkipped();
+      System.out.println(String.format("%50s %12s %12s", save.getPath(),
+        NUMBER_FORMAT.format(save.getLinesProcessed()),
+        NUMBER_FORMAT.format(save.getLinesSkipped())));
+    }
+    System.out.println(String.format("Total: %s lines processed, %s skipped in %s ms (%s lines/s)",
+      NUMBER_FORMAT.format(processed),
+      NUMBER_FORMAT.format(skipped),
+      NUMBER_FORMAT.format(elapsedMs),
+      NUMBER_FORMAT.format(elapsedMs == 0 ? 0 : 1000L * processed / elapsedMs)));
+  }
 }
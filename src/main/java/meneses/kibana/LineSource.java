@@ -0,0 +1,11 @@
+package meneses.kibana;
+
+/**
+ * Lines to be consumed by a single thread
+ */
+public interface LineSource {
+  /**
+   * Returns the next line, waiting for it if needed, or null once there are no more lines.
+   */
+  String take() throws InterruptedException;
+}
@@ -1,140 +1,652 @@
 package meneses.kibana;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.text.NumberFormat;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
 import java.time.OffsetDateTime;
-import java.time.format.DateTimeFormatter;
-import java.time.temporal.ChronoUnit;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
 import java.util.stream.Collectors;
+import meneses.kibana.columnar.ColumnarReader;
+import meneses.kibana.columnar.ColumnarWriter;
+import meneses.kibana.metrics.Counter;
+import meneses.kibana.metrics.Metrics;
+import meneses.kibana.metrics.MetricsReporter;
+import meneses.kibana.metrics.Timer;
+import meneses.kibana.processor.Column;
 import meneses.kibana.processor.PerformanceProcessor;
 import meneses.kibana.processor.Processor;
 import meneses.kibana.processor.RetentionProcessor;
+import meneses.kibana.processor.Row;
+import meneses.kibana.processor.RowBatch;
+import meneses.kibana.processor.Sampling;
+import meneses.kibana.processor.UserIds;
 import meneses.kibana.processor.UsersProcessor;
 
 import static meneses.kibana.Save.SEPARATOR;
 
+/**
+ * Reads exported telemetry, either CSV files or columnar files (see {@link ColumnarWriter}), and runs the processors on it.
+ * <p>
+ * With {@code -Dload.shards=N} (N > 1) rows are consumed by N shards, each one with its own processors running in its
+ * own thread. CSV lines are shared by the shards through a {@link MultiConsumerQueue}, batch by batch, and each shard
+ * tokenizes its own lines, while rows of columnar files are split by a hash of their install time. Once all rows are
+ * consumed, the processors of all shards are merged into the ones of the first shard, which works whatever the rows
+ * each one got, before running {@link Processor#after()}.
+ * <p>
+ * Rows consumed, skipped and invalid (by reason), the depth of the queue and the time spent by each processor are
+ * recorded in {@link Metrics}, which {@code -Dmetrics.file=<file>} dumps periodically (see {@link MetricsReporter}).
+ * <p>
+ * With {@code -Dload.snapshot=<file>} the state of the processors is saved to the given file before the reports, with
+ * the position up to which each file was read (see {@link Snapshot}). The next run restores it and only reads what was
+ * appended to the files since, so that its time depends on the new rows rather than on the whole history. The counts
+ * of processed, skipped and invalid rows are then the ones of the new rows.
+ * <p>
+ * With {@code -Dload.pipeline=true} each processor runs on its own thread (see {@link ProcessorPipeline}), so that
+ * independent processors use separate cores, and each one's {@link Processor#after()} runs as soon as it and its
+ * {@link Processor#dependencies()} are done.
+ * <p>
+ * With {@code -Dload.sample=f} (0 < f < 1) only a fraction f of the users is processed, for a quick approximate report
+ * (see {@link Sampling}). Whether the rows of a user are kept depends only on its install time, which is checked right
+ * after tokenizing it, before decoding anything else. Reports scale the counts up and show their confidence bounds.
+ * <p>
+ * Directories are read as partitioned exports (see {@link Save}). With {@code -Dload.from=yyyy-MM-dd} and/or
+ * {@code -Dload.until=yyyy-MM-dd} (exclusive), only rows with a system time in that range, in its own offset, are
+ * processed, and the partitions that can't have any are skipped using the {@link Manifest} of the export.
+ * <p>
+ * With {@code -Dload.groupByUser=true} the CSV file must be sorted by install time (see {@link SortByUser}), and is read
+ * in order by one reader. Each time the install time changes, the rows of the previous user are processed and the
+ * processors fold its state into their aggregates and drop it (see {@link Processor#endUsers()}), so that the memory
+ * they need depends on the largest user rather than on the number of users.
+ */
 public class Load {
   private static final NumberFormat NUMBER_FORMAT = NumberFormat.getInstance(Locale.US);
-  private static final DateTimeFormatter FORMATTER = DateTimeFormatter.ISO_DATE_TIME;
+  // install_time and timestamp, needed to validate rows. Other columns are read only if a processor needs them.
+  private static final int INSTALL_TIME = 0;
+  private static final int SYSTEM_TIME = 6;
+  private static final int READERS = Integer.getInteger("load.readers", Runtime.getRuntime().availableProcessors());
+  private static final int SHARDS = Integer.getInteger("load.shards", 1);
+  // precision of the HyperLogLog sketches used to estimate unique users, or 0 to count them exactly
+  private static final int APPROXIMATE_PRECISION = Integer.getInteger("load.approximate", 0);
+  // whether to run PerformanceProcessor. Without it, the analyses column isn't read at all.
+  private static final boolean PERFORMANCE = Boolean.parseBoolean(System.getProperty("load.performance", "true"));
+  private static final boolean PIPELINE = Boolean.parseBoolean(System.getProperty("load.pipeline", "false"));
+  private static final boolean GROUP_BY_USER = Boolean.parseBoolean(System.getProperty("load.groupByUser", "false"));
+  // batches that processors can be behind the reader, in pipeline mode
+  private static final int PIPELINE_BATCHES = Integer.getInteger("load.pipelineBatches", 4);
+  private static final int INSTALL_TIME_CACHE = Integer.getInteger("load.installTimeCache", 64 * 1024);
+  private static final String SNAPSHOT = System.getProperty("load.snapshot");
+  private static final Sampling SAMPLING = new Sampling(Double.parseDouble(System.getProperty("load.sample", "1")));
+  // range of system times of the rows to process, in local millis as if they were UTC
+  private static final long FROM = localMillis(System.getProperty("load.from"), Long.MIN_VALUE);
+  private static final long UNTIL = localMillis(System.getProperty("load.until"), Long.MAX_VALUE);
+  // local date-times, in millis as if they were UTC, between which timestamps are valid
+  private static final long MIN_VALID_TIME = LocalDateTime.of(2017, 1, 1, 0, 0).toInstant(ZoneOffset.UTC).toEpochMilli();
+  private static final long MAX_VALID_TIME = LocalDateTime.of(2020, 1, 1, 0, 0).toInstant(ZoneOffset.UTC).toEpochMilli();
+  private static final long DAY_MILLIS = 24L * 3600 * 1000;
   private static final String[] FILE_PATHS = {"/home/meneses/inactive-sonarlint-telemetry-2019.csv", "/home/meneses/telemetry-sonarlint.csv"};
 
-  public static void main(String[] args) throws InterruptedException {
+  private static final Counter ROWS = Metrics.counter("load.rows");
+  private static final Counter BLANK = Metrics.counter("load.rows.blank");
+  private static final Counter INSTALL_MISSING = Metrics.counter("load.rows.skipped.installMissing");
+  private static final Counter INVALID_TIME = Metrics.counter("load.rows.invalid.outOfRange");
+  private static final Counter INVALID_ORDER = Metrics.counter("load.rows.invalid.installAfterSystem");
+  private static final Counter INVALID_FORMAT = Metrics.counter("load.rows.invalid.unparsable");
+  private static final Counter FILTERED = Metrics.counter("load.rows.filtered");
+  private static final Counter SAMPLED_OUT = Metrics.counter("load.rows.sampledOut");
+  private static final Counter USERS_ENDED = Metrics.counter("load.users.ended");
+
+  public static void main(String[] args) throws InterruptedException, IOException {
     long start = System.currentTimeMillis();
-    List<Path> paths = Arrays.stream(FILE_PATHS).map(Paths::get).collect(Collectors.toList());
-    new Load().work(createProcessors(), paths);
+    String[] files = args.length > 0 ? args : FILE_PATHS;
+    List<Path> paths = Arrays.stream(files).map(Paths::get).collect(Collectors.toList());
+    List<List<Processor>> shards = new ArrayList<>();
+    for (int i = 0; i < Math.max(1, SHARDS); i++) {
+      shards.add(createProcessors());
+    }
+    MetricsReporter reporter = MetricsReporter.start();
+    try {
+      new Load().workSharded(shards, paths);
+    } finally {
+      reporter.close();
+    }
     System.out.println(System.currentTimeMillis() - start + " ms");
   }
 
   private static List<Processor> createProcessors() {
-    RetentionProcessor retention = new RetentionProcessor();
-    return Arrays.asList(retention, new UsersProcessor(retention), new PerformanceProcessor(retention));
+    RetentionProcessor retention = new RetentionProcessor(new UserIds(), SAMPLING);
+    List<Processor> processors = new ArrayList<>(Arrays.asList(retention, new UsersProcessor(retention, APPROXIMATE_PRECISION)));
+    if (PERFORMANCE) {
+      processors.add(new PerformanceProcessor(retention, APPROXIMATE_PRECISION));
+    }
+    return processors;
+  }
+
+  private BatchRing queue;
+
+  public void work(List<Processor> processors, List<Path> filePaths) throws InterruptedException, IOException {
+    workSharded(Collections.singletonList(processors), filePaths);
   }
 
-  private Queue queue = new Queue();
+  /**
+   * Each list of processors is a shard. All lists must contain the same processors, in the same order.
+   */
+  public void workSharded(List<List<Processor>> shardProcessors, List<Path> paths) throws InterruptedException, IOException {
+    if (SNAPSHOT != null && (FROM != Long.MIN_VALUE || UNTIL != Long.MAX_VALUE)) {
+      throw new IllegalArgumentException("A snapshot can't be taken of a load filtered by time");
+    }
+    if (SNAPSHOT != null && SAMPLING.isSampled()) {
+      throw new IllegalArgumentException("A snapshot can't be taken of a sampled load");
+    }
+    List<Path> filePaths = expand(paths);
+    List<Path> csvPaths = filePaths.stream().filter(p -> !isColumnar(p)).collect(Collectors.toList());
+    List<Path> columnarPaths = filePaths.stream().filter(Load::isColumnar).collect(Collectors.toList());
+
+    int n = shardProcessors.size();
+    if (GROUP_BY_USER && (n > 1 || PIPELINE || SNAPSHOT != null)) {
+      throw new IllegalArgumentException("Rows grouped by user can't be sharded, pipelined or snapshotted");
+    }
+    if (GROUP_BY_USER && (csvPaths.size() != 1 || !columnarPaths.isEmpty())) {
+      throw new IllegalArgumentException("Rows grouped by user must be read from a single CSV file sorted by SortByUser");
+    }
+    Queue singleQueue = n == 1 ? new Queue() : null;
+    MultiConsumerQueue sharedQueue = n == 1 ? null : new MultiConsumerQueue();
+    queue = n == 1 ? singleQueue : sharedQueue;
+    Metrics.gauge("queue.depth", queue::depth);
+
+    List<Shard> shards = new ArrayList<>();
+    for (int i = 0; i < n; i++) {
+      shards.add(new Shard(i, n, shardProcessors.get(i)));
+    }
+    shards.forEach(s -> s.processors.forEach(Processor::before));
+
+    // the rows of the snapshot are restored in the first shard, which the others are merged into
+    Snapshot snapshot = SNAPSHOT == null ? null : Snapshot.read(Paths.get(SNAPSHOT), shards.get(0).processors);
+    long[] starts = snapshot == null ? new long[filePaths.size()] : snapshot.starts(filePaths);
+    // files are read up to their current size, even if they grow meanwhile, or for a snapshot up to its watermarks
+    long[] ends = SNAPSHOT == null ? sizes(filePaths) : watermarks(filePaths, starts);
+    long[] csvStarts = select(starts, filePaths, csvPaths);
+    long[] csvEnds = select(ends, filePaths, csvPaths);
+    long[] columnarStarts = select(starts, filePaths, columnarPaths);
+    long[] columnarEnds = select(ends, filePaths, columnarPaths);
 
-  public void work(List<Processor> processors, List<Path> filePaths) throws InterruptedException {
-    RunnableExceptionWrapper producer = new RunnableExceptionWrapper(() -> load(filePaths));
+    RunnableExceptionWrapper producer = new RunnableExceptionWrapper(() -> load(csvPaths, csvStarts, csvEnds));
     Thread t1 = new Thread(producer, "file-reader");
     t1.start();
-    consume(processors);
-    t1.join();
+
+    if (n == 1) {
+      Shard shard = shards.get(0);
+      try {
+        shard.consume(singleQueue);
+      } catch (RuntimeException | Error | InterruptedException e) {
+        // the reader would wait forever for room in the queue
+        t1.interrupt();
+        t1.join();
+        throw e;
+      }
+      t1.join();
+      producer.rethrow();
+      for (int i = 0; i < columnarPaths.size(); i++) {
+        shard.consumeColumnar(columnarPaths.get(i), columnarStarts[i], columnarEnds[i]);
+      }
+    } else {
+      List<Thread> threads = new ArrayList<>();
+      List<RunnableExceptionWrapper> consumers = new ArrayList<>();
+      for (Shard shard : shards) {
+        RunnableExceptionWrapper consumer = new RunnableExceptionWrapper(() -> {
+          try {
+            shard.consume(sharedQueue.consumer());
+          } catch (Exception | Error e) {
+            // the batch it was consuming is never released, so the reader would wait forever for its slot
+            t1.interrupt();
+            throw e;
+          }
+          for (int i = 0; i < columnarPaths.size(); i++) {
+            shard.consumeColumnar(columnarPaths.get(i), columnarStarts[i], columnarEnds[i]);
+          }
+        });
+        Thread t = new Thread(consumer, "consumer-" + shard.index);
+        t.start();
+        consumers.add(consumer);
+        threads.add(t);
+      }
+      t1.join();
+      for (Thread t : threads) {
+        t.join();
+      }
+      // the failure of a consumer comes first, since it interrupts the reader
+      for (RunnableExceptionWrapper consumer : consumers) {
+        consumer.rethrow();
+      }
+      producer.rethrow();
+    }
+
+    // when processors run concurrently, the reports can start before all rows are processed, unless rows of all shards
+    // or the snapshot are needed first
+    List<CompletableFuture<Void>> processed = new ArrayList<>();
+    if (PIPELINE) {
+      List<List<CompletableFuture<Void>>> all = new ArrayList<>();
+      for (Shard shard : shards) {
+        all.add(shard.pipeline.close());
+      }
+      if (n == 1 && SNAPSHOT == null) {
+        processed = all.get(0);
+      } else {
+        all.forEach(futures -> futures.forEach(CompletableFuture::join));
+      }
+    }
+    List<Processor> processors = shards.get(0).processors;
+    while (processed.size() < processors.size()) {
+      processed.add(CompletableFuture.completedFuture(null));
+    }
+    for (int i = 1; i < n; i++) {
+      List<Processor> other = shards.get(i).processors;
+      for (int j = 0; j < processors.size(); j++) {
+        processors.get(j).merge(other.get(j));
+      }
+    }
+
+    if (SNAPSHOT != null) {
+      Snapshot.write(Paths.get(SNAPSHOT), processors, filePaths, ends);
+    }
+
+    if (n > 1) {
+      System.out.println("  Processed " + NUMBER_FORMAT.format(shards.stream().mapToLong(s -> s.count).sum())
+        + ", Skipped: " + NUMBER_FORMAT.format(shards.stream().mapToLong(s -> s.installMissing).sum())
+        + ", Invalid: " + NUMBER_FORMAT.format(shards.stream().mapToLong(s -> s.invalid).sum()));
+    }
+
+    if (PIPELINE) {
+      ProcessorPipeline.after(processors, processed);
+    } else {
+      for (Processor p : processors) {
+        System.out.println("\n############################");
+        p.after();
+      }
+    }
+  }
+
+  /**
+   * Replaces partitioned exports by their partitions that may have rows in the time range
+   */
+  private static List<Path> expand(List<Path> paths) throws IOException {
+    List<Path> files = new ArrayList<>();
+    for (Path path : paths) {
+      if (Files.isDirectory(path)) {
+        Manifest manifest = Manifest.read(path);
+        List<Path> selected = manifest.select(path, FROM, UNTIL);
+        System.out.println("Reading " + selected.size() + " of " + manifest.partitions.size() + " partitions of " + path);
+        files.addAll(selected);
+      } else {
+        files.add(path);
+      }
+    }
+    return files;
+  }
+
+  private static long localMillis(String date, long defaultValue) {
+    return date == null ? defaultValue : LocalDate.parse(date).atStartOfDay().toInstant(ZoneOffset.UTC).toEpochMilli();
+  }
+
+  private static boolean inRange(long systemLocalMillis) {
+    if (systemLocalMillis < FROM || systemLocalMillis >= UNTIL) {
+      FILTERED.increment();
+      return false;
+    }
+    return true;
+  }
+
+  private static boolean isColumnar(Path path) {
+    return path.getFileName().toString().endsWith(ColumnarWriter.EXTENSION);
   }
 
   public void load(List<Path> filePaths) throws IOException, InterruptedException {
+    load(filePaths, new long[filePaths.size()], sizes(filePaths));
+  }
 
-    for (Path filePath : filePaths) {
-      System.out.println("Reading " + filePath);
+  private void load(List<Path> filePaths, long[] starts, long[] ends) throws IOException, InterruptedException {
+    try {
+      // a single reader keeps the lines in the order of the file
+      new ChunkedReader(queue, GROUP_BY_USER ? 1 : READERS).read(filePaths, starts, ends);
+    } finally {
+      queue.close();
+    }
+  }
 
-      try (BufferedReader reader = Files.newBufferedReader(filePath, StandardCharsets.UTF_8)) {
-        // skip header
-        reader.readLine();
+  /**
+   * Values of the given paths, from the values of all paths
+   */
+  private static long[] select(long[] values, List<Path> all, List<Path> paths) {
+    return paths.stream().mapToLong(p -> values[all.indexOf(p)]).toArray();
+  }
 
-        String line = reader.readLine();
-        while (line != null) {
-          queue.put(line);
-          line = reader.readLine();
+  private static long[] sizes(List<Path> filePaths) throws IOException {
+    long[] sizes = new long[filePaths.size()];
+    for (int i = 0; i < sizes.length; i++) {
+      sizes[i] = Files.size(filePaths.get(i));
+    }
+    return sizes;
+  }
+
+  /**
+   * Ends of the last complete lines of CSV files and blocks of columnar files from the given starts, since files may
+   * still be being written when they are loaded incrementally, and a snapshot must end on a row
+   */
+  private static long[] watermarks(List<Path> filePaths, long[] starts) throws IOException {
+    long[] ends = new long[filePaths.size()];
+    for (int i = 0; i < ends.length; i++) {
+      Path path = filePaths.get(i);
+      long size = Files.size(path);
+      if (isColumnar(path)) {
+        try (ColumnarReader reader = new ColumnarReader(path)) {
+          ends[i] = reader.lastBlockEnd(starts[i], size);
         }
+      } else {
+        ends[i] = Math.max(starts[i], ChunkedReader.lastLineEnd(path, size));
       }
     }
-    queue.close();
+    return ends;
   }
 
-  private void consume(List<Processor> processors) throws InterruptedException {
-    int count = 0;
-    int installMissing = 0;
-    int invalid = 0;
-    String invalidLine = null;
+  private static int shardOf(int hash, int shards) {
+    return Math.floorMod(hash ^ (hash >>> 16), shards);
+  }
 
-    processors.forEach(Processor::before);
+  /**
+   * Processors that consume a subset of the rows, with their own statistics of skipped and invalid rows
+   */
+  private static class Shard {
+    private final int index;
+    private final int shards;
+    private final List<Processor> processors;
+    private final Row row = new Row(SEPARATOR.charAt(0));
+    // null unless processors run on their own threads, which then get the batches from it
+    private final ProcessorPipeline pipeline;
+    private RowBatch batch;
+    // optional columns needed by the processors, and number of fields to tokenize to get them
+    private final boolean analyses;
+    private final boolean product;
+    private final int fields;
+    private final TimestampDecoder systemTimes = new TimestampDecoder();
+    private final TimestampDecoder installTimes = new TimestampDecoder(INSTALL_TIME_CACHE);
+    // raw install time of the rows of the current user, when grouped by user
+    private final StringBuilder user = new StringBuilder();
+    // by processor
+    private final Timer[] timers;
 
-    while (true) {
-      String line = queue.take();
-      if (line == null) {
-        break;
+    private int count = 0;
+    private int reportedCount = 0;
+    private int installMissing = 0;
+    private int invalid = 0;
+    private String invalidLine = null;
+
+    private Shard(int index, int shards, List<Processor> processors) {
+      this.index = index;
+      this.shards = shards;
+      this.processors = processors;
+      this.analyses = needs(Column.ANALYSES);
+      this.product = needs(Column.PRODUCT);
+      int maxField = SYSTEM_TIME;
+      for (Column column : Column.values()) {
+        if (needs(column)) {
+          maxField = Math.max(maxField, column.field);
+        }
       }
+      this.fields = maxField + 1;
+      this.timers = processors.stream().map(p -> Metrics.timer("load.processor." + p.getClass().getSimpleName())).toArray(Timer[]::new);
+      this.pipeline = PIPELINE ? new ProcessorPipeline(processors, timers, PIPELINE_BATCHES, "processor-" + index) : null;
+      this.batch = pipeline != null ? pipeline.batch() : new RowBatch();
+    }
 
-      boolean process = true;
+    private void consume(LineSource lines) throws InterruptedException {
+      while (true) {
+        String line = lines.take();
+        if (line == null) {
+          break;
+        }
 
-      String[] fields = line.split(SEPARATOR);
-      if (fields.length == 0) {
-        continue;
+        if (SAMPLING.isSampled()) {
+          // only the install time is needed to drop the rows of the users out of the sample
+          row.reset(line, INSTALL_TIME + 1);
+          if (!row.isEmpty(INSTALL_TIME) && !SAMPLING.keep(row.get(INSTALL_TIME))) {
+            SAMPLED_OUT.increment();
+            continue;
+          }
+        }
+        row.reset(line, fields);
+        if (row.isBlank()) {
+          BLANK.increment();
+          continue;
+        }
+        if (GROUP_BY_USER) {
+          nextUser(row.get(INSTALL_TIME));
+        }
+        if (SAMPLING.isSampled() && row.isEmpty(INSTALL_TIME) && !SAMPLING.keep(row.get(SYSTEM_TIME))) {
+          SAMPLED_OUT.increment();
+          continue;
+        }
+
+        if (!systemTimes.tryDecode(row.get(SYSTEM_TIME))) {
+          unparsable(line);
+          continue;
+        }
+        if (!inRange(systemTimes.localMillis())) {
+          continue;
+        }
+        boolean hasInstallTime = !row.isEmpty(INSTALL_TIME);
+        if (hasInstallTime && !installTimes.tryDecode(row.get(INSTALL_TIME))) {
+          unparsable(line);
+          continue;
+        }
+
+        if (isValid(hasInstallTime, installTimes.epochMillis(), installTimes.localMillis(), systemTimes.epochMillis(), systemTimes.localMillis())) {
+          int r = batch.add(hasInstallTime ? installTimes.epochMillis() : RowBatch.NO_TIME, hasInstallTime ? installTimes.offsetSeconds() : 0,
+            systemTimes.epochMillis(), systemTimes.offsetSeconds());
+          if (analyses) {
+            batch.setAnalyses(r, row, Column.ANALYSES.field);
+          }
+          if (product) {
+            batch.setProduct(r, row.get(Column.PRODUCT.field));
+          }
+          if (batch.isFull()) {
+            flush();
+          }
+        } else {
+          invalidLine = line;
+        }
+        countRow();
+      }
+      flush();
+      if (GROUP_BY_USER) {
+        endUsers();
       }
+    }
 
-      OffsetDateTime installTime;
-      OffsetDateTime systemTime = OffsetDateTime.parse(fields[6], FORMATTER);
+    /**
+     * Ends the current user if the row is of another one, which must come after it in the order of {@link SortByUser}
+     */
+    private void nextUser(CharSequence installTime) throws InterruptedException {
+      int order = SortByUser.compare(installTime, user);
+      if (order == 0) {
+        return;
+      }
+      if (order < 0) {
+        throw new IllegalStateException("Rows aren't sorted by install time: " + installTime + " after " + user);
+      }
+      flush();
+      endUsers();
+      user.setLength(0);
+      user.append(installTime);
+    }
 
-      if (fields[0].isEmpty()) {
-        installMissing++;
-        installTime = null;
-      } else {
-        installTime = OffsetDateTime.parse(fields[0], FORMATTER);
+    /**
+     * Processed rows are the ones of ended users, which processors fold, in reverse order (see {@link Processor#endUsers()})
+     */
+    private void endUsers() {
+      for (int i = processors.size() - 1; i >= 0; i--) {
+        long start = System.nanoTime();
+        processors.get(i).endUsers();
+        timers[i].recordSince(start, 0);
+      }
+      USERS_ENDED.increment();
+    }
 
-        if (installTime.getYear() < 2017 || installTime.getYear() > 2019 || systemTime.getYear() < 2017 || systemTime.getYear() > 2019) {
-          invalid++;
-          invalidLine = line;
-          process = false;
+    /**
+     * Timestamps are stored already decoded in columnar files, and only the columns used by the processors are read.
+     * When sharded, every shard reads the whole file and keeps the rows of its users.
+     */
+    private void consumeColumnar(Path filePath, long start, long end) throws IOException, InterruptedException {
+      System.out.println("Reading " + filePath + (start > 0 ? " from " + start : ""));
+
+      List<Integer> columns = new ArrayList<>(Arrays.asList(INSTALL_TIME, SYSTEM_TIME));
+      for (Column column : Column.values()) {
+        if (needs(column)) {
+          columns.add(column.field);
         }
+      }
 
-        if (installTime.until(systemTime, ChronoUnit.DAYS) < -3) {
-          invalid++;
-          invalidLine = line;
-          process = false;
+      try (ColumnarReader reader = new ColumnarReader(filePath, columns.stream().mapToInt(c -> c).toArray())) {
+        reader.range(start, end);
+        while (reader.nextBlock()) {
+          for (int i = 0; i < reader.rows(); i++) {
+            if (shards > 1 && shardOf(Long.hashCode(reader.epochMillis(INSTALL_TIME, i)), shards) != index) {
+              continue;
+            }
+            long installMillis = reader.epochMillis(INSTALL_TIME, i);
+            int installOffset = reader.offsetSeconds(INSTALL_TIME, i);
+            long systemMillis = reader.epochMillis(SYSTEM_TIME, i);
+            int systemOffset = reader.offsetSeconds(SYSTEM_TIME, i);
+            boolean hasInstallTime = installMillis != Long.MIN_VALUE;
+            if (SAMPLING.isSampled() && !(hasInstallTime ? SAMPLING.keep(UserIds.key(installMillis, installOffset))
+              : SAMPLING.keep(UserIds.key(systemMillis, systemOffset)))) {
+              SAMPLED_OUT.increment();
+              continue;
+            }
+            if (systemMillis == Long.MIN_VALUE || systemMillis == ColumnarWriter.INVALID_TIME) {
+              unparsable("unparsable system time");
+              continue;
+            }
+            if (!inRange(systemMillis + systemOffset * 1000L)) {
+              continue;
+            }
+            if (installMillis == ColumnarWriter.INVALID_TIME) {
+              unparsable("unparsable install time" + SEPARATOR + reader.dateTime(SYSTEM_TIME, i));
+              continue;
+            }
+
+            if (isValid(hasInstallTime, installMillis, installMillis + installOffset * 1000L,
+              systemMillis, systemMillis + systemOffset * 1000L)) {
+              int r = batch.add(hasInstallTime ? installMillis : RowBatch.NO_TIME, installOffset, systemMillis, systemOffset);
+              if (analyses) {
+                batch.setAnalyses(r, reader.string(Column.ANALYSES.field, i));
+              }
+              if (product) {
+                batch.setProduct(r, reader.string(Column.PRODUCT.field, i));
+              }
+              if (batch.isFull()) {
+                flush();
+              }
+            } else {
+              invalidLine = reader.dateTime(INSTALL_TIME, i) + SEPARATOR + reader.dateTime(SYSTEM_TIME, i);
+            }
+            countRow();
+          }
         }
       }
+      flush();
+    }
 
-      if (process) {
-        processors.forEach(p -> p.process(installTime, systemTime, fields));
+    private void flush() throws InterruptedException {
+      if (batch.size() > 0 && pipeline != null) {
+        pipeline.publish();
+        batch = pipeline.batch();
+      } else if (batch.size() > 0) {
+        for (Processor p : processors) {
+          p.prepare(batch);
+        }
+        for (int i = 0; i < processors.size(); i++) {
+          long start = System.nanoTime();
+          processors.get(i).process(batch);
+          timers[i].recordSince(start, batch.size());
+        }
+        batch.clear();
       }
+      ROWS.add(count - reportedCount);
+      reportedCount = count;
+    }
 
+    private boolean needs(Column column) {
+      return processors.stream().anyMatch(p -> p.columns().contains(column));
+    }
+
+    /**
+     * Both times must be in 2017-2019 (in their own offset), and the install time no more than 3 days after the system time.
+     * Local millis are epoch millis shifted by the offset.
+     */
+    private boolean isValid(boolean hasInstallTime, long installMillis, long installLocalMillis, long systemMillis, long systemLocalMillis) {
+      if (!hasInstallTime) {
+        installMissing++;
+        INSTALL_MISSING.increment();
+        return true;
+      }
+
+      boolean valid = true;
+      if (installLocalMillis < MIN_VALID_TIME || installLocalMillis >= MAX_VALID_TIME || systemLocalMillis < MIN_VALID_TIME || systemLocalMillis >= MAX_VALID_TIME) {
+        invalid++;
+        INVALID_TIME.increment();
+        valid = false;
+      }
+
+      // whole days, truncated towards zero like OffsetDateTime.until
+      if ((systemMillis - installMillis) / DAY_MILLIS < -3) {
+        invalid++;
+        INVALID_ORDER.increment();
+        valid = false;
+      }
+      return valid;
+    }
+
+    /**
+     * Rows with a system time or an install time that can't be parsed, which are invalid the same way whether they
+     * come from CSV or from columnar files (which keep them as {@link ColumnarWriter#INVALID_TIME})
+     */
+    private void unparsable(String example) {
+      invalid++;
+      INVALID_FORMAT.increment();
+      invalidLine = example;
+      countRow();
+    }
+
+    private void countRow() {
       count++;
       if (count % 100000 == 0) {
-        System.out.println("  Processed " + NUMBER_FORMAT.format(count)
+        System.out.println("  " + (shards > 1 ? "[shard " + index + "] " : "") + "Processed " + NUMBER_FORMAT.format(count)
           + ", Skipped: " + NUMBER_FORMAT.format(installMissing)
           + ", Invalid: " + NUMBER_FORMAT.format(invalid)
           + ", Example invalid: " + invalidLine);
       }
     }
-
-    for (Processor p : processors) {
-      System.out.println("\n############################");
-      p.after();
-    }
   }
 
   public interface RunnableException {
     void run() throws Exception;
   }
 
+  /**
+   * Keeps the failure of the task, for the thread that joins the one running it to {@link #rethrow()} it
+   */
   public class RunnableExceptionWrapper implements Runnable {
     private final RunnableException r;
+    private volatile Throwable failure;
 
     public RunnableExceptionWrapper(RunnableException r) {
       this.r = r;
@@ -144,8 +656,25 @@ public class Load {
     public void run() {
       try {
         r.run();
-      } catch (Exception e) {
-        e.printStackTrace();
+      } catch (Exception | Error e) {
+        failure = e;
+      }
+    }
+
+    /**
+     * Throws the failure of the task, if any. Must be called after the thread running it is joined.
+     */
+    public void rethrow() throws IOException, InterruptedException {
+      if (failure instanceof IOException) {
+        throw (IOException) failure;
+      } else if (failure instanceof InterruptedException) {
+        throw (InterruptedException) failure;
+      } else if (failure instanceof RuntimeException) {
+        throw (RuntimeException) failure;
+      } else if (failure instanceof Error) {
+        throw (Error) failure;
+      } else if (failure != null) {
+        throw new IllegalStateException(failure);
       }
     }
   }
@@ -0,0 +1,114 @@
+package meneses.kibana;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static meneses.kibana.Save.SEPARATOR;
+
+/**
+ * Index of a partitioned export (see {@link Save}), in the directory of the partitions: for each partition file, its
+ * number of rows and the min and max system times of its rows, compared by their local date-time. {@link Load} uses it
+ * to skip the partitions outside of a time range without opening them.
+ * <p>
+ * It's a CSV file with a line per partition. Partitions of rows without a valid system time have no min and max.
+ */
+class Manifest {
+  static final String FILE_NAME = "manifest.csv";
+  private static final String HEADER = String.join(SEPARATOR, "partition", "rows", "min_time", "max_time");
+
+  final List<Partition> partitions;
+
+  Manifest(List<Partition> partitions) {
+    this.partitions = partitions;
+  }
+
+  static Manifest read(Path directory) throws IOException {
+    Path path = directory.resolve(FILE_NAME);
+    if (!Files.exists(path)) {
+      throw new IOException("No " + FILE_NAME + " in " + directory + ": it's not a complete partitioned export");
+    }
+    List<Partition> partitions = new ArrayList<>();
+    try (BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+      String line = reader.readLine();
+      if (!HEADER.equals(line)) {
+        throw new IOException("Unexpected header in " + path + ": " + line);
+      }
+      while ((line = reader.readLine()) != null) {
+        String[] values = line.split(SEPARATOR, -1);
+        if (values.length != 4) {
+          throw new IOException("Invalid line in " + path + ": " + line);
+        }
+        partitions.add(new Partition(values[0], Long.parseLong(values[1]), values[2].isEmpty() ? null : values[2],
+          values[3].isEmpty() ? null : values[3]));
+      }
+    }
+    return new Manifest(partitions);
+  }
+
+  /**
+   * Replaces the manifest atomically, so that a directory with a manifest always has all the partitions it lists
+   */
+  void write(Path directory) throws IOException {
+    Path path = directory.resolve(FILE_NAME);
+    Path tmp = directory.resolve(FILE_NAME + ".tmp");
+    try (Writer writer = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+      writer.write(HEADER + "\n");
+      for (Partition p : partitions) {
+        writer.write(String.join(SEPARATOR, p.file, Long.toString(p.rows), p.min == null ? "" : p.min, p.max == null ? "" : p.max) + "\n");
+      }
+    }
+    Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /**
+   * Files of the partitions that may have rows with a local system time in [from, until), in local millis as if
+   * they were UTC. Partitions without times are only selected when the range is unbounded.
+   */
+  List<Path> select(Path directory, long fromLocalMillis, long untilLocalMillis) {
+    boolean unbounded = fromLocalMillis == Long.MIN_VALUE && untilLocalMillis == Long.MAX_VALUE;
+    List<Path> files = new ArrayList<>();
+    for (Partition p : partitions) {
+      if (unbounded || (p.min != null && p.maxLocalMillis() >= fromLocalMillis && p.minLocalMillis() < untilLocalMillis)) {
+        files.add(directory.resolve(p.file));
+      }
+    }
+    Collections.sort(files);
+    return files;
+  }
+
+  static final class Partition {
+    final String file;
+    final long rows;
+    final String min;
+    final String max;
+
+    Partition(String file, long rows, String min, String max) {
+      this.file = file;
+      this.rows = rows;
+      this.min = min;
+      this.max = max;
+    }
+
+    long minLocalMillis() {
+      return localMillis(min);
+    }
+
+    long maxLocalMillis() {
+      return localMillis(max);
+    }
+
+    private static long localMillis(String dateTime) {
+      TimestampDecoder decoder = new TimestampDecoder();
+      decoder.decode(dateTime);
+      return decoder.localMillis();
+    }
+  }
+}
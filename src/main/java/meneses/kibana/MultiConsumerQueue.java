@@ -0,0 +1,84 @@
+package meneses.kibana;
+
+/**
+ * Single producer hand-off of lines, in batches (see {@link BatchRing}), to several consumers, each one getting whole
+ * batches through its own {@link #consumer()}.
+ * <p>
+ * Each slot has a sequence that tells its state for a position p: p when it's free to be filled, p + 1 once published,
+ * and p + {@link #CAPACITY} once consumed, which frees it for the next round. Consumers claim positions by moving the
+ * shared tail, and release slots in any order. Once the queue is closed and all its batches are claimed, every consumer
+ * gets null.
+ */
+public class MultiConsumerQueue extends BatchRing {
+  private final Sequence tail = new Sequence();
+
+  /**
+   * A new consumer of the lines, to be used by a single thread
+   */
+  public LineSource consumer() {
+    return new Consumer();
+  }
+
+  @Override Batch claim(long position) throws InterruptedException {
+    Batch batch = ring[(int) position & (CAPACITY - 1)];
+    for (int attempt = 0; batch.sequence != position; attempt++) {
+      idle(attempt);
+    }
+    return batch;
+  }
+
+  @Override void publish(Batch batch, long position) {
+    batch.sequence = position + 1;
+  }
+
+  @Override long released() {
+    // batches claimed by a consumer, which may still be consuming them
+    return tail.get();
+  }
+
+  @Override long consumed() {
+    return tail.get();
+  }
+
+  private final class Consumer implements LineSource {
+    private Batch batch;
+    private long position;
+    private int idx;
+
+    @Override public String take() throws InterruptedException {
+      while (batch == null || idx == batch.size) {
+        if (batch != null) {
+          batch.sequence = position + CAPACITY;
+          batch = null;
+        }
+        long start = System.nanoTime();
+        boolean more = claimNext();
+        CONSUMER_WAIT.add(System.nanoTime() - start);
+        if (!more) {
+          return null;
+        }
+      }
+      return batch.lines[idx++];
+    }
+
+    private boolean claimNext() throws InterruptedException {
+      for (int attempt = 0; ; attempt++) {
+        long t = tail.get();
+        Batch b = ring[(int) t & (CAPACITY - 1)];
+        if (b.sequence == t + 1) {
+          if (tail.compareAndSet(t, t + 1)) {
+            batch = b;
+            position = t;
+            idx = 0;
+            return true;
+          }
+          attempt = 0;
+        } else if (closed && t >= end) {
+          return false;
+        } else {
+          idle(attempt);
+        }
+      }
+    }
+  }
+}
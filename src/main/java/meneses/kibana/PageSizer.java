@@ -0,0 +1,64 @@
+package meneses.kibana;
+
+/**
+ * Size of the next page of an export, adapted to the pages fetched so far so that a page takes about a target time to
+ * fetch and has at most a given number of bytes of sources.
+ * <p>
+ * The cost of a hit, in time and in bytes, is a moving average over the pages. The next size is the one that would
+ * meet both targets at that cost. It shrinks right away when pages get slower or bigger, but grows by at most half per
+ * page, and it's halved when a fetch fails. Not thread safe: each export has its own.
+ */
+class PageSizer {
+  // index.max_result_window, the largest page Elasticsearch returns by default
+  static final int MAX_SIZE = 10_000;
+  private static final double WEIGHT = 0.3;
+
+  private final int minSize;
+  private final int maxSize;
+  private final long targetNanos;
+  private final long maxBytes;
+
+  private int size;
+  private double nanosPerHit = Double.NaN;
+  private double bytesPerHit = Double.NaN;
+
+  PageSizer(int initialSize, int minSize, int maxSize, long targetMillis, long maxBytes) {
+    this.minSize = minSize;
+    this.maxSize = maxSize;
+    this.targetNanos = targetMillis * 1_000_000;
+    this.maxBytes = maxBytes;
+    this.size = clamp(initialSize);
+  }
+
+  int size() {
+    return size;
+  }
+
+  /**
+   * Records a page of the given number of hits, fetched in the given time, with the given bytes of sources
+   */
+  void record(int hits, long nanos, long bytes) {
+    if (hits == 0) {
+      return;
+    }
+    nanosPerHit = average(nanosPerHit, (double) nanos / hits);
+    bytesPerHit = average(bytesPerHit, (double) bytes / hits);
+    double ideal = Math.min(targetNanos / nanosPerHit, bytesPerHit > 0 ? maxBytes / bytesPerHit : Double.MAX_VALUE);
+    size = clamp((int) Math.min(ideal, 1.5 * size));
+  }
+
+  /**
+   * A fetch failed, possibly because the page was too big for the cluster to return in time
+   */
+  void failed() {
+    size = clamp(size / 2);
+  }
+
+  private static double average(double average, double value) {
+    return Double.isNaN(average) ? value : WEIGHT * value + (1 - WEIGHT) * average;
+  }
+
+  private int clamp(int value) {
+    return Math.max(minSize, Math.min(maxSize, value));
+  }
+}
@@ -0,0 +1,233 @@
+package meneses.kibana;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import meneses.kibana.metrics.Timer;
+import meneses.kibana.processor.Processor;
+import meneses.kibana.processor.RowBatch;
+
+/**
+ * Runs each processor on its own thread, so that processors use separate cores instead of adding up their cost per row.
+ * <p>
+ * Every batch filled by the producer is {@link Processor#prepare(RowBatch) prepared} on its thread, then broadcast to
+ * all processors, which only read it. A batch is recycled once all processors are done with it, and there are only a
+ * few of them, so the producer waits for the slowest processor when it gets too far ahead.
+ * <p>
+ * {@link #after(List, List)} then runs the {@link Processor#after()} of each processor as soon as it has processed all
+ * rows and its {@link Processor#dependencies()} have run theirs.
+ */
+class ProcessorPipeline {
+  private static final Slot END = new Slot(null);
+
+  private final List<Worker> workers = new ArrayList<>();
+  private final List<Processor> processors;
+  private final BlockingQueue<Slot> free;
+  // batch being filled
+  private Slot current;
+
+  /**
+   * @param timers to record the time spent by each processor
+   * @param batches number of batches that processors can be behind the producer
+   */
+  ProcessorPipeline(List<Processor> processors, Timer[] timers, int batches, String name) {
+    this.processors = processors;
+    this.free = new ArrayBlockingQueue<>(batches);
+    for (int i = 0; i < batches; i++) {
+      free.add(new Slot(new RowBatch()));
+    }
+    current = free.remove();
+    for (int i = 0; i < processors.size(); i++) {
+      Worker worker = new Worker(processors.get(i), timers[i], batches, name + "-" + processors.get(i).getClass().getSimpleName());
+      workers.add(worker);
+      worker.start();
+    }
+  }
+
+  /**
+   * Batch to fill, which is empty until filled
+   */
+  RowBatch batch() {
+    return current.batch;
+  }
+
+  /**
+   * Hands the batch returned by {@link #batch()} to all processors, and waits for another one to be free
+   */
+  void publish() throws InterruptedException {
+    for (Processor p : processors) {
+      p.prepare(current.batch);
+    }
+    current.pending.set(workers.size());
+    for (Worker worker : workers) {
+      worker.put(current);
+    }
+    current = free.take();
+  }
+
+  /**
+   * Ends the batches. The returned futures, one per processor, are done once it has processed all of them.
+   */
+  List<CompletableFuture<Void>> close() throws InterruptedException {
+    List<CompletableFuture<Void>> processed = new ArrayList<>();
+    for (Worker worker : workers) {
+      worker.put(END);
+      processed.add(worker.done);
+    }
+    return processed;
+  }
+
+  private void release(Slot slot) {
+    if (slot.pending.decrementAndGet() == 0) {
+      slot.batch.clear();
+      free.add(slot);
+    }
+  }
+
+  /**
+   * Runs the after() of each processor on its own thread, once the future of the processor is done and its dependencies
+   * have run their after(), which they must come before in the list. Reports are printed in the order of the
+   * processors, as in a sequential run, each one as soon as the ones before are complete.
+   */
+  static void after(List<Processor> processors, List<CompletableFuture<Void>> processed) {
+    ThreadOutput output = new ThreadOutput(System.out);
+    ExecutorService executor = Executors.newFixedThreadPool(processors.size());
+    List<CompletableFuture<ByteArrayOutputStream>> reports = new ArrayList<>();
+    try {
+      System.setOut(new PrintStream(output, true));
+      for (int i = 0; i < processors.size(); i++) {
+        Processor p = processors.get(i);
+        List<CompletableFuture<?>> before = new ArrayList<>();
+        before.add(processed.get(i));
+        for (Processor dependency : p.dependencies()) {
+          int index = processors.indexOf(dependency);
+          if (index < 0 || index >= i) {
+            throw new IllegalArgumentException(p.getClass().getSimpleName() + " must come after its dependencies");
+          }
+          before.add(reports.get(index));
+        }
+        reports.add(CompletableFuture.allOf(before.toArray(new CompletableFuture<?>[0]))
+          .thenApplyAsync(v -> output.capture(p::after), executor));
+      }
+
+      for (CompletableFuture<ByteArrayOutputStream> report : reports) {
+        output.original.println("\n############################");
+        output.original.print(report.join().toString());
+      }
+    } catch (CompletionException e) {
+      throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
+    } finally {
+      System.setOut(output.original);
+      executor.shutdown();
+    }
+  }
+
+  private static final class Slot {
+    private final RowBatch batch;
+    // processors that didn't process the batch yet
+    private final AtomicInteger pending = new AtomicInteger();
+
+    private Slot(RowBatch batch) {
+      this.batch = batch;
+    }
+  }
+
+  private final class Worker extends Thread {
+    private final Processor processor;
+    private final Timer timer;
+    private final BlockingQueue<Slot> slots;
+    private final CompletableFuture<Void> done = new CompletableFuture<>();
+
+    private Worker(Processor processor, Timer timer, int batches, String name) {
+      super(name);
+      this.processor = processor;
+      this.timer = timer;
+      this.slots = new ArrayBlockingQueue<>(batches + 1);
+    }
+
+    private void put(Slot slot) throws InterruptedException {
+      slots.put(slot);
+    }
+
+    @Override public void run() {
+      Throwable failure = null;
+      try {
+        while (true) {
+          Slot slot = slots.take();
+          if (slot == END) {
+            break;
+          }
+          try {
+            if (failure == null) {
+              long start = System.nanoTime();
+              processor.process(slot.batch);
+              timer.recordSince(start, slot.batch.size());
+            }
+          } catch (RuntimeException | Error e) {
+            // keeps releasing the batches, so that the producer and the other processors don't wait forever
+            failure = e;
+          } finally {
+            release(slot);
+          }
+        }
+      } catch (InterruptedException e) {
+        failure = e;
+      }
+      if (failure == null) {
+        done.complete(null);
+      } else {
+        done.completeExceptionally(failure);
+      }
+    }
+  }
+
+  /**
+   * Output that goes to a buffer for threads capturing it, and to the original stream for the others
+   */
+  private static final class ThreadOutput extends OutputStream {
+    private final PrintStream original;
+    private final ThreadLocal<ByteArrayOutputStream> buffer = new ThreadLocal<>();
+
+    private ThreadOutput(PrintStream original) {
+      this.original = original;
+    }
+
+    ByteArrayOutputStream capture(Runnable r) {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      buffer.set(out);
+      try {
+        r.run();
+      } finally {
+        buffer.remove();
+      }
+      return out;
+    }
+
+    private OutputStream target() {
+      ByteArrayOutputStream out = buffer.get();
+      return out != null ? out : original;
+    }
+
+    @Override public void write(int b) throws IOException {
+      target().write(b);
+    }
+
+    @Override public void write(byte[] b, int off, int len) throws IOException {
+      target().write(b, off, len);
+    }
+
+    @Override public void flush() throws IOException {
+      target().flush();
+    }
+  }
+}
@@ -1,40 +1,81 @@
 package meneses.kibana;
 
-import java.util.concurrent.LinkedBlockingQueue;
-
 /**
- * Improve performance reducing contention by using a BlockingQueue by putting and taking batches of items
+ * Single producer, single consumer hand-off of lines, in batches (see {@link BatchRing}).
+ * <p>
+ * The producer publishes batches by moving the head, and the consumer releases them by moving the tail. Each side only
+ * reads the other's counter when its cached copy doesn't let it go on, so they rarely touch the same cache line.
  */
-public class Queue {
-  private static final int SIZE = 1_000;
-  private LinkedBlockingQueue<String[]> queue = new LinkedBlockingQueue<>(100);
-  private String[] writeBuffer = new String[SIZE];
-  private String[] readBuffer;
+public class Queue extends BatchRing implements LineSource {
+  private final Sequence head = new Sequence();
+  private final Sequence tail = new Sequence();
+
+  // producer
+  private long cachedTail = 0;
 
+  // consumer
+  private long readPos = 0;
+  private long cachedHead = 0;
+  private Batch readBatch;
   private int readIdx = 0;
-  private int writeIdx = 0;
 
-  public String take() throws InterruptedException {
-    if (readBuffer == null || readIdx == readBuffer.length) {
-      readBuffer = queue.take();
+  @Override public String take() throws InterruptedException {
+    while (readBatch == null || readIdx == readBatch.size) {
+      if (readBatch != null) {
+        readBatch = null;
+        tail.setOrdered(++readPos);
+      }
+      if (readPos == cachedHead) {
+        long start = System.nanoTime();
+        boolean more = awaitHead();
+        CONSUMER_WAIT.add(System.nanoTime() - start);
+        if (!more) {
+          return null;
+        }
+      }
+      readBatch = ring[(int) readPos & (CAPACITY - 1)];
       readIdx = 0;
     }
-    return readBuffer[readIdx++];
+    return readBatch.lines[readIdx++];
   }
 
-  public void put(String line) throws InterruptedException {
-    writeBuffer[writeIdx] = line;
-    writeIdx++;
+  /**
+   * Waits for a batch to be published. Returns false if there are no more.
+   */
+  private boolean awaitHead() throws InterruptedException {
+    for (int attempt = 0; ; attempt++) {
+      cachedHead = head.get();
+      if (readPos < cachedHead) {
+        return true;
+      }
+      if (closed) {
+        // the last batch is published before closing
+        cachedHead = head.get();
+        return readPos < cachedHead;
+      }
+      idle(attempt);
+    }
+  }
 
-    if (writeIdx == SIZE) {
-      queue.put(writeBuffer);
-      writeBuffer = new String[SIZE];
-      writeIdx = 0;
+  @Override Batch claim(long position) throws InterruptedException {
+    for (int attempt = 0; position - cachedTail >= CAPACITY; attempt++) {
+      cachedTail = tail.get();
+      if (position - cachedTail >= CAPACITY) {
+        idle(attempt);
+      }
     }
+    return ring[(int) position & (CAPACITY - 1)];
+  }
+
+  @Override void publish(Batch batch, long position) {
+    head.setOrdered(position + 1);
+  }
+
+  @Override long released() {
+    return cachedTail = tail.get();
   }
 
-  public void close() throws InterruptedException {
-    queue.put(writeBuffer);
-    queue.put(new String[1]);
+  @Override long consumed() {
+    return tail.get();
   }
 }
@@ -0,0 +1,177 @@
+package meneses.kibana;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+import meneses.kibana.metrics.Counter;
+import meneses.kibana.metrics.Metrics;
+import meneses.kibana.metrics.MetricsReporter;
+import meneses.kibana.metrics.Timer;
+import meneses.kibana.processor.Processor;
+import meneses.kibana.processor.RetentionProcessor;
+import meneses.kibana.processor.RowBatch;
+import meneses.kibana.processor.UsersProcessor;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.index.query.BoolQueryBuilder;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.search.aggregations.AggregationBuilders;
+import org.elasticsearch.search.aggregations.bucket.composite.CompositeAggregation;
+import org.elasticsearch.search.aggregations.bucket.composite.CompositeAggregationBuilder;
+import org.elasticsearch.search.aggregations.bucket.composite.DateHistogramValuesSourceBuilder;
+import org.elasticsearch.search.aggregations.bucket.composite.TermsValuesSourceBuilder;
+import org.elasticsearch.search.aggregations.bucket.histogram.DateHistogramInterval;
+import org.elasticsearch.search.aggregations.metrics.max.Max;
+import org.elasticsearch.search.aggregations.metrics.min.Min;
+import org.elasticsearch.search.builder.SearchSourceBuilder;
+import org.joda.time.DateTimeZone;
+
+import static org.elasticsearch.index.query.QueryBuilders.boolQuery;
+import static org.elasticsearch.index.query.QueryBuilders.existsQuery;
+import static org.elasticsearch.index.query.QueryBuilders.rangeQuery;
+
+/**
+ * Produces the reports of {@link RetentionProcessor} and {@link UsersProcessor} from aggregations computed by
+ * Elasticsearch, instead of exporting every document with {@link Download} and loading it with {@link Load}. Only the
+ * buckets are transferred:
+ * <ul>
+ * <li>pings per month and product, from a composite aggregation of a monthly date_histogram and the product</li>
+ * <li>pings per user (install time) and month, with the first and last ping of each, from a composite aggregation of the
+ * install time and the month, with min and max sub-aggregations</li>
+ * </ul>
+ * Composite aggregations are paged with their after key, {@code -Daggregate.pageSize} buckets at a time. Buckets are
+ * fed to the processors, which then print the same reports as for loaded rows.
+ * <p>
+ * Elasticsearch only keeps the instant of a date, so unlike {@link Load} months are the ones of the system time in
+ * UTC (or in {@code -Daggregate.timeZone}) rather than in its own offset, and users are identified by the instant of
+ * their install time. Only the range of the times is validated, not their order, which would need a script.
+ * {@link meneses.kibana.processor.PerformanceProcessor} needs the analyses of each ping, so it's not supported.
+ * <p>
+ * Usage: {@code RemoteAggregate <password>}, with {@code -Ddownload.url} to use another cluster, such as a local
+ * stand-in returning recorded responses.
+ */
+public class RemoteAggregate {
+  private static final int PAGE_SIZE = Integer.getInteger("aggregate.pageSize", 10_000);
+  private static final DateTimeZone TIME_ZONE = DateTimeZone.forID(System.getProperty("aggregate.timeZone", "UTC"));
+  // same as Load
+  private static final int APPROXIMATE_PRECISION = Integer.getInteger("load.approximate", 0);
+  private static final String SYSTEM_TIME = "timestamp";
+  private static final String INSTALL_TIME = "install_time";
+  private static final String PRODUCT = "sonarlint_product";
+  private static final String MIN_VALID_TIME = "2017-01-01T00:00:00Z";
+  private static final String MAX_VALID_TIME = "2020-01-01T00:00:00Z";
+
+  private static final Timer PAGE_FETCHES = Metrics.timer("aggregate.pages.fetch");
+  private static final Counter BUCKETS = Metrics.counter("aggregate.buckets");
+
+  private final RestHighLevelClient client;
+
+  public RemoteAggregate(RestHighLevelClient client) {
+    this.client = client;
+  }
+
+  public static void main(String[] args) throws IOException {
+    long start = System.currentTimeMillis();
+    RetentionProcessor retention = new RetentionProcessor();
+    UsersProcessor users = new UsersProcessor(retention, APPROXIMATE_PRECISION);
+
+    MetricsReporter reporter = MetricsReporter.start();
+    try (RestHighLevelClient client = Download.createClient(args[0])) {
+      new RemoteAggregate(client).aggregate(retention, users);
+    } finally {
+      reporter.close();
+    }
+    System.out.println(System.currentTimeMillis() - start + " ms");
+  }
+
+  public void aggregate(RetentionProcessor retention, UsersProcessor users) throws IOException {
+    List<Processor> processors = Arrays.asList(retention, users);
+    processors.forEach(Processor::before);
+
+    // rows without install time are counted in the pings, like in Load
+    BoolQueryBuilder pingsQuery = boolQuery()
+      .filter(rangeQuery(SYSTEM_TIME).gte(MIN_VALID_TIME).lt(MAX_VALID_TIME))
+      .filter(boolQuery()
+        .should(rangeQuery(INSTALL_TIME).gte(MIN_VALID_TIME).lt(MAX_VALID_TIME))
+        .should(boolQuery().mustNot(existsQuery(INSTALL_TIME)))
+        .minimumShouldMatch(1));
+    CompositeAggregationBuilder pings = new CompositeAggregationBuilder("pings", Arrays.asList(
+      month(),
+      new TermsValuesSourceBuilder("product").field(PRODUCT).missingBucket(true)));
+    long pingBuckets = page(pingsQuery, pings, b -> {
+      Object product = b.getKey().get("product");
+      users.addPings(month(b), product == null ? "" : product.toString(), (int) b.getDocCount());
+    });
+
+    QueryBuilder usersQuery = boolQuery()
+      .filter(rangeQuery(SYSTEM_TIME).gte(MIN_VALID_TIME).lt(MAX_VALID_TIME))
+      .filter(rangeQuery(INSTALL_TIME).gte(MIN_VALID_TIME).lt(MAX_VALID_TIME));
+    CompositeAggregationBuilder userMonths = new CompositeAggregationBuilder("users", Arrays.asList(
+      new TermsValuesSourceBuilder("install").field(INSTALL_TIME),
+      month()))
+      .subAggregation(AggregationBuilders.min("first").field(SYSTEM_TIME))
+      .subAggregation(AggregationBuilders.max("last").field(SYSTEM_TIME));
+    long userBuckets = page(usersQuery, userMonths, b -> {
+      long installMillis = ((Number) b.getKey().get("install")).longValue();
+      long first = (long) ((Min) b.getAggregations().get("first")).getValue();
+      long last = (long) ((Max) b.getAggregations().get("last")).getValue();
+      retention.addUse(installMillis, 0, first, 0, last, 0);
+      users.addUserPings(installMillis, 0, month(b), (int) b.getDocCount());
+    });
+    System.out.println("Aggregated " + pingBuckets + " buckets of pings and " + userBuckets + " buckets of users");
+
+    for (Processor p : processors) {
+      System.out.println("\n############################");
+      p.after();
+    }
+  }
+
+  private static DateHistogramValuesSourceBuilder month() {
+    return new DateHistogramValuesSourceBuilder("month").field(SYSTEM_TIME).dateHistogramInterval(DateHistogramInterval.MONTH).timeZone(TIME_ZONE);
+  }
+
+  /**
+   * Month of the bucket, see {@link RowBatch#month(long)}. Keys of date histograms are the start of the month in the
+   * time zone, which is the same month in local millis.
+   */
+  private static int month(CompositeAggregation.Bucket bucket) {
+    long startMillis = ((Number) bucket.getKey().get("month")).longValue();
+    return RowBatch.month(startMillis + TIME_ZONE.getOffset(startMillis));
+  }
+
+  /**
+   * Requests the pages of buckets of the composite aggregation, each one after the last bucket of the previous one,
+   * until a page is empty. Returns the number of buckets.
+   */
+  private long page(QueryBuilder query, CompositeAggregationBuilder aggregation, Consumer<CompositeAggregation.Bucket> consumer) throws IOException {
+    aggregation.size(PAGE_SIZE);
+    long buckets = 0;
+    Map<String, Object> after = null;
+    do {
+      if (after != null) {
+        aggregation.aggregateAfter(after);
+      }
+      SearchSourceBuilder source = new SearchSourceBuilder()
+        .query(query)
+        .size(0)
+        .aggregation(aggregation)
+        .timeout(TimeValue.timeValueMinutes(10));
+      long start = System.nanoTime();
+      SearchResponse response = client.search(new SearchRequest(Download.INDEX).source(source), RequestOptions.DEFAULT);
+      CompositeAggregation result = response.getAggregations().get(aggregation.getName());
+      List<? extends CompositeAggregation.Bucket> page = result.getBuckets();
+      PAGE_FETCHES.recordSince(start, page.size());
+      BUCKETS.add(page.size());
+
+      page.forEach(consumer);
+      buckets += page.size();
+      after = page.isEmpty() ? null : result.afterKey();
+    } while (after != null);
+    return buckets;
+  }
+}
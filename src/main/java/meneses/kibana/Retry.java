@@ -0,0 +1,88 @@
+package meneses.kibana;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.ConnectException;
+import java.util.concurrent.ThreadLocalRandom;
+import meneses.kibana.metrics.Counter;
+import meneses.kibana.metrics.Metrics;
+import org.elasticsearch.ElasticsearchStatusException;
+import org.elasticsearch.common.xcontent.XContentParseException;
+import org.elasticsearch.rest.RestStatus;
+
+/**
+ * Retries requests to the cluster that failed for reasons that may not last, waiting exponentially longer between
+ * attempts, with jitter so that concurrent exports don't retry together.
+ */
+class Retry {
+  private static final Counter RETRIES = Metrics.counter("download.retries");
+
+  private final int attempts;
+  private final long initialBackoffMillis;
+  private final long maxBackoffMillis;
+
+  Retry(int attempts, long initialBackoffMillis, long maxBackoffMillis) {
+    this.attempts = attempts;
+    this.initialBackoffMillis = initialBackoffMillis;
+    this.maxBackoffMillis = maxBackoffMillis;
+  }
+
+  interface Request<T> {
+    T run() throws IOException;
+  }
+
+  interface Listener {
+    void failed(Exception e);
+  }
+
+  /**
+   * Runs the request until it succeeds or fails for good. Failures that may not last are the ones of the connection
+   * and the statuses of an overloaded or unavailable cluster, unless {@code onlyUnsent} is set, in which case only
+   * requests that certainly didn't reach the cluster are retried, for requests that aren't idempotent.
+   *
+   * @param listener called on each failure that is retried
+   */
+  <T> T run(String what, boolean onlyUnsent, Listener listener, Request<T> request) throws IOException {
+    long backoff = initialBackoffMillis;
+    for (int attempt = 1; ; attempt++) {
+      try {
+        return request.run();
+      } catch (IOException | ElasticsearchStatusException e) {
+        if (attempt >= attempts || !isTransient(e, onlyUnsent)) {
+          throw e;
+        }
+        RETRIES.increment();
+        listener.failed(e);
+        long wait = backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+        System.out.println("Retrying " + what + " in " + wait + " ms after: " + e);
+        sleep(wait);
+        backoff = Math.min(maxBackoffMillis, 2 * backoff);
+      }
+    }
+  }
+
+  private static boolean isTransient(Exception e, boolean onlyUnsent) {
+    if (e instanceof ConnectException) {
+      return true;
+    }
+    if (onlyUnsent) {
+      return false;
+    }
+    if (e instanceof ElasticsearchStatusException) {
+      RestStatus status = ((ElasticsearchStatusException) e).status();
+      return status == RestStatus.TOO_MANY_REQUESTS || status == RestStatus.BAD_GATEWAY || status == RestStatus.SERVICE_UNAVAILABLE
+        || status == RestStatus.GATEWAY_TIMEOUT;
+    }
+    // a response that can't be parsed would be the same again
+    return e instanceof IOException && !(e.getCause() instanceof XContentParseException);
+  }
+
+  private static void sleep(long millis) throws InterruptedIOException {
+    try {
+      Thread.sleep(millis);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting to retry");
+    }
+  }
+}
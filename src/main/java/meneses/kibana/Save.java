@@ -1,68 +1,310 @@
 package meneses.kibana;
 
-import java.io.BufferedWriter;
 import java.io.IOException;
-import java.io.Writer;
-import java.nio.charset.StandardCharsets;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.DateTimeException;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import meneses.kibana.columnar.ColumnarWriter;
+import meneses.kibana.columnar.Encoding;
+import meneses.kibana.metrics.Counter;
+import meneses.kibana.metrics.Metrics;
+import meneses.kibana.processor.RowBatch;
 import org.elasticsearch.search.SearchHit;
 
+/**
+ * Writes exported documents either as CSV or, with {@code -Dsave.format=columnar}, in the columnar format read by
+ * {@link meneses.kibana.columnar.ColumnarReader}.
+ * <p>
+ * With {@code -Dsave.partitioned=true} the export is a directory instead of a file, with a file per month of the system
+ * time of the rows (the {@code timestamp} field, in its own offset), such as {@code 2019-03.csv}, and a
+ * {@link Manifest} of the partitions written once all of them are complete. Rows without a valid system time go to
+ * {@code no-time.csv}. With an export sorted by time (the default of {@link Download}), partitions are filled one after
+ * the other.
+ */
 public class Save {
-  private static final String[] FIELDS = {"install_time", "analyses", "connected_mode_used", "system_time", "sonarlint_version",
+  static final String[] FIELDS = {"install_time", "analyses", "connected_mode_used", "system_time", "sonarlint_version",
     "sonarlint_product", "timestamp", "connected_mode_used", "connected_mode_sonarcloud", "type", "days_of_use", "days_since_installation"};
 
+  static final Encoding[] ENCODINGS = {Encoding.TIMESTAMP, Encoding.STRING, Encoding.DICTIONARY, Encoding.TIMESTAMP, Encoding.DICTIONARY,
+    Encoding.DICTIONARY, Encoding.TIMESTAMP, Encoding.DICTIONARY, Encoding.DICTIONARY, Encoding.DICTIONARY, Encoding.DICTIONARY, Encoding.DICTIONARY};
+
   static final String FILE_PATH = "/home/meneses/inactive-sonarlint-telemetry-2019.csv";
   static final String SEPARATOR = ";";
+  static final Format FORMAT = Format.valueOf(System.getProperty("save.format", "csv").toUpperCase());
+  static final boolean PARTITIONED = Boolean.parseBoolean(System.getProperty("save.partitioned", "false"));
+  // column of the system time, by the month of which exports are partitioned
+  private static final int PARTITION_TIME = 6;
+  private static final int NO_TIME = Integer.MIN_VALUE;
+  private static final Counter NO_SOURCE = Metrics.counter("save.skipped.noSource");
+  private static final Counter NOT_OBJECT = Metrics.counter("save.skipped.notObject");
+
+  public enum Format {
+    CSV(".csv"),
+    COLUMNAR(ColumnarWriter.EXTENSION);
+
+    private final String extension;
+
+    Format(String extension) {
+      this.extension = extension;
+    }
+  }
 
-  private Writer writer;
+  private final Path path;
+  private final Format format;
+  private final boolean partitioned;
+  private FileChannel channel;
+  private OutputStream out;
+  private SourceSerializer serializer;
+  private ColumnarWriter columnarWriter;
+
+  // partitioned exports: partitions by month, see RowBatch.month
+  private final Map<Integer, Partition> partitions = new HashMap<>();
+  private final TimestampDecoder times = new TimestampDecoder();
 
   private int linesProcessed = 0;
   private int linesSkipped = 0;
 
+  public Save() {
+    this(exportPath(""));
+  }
+
+  public Save(Path path) {
+    this(path, FORMAT, PARTITIONED);
+  }
+
+  public Save(Path path, Format format) {
+    this(path, format, false);
+  }
+
+  /**
+   * @param partitioned whether the path is a directory of partitions by month rather than a file
+   */
+  public Save(Path path, Format format, boolean partitioned) {
+    this.path = path;
+    this.format = format;
+    this.partitioned = partitioned;
+  }
+
+  /**
+   * File (or directory, if partitioned) used by the n-th slice of a parallel export
+   */
+  static Path partitionPath(int slice) {
+    return exportPath("-" + slice);
+  }
+
+  private static Path exportPath(String suffix) {
+    return Paths.get(FILE_PATH.replace(".csv", suffix + (PARTITIONED ? "" : FORMAT.extension)));
+  }
+
   public void before() throws IOException {
-    writer = new BufferedWriter(Files.newBufferedWriter(Paths.get(FILE_PATH), StandardCharsets.UTF_8));
-    writeHeader(writer);
+    if (partitioned) {
+      Files.createDirectories(path);
+      // the directory is only a complete export once the new manifest is written
+      Files.deleteIfExists(path.resolve(Manifest.FILE_NAME));
+      serializer = new SourceSerializer(FIELDS, SEPARATOR.charAt(0), null);
+    } else {
+      open(0L);
+    }
+  }
+
+  /**
+   * Appends to an existing export, after dropping anything written past the given length (see {@link #flush()})
+   */
+  public void resume(long length) throws IOException {
+    if (partitioned) {
+      throw new IllegalArgumentException("Partitioned exports can't be resumed");
+    }
+    open(length);
+  }
+
+  private void open(long length) throws IOException {
+    channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+    channel.truncate(length);
+    channel.position(length);
+    out = Channels.newOutputStream(channel);
+    serializer = new SourceSerializer(FIELDS, SEPARATOR.charAt(0), out);
+    if (format == Format.COLUMNAR) {
+      columnarWriter = new ColumnarWriter(out, FIELDS, ENCODINGS, length > 0);
+    } else if (length == 0) {
+      serializer.writeRaw(String.join(SEPARATOR, FIELDS) + "\n");
+    }
+  }
+
+  /**
+   * Writes all lines processed so far to the file. Returns the length of the file.
+   */
+  public long flush() throws IOException {
+    if (partitioned) {
+      long length = 0;
+      for (Partition p : partitions.values()) {
+        length += p.flush();
+      }
+      return length;
+    }
+    if (columnarWriter != null) {
+      columnarWriter.flush();
+    } else {
+      serializer.flush();
+    }
+    return channel.position();
   }
 
   public void processLine(SearchHit hit) throws IOException {
     linesProcessed++;
-    Map<String, Object> fields = hit.getSourceAsMap();
 
-    if (!writeLine(writer, fields)) {
+    if (!hit.hasSource()) {
       linesSkipped++;
+      NO_SOURCE.increment();
+    } else if (!write(hit)) {
+      linesSkipped++;
+      NOT_OBJECT.increment();
     }
 
     if (linesProcessed % 100000 == 0) {
-      System.out.println("Lines processed: " + linesProcessed + ", skipped: " + linesSkipped);
+      System.out.println(path.getFileName() + " - Lines processed: " + linesProcessed + ", skipped: " + linesSkipped);
+    }
+  }
+
+  private boolean write(SearchHit hit) throws IOException {
+    if (partitioned) {
+      if (!serializer.read(hit.getSourceRef())) {
+        return false;
+      }
+      writePartitioned();
+      return true;
+    }
+    if (columnarWriter != null) {
+      return serializer.write(hit.getSourceRef(), columnarWriter);
+    }
+    return serializer.write(hit.getSourceRef());
+  }
+
+  private void writePartitioned() throws IOException {
+    String time = serializer.value(PARTITION_TIME);
+    int month = NO_TIME;
+    long localMillis = 0;
+    try {
+      times.decode(time);
+      localMillis = times.localMillis();
+      month = RowBatch.month(localMillis);
+    } catch (DateTimeException e) {
+      // no valid system time
+    }
+    Partition partition = partitions.get(month);
+    if (partition == null) {
+      String name = month == NO_TIME ? "no-time" : String.format("%04d-%02d", month / 12, month % 12 + 1);
+      partition = new Partition(name + format.extension);
+      partitions.put(month, partition);
     }
+    partition.write(month == NO_TIME ? null : time, localMillis);
   }
 
   public void after() throws IOException {
-    writer.close();
+    if (partitioned) {
+      List<Manifest.Partition> entries = new ArrayList<>();
+      for (Partition p : partitions.values()) {
+        p.close();
+        entries.add(new Manifest.Partition(p.file, p.rows, p.min, p.max));
+      }
+      entries.sort((a, b) -> a.file.compareTo(b.file));
+      new Manifest(entries).write(path);
+      return;
+    }
+    if (columnarWriter != null) {
+      columnarWriter.close();
+    } else {
+      serializer.flush();
+      out.close();
+    }
+  }
+
+  public Path getPath() {
+    return path;
   }
 
-  private static void writeHeader(Writer writer) throws IOException {
-    writer.write(String.join(SEPARATOR, FIELDS));
-    writer.write('\n');
+  public int getLinesProcessed() {
+    return linesProcessed;
   }
 
-  private static boolean writeLine(Writer writer, Map<String, Object> fields) throws IOException {
-    List<String> values = new ArrayList<>(FIELDS.length);
-    for (String f : FIELDS) {
-      Object v = fields.get(f);
-      if (v == null) {
-        values.add("");
+  public int getLinesSkipped() {
+    return linesSkipped;
+  }
+
+  /**
+   * A file of a partitioned export, with the rows it got so far and their min and max system times
+   */
+  private final class Partition {
+    private final String file;
+    private final FileChannel channel;
+    private final OutputStream out;
+    private final SourceSerializer lines;
+    private final ColumnarWriter rowsWriter;
+    private long rows = 0;
+    private String min;
+    private String max;
+    private long minLocalMillis = Long.MAX_VALUE;
+    private long maxLocalMillis = Long.MIN_VALUE;
+
+    private Partition(String file) throws IOException {
+      this.file = file;
+      channel = FileChannel.open(path.resolve(file), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+      out = Channels.newOutputStream(channel);
+      lines = new SourceSerializer(FIELDS, SEPARATOR.charAt(0), out);
+      if (format == Format.COLUMNAR) {
+        rowsWriter = new ColumnarWriter(out, FIELDS, ENCODINGS);
+      } else {
+        rowsWriter = null;
+        lines.writeRaw(String.join(SEPARATOR, FIELDS) + "\n");
+      }
+    }
+
+    /**
+     * Writes the row last read by the serializer of the export
+     *
+     * @param time system time of the row, or null if it has none
+     */
+    private void write(String time, long localMillis) throws IOException {
+      if (rowsWriter != null) {
+        serializer.writeRow(rowsWriter);
       } else {
-        values.add(v.toString());
+        lines.writeLine(serializer);
+      }
+      rows++;
+      if (time != null && localMillis < minLocalMillis) {
+        minLocalMillis = localMillis;
+        min = time;
+      }
+      if (time != null && localMillis > maxLocalMillis) {
+        maxLocalMillis = localMillis;
+        max = time;
       }
     }
 
-    writer.write(String.join(SEPARATOR, values));
-    writer.write('\n');
-    return true;
+    private long flush() throws IOException {
+      if (rowsWriter != null) {
+        rowsWriter.flush();
+      } else {
+        lines.flush();
+      }
+      return channel.position();
+    }
+
+    private void close() throws IOException {
+      if (rowsWriter != null) {
+        rowsWriter.close();
+      } else {
+        lines.flush();
+        out.close();
+      }
+    }
   }
 }
@@ -0,0 +1,39 @@
+package meneses.kibana;
+
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
+/**
+ * A counter padded on both sides, so that it's alone in its cache line and counters updated by different threads
+ * don't invalidate each other's cache lines.
+ */
+final class Sequence extends SequenceValue {
+  @SuppressWarnings("unused")
+  private long p9, p10, p11, p12, p13, p14, p15;
+
+  long get() {
+    return value;
+  }
+
+  /**
+   * Sets the value with a store that is only ordered after the previous writes, which is enough to publish them to a
+   * thread that reads the value, and cheaper than a volatile write.
+   */
+  void setOrdered(long value) {
+    UPDATER.lazySet(this, value);
+  }
+
+  boolean compareAndSet(long expected, long value) {
+    return UPDATER.compareAndSet(this, expected, value);
+  }
+}
+
+class SequencePadding {
+  @SuppressWarnings("unused")
+  private long p1, p2, p3, p4, p5, p6, p7;
+}
+
+class SequenceValue extends SequencePadding {
+  static final AtomicLongFieldUpdater<SequenceValue> UPDATER = AtomicLongFieldUpdater.newUpdater(SequenceValue.class, "value");
+
+  volatile long value;
+}
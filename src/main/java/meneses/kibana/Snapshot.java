@@ -0,0 +1,155 @@
+package meneses.kibana;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+import meneses.kibana.processor.Processor;
+
+/**
+ * State of the processors after a load, with a watermark per input file: the position up to which the file was read.
+ * A later load restores the state and only reads what was appended to the files since.
+ * <p>
+ * Files must only grow by appending whole lines (CSV) or blocks (columnar), as the exports of {@link Download} do. To
+ * detect files that were replaced or truncated, each watermark also has a checksum of the start of the file.
+ */
+class Snapshot {
+  private static final int MAGIC = 0x534e4150;
+  private static final int VERSION = 1;
+  // bytes at the start of a file covered by the checksum
+  private static final int FINGERPRINT_LENGTH = 64 * 1024;
+
+  private final Map<Path, Watermark> watermarks;
+
+  private Snapshot(Map<Path, Watermark> watermarks) {
+    this.watermarks = watermarks;
+  }
+
+  /**
+   * Restores the state of the processors, which must be the ones that wrote it, in the same order. Returns null if
+   * there is no snapshot yet.
+   */
+  static Snapshot read(Path path, List<Processor> processors) throws IOException {
+    if (!Files.exists(path)) {
+      return null;
+    }
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path), 1 << 16))) {
+      if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+        throw new IOException("Not a snapshot, or of another version: " + path);
+      }
+      int files = in.readInt();
+      Map<Path, Watermark> watermarks = new HashMap<>();
+      for (int i = 0; i < files; i++) {
+        Path file = normalize(Paths.get(in.readUTF()));
+        watermarks.put(file, new Watermark(in.readLong(), in.readLong()));
+      }
+
+      int count = in.readInt();
+      if (count != processors.size()) {
+        throw new IOException("Snapshot has " + count + " processors instead of " + processors.size() + ": " + path);
+      }
+      for (Processor p : processors) {
+        String name = in.readUTF();
+        if (!name.equals(p.getClass().getName())) {
+          throw new IOException("Snapshot has state of " + name + " instead of " + p.getClass().getName() + ": " + path);
+        }
+        p.readState(in);
+      }
+      return new Snapshot(watermarks);
+    }
+  }
+
+  /**
+   * Positions from which to read the files: their watermark, or 0 for files that weren't read before
+   *
+   * @throws IOException if a file changed other than by appending to it, or if a file of the snapshot is missing, as
+   * its rows would be counted again the next time it's given
+   */
+  long[] starts(List<Path> files) throws IOException {
+    Set<Path> missing = new HashSet<>(watermarks.keySet());
+    long[] starts = new long[files.size()];
+    for (int i = 0; i < files.size(); i++) {
+      Path file = files.get(i);
+      Watermark watermark = watermarks.get(normalize(file));
+      missing.remove(normalize(file));
+      if (watermark != null) {
+        if (Files.size(file) < watermark.position || fingerprint(file, watermark.position) != watermark.fingerprint) {
+          throw new IOException(file + " changed since the snapshot was taken. Delete the snapshot to load all files again.");
+        }
+        starts[i] = watermark.position;
+      }
+    }
+    if (!missing.isEmpty()) {
+      throw new IOException("Files of the snapshot are missing: " + missing);
+    }
+    return starts;
+  }
+
+  /**
+   * Replaces the snapshot atomically with the state of the processors, the given files having been read up to the
+   * given positions
+   */
+  static void write(Path path, List<Processor> processors, List<Path> files, long[] ends) throws IOException {
+    Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+    try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp), 1 << 16))) {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeInt(files.size());
+      for (int i = 0; i < files.size(); i++) {
+        out.writeUTF(normalize(files.get(i)).toString());
+        out.writeLong(ends[i]);
+        out.writeLong(fingerprint(files.get(i), ends[i]));
+      }
+
+      out.writeInt(processors.size());
+      for (Processor p : processors) {
+        out.writeUTF(p.getClass().getName());
+        p.writeState(out);
+      }
+    }
+    Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  private static Path normalize(Path file) {
+    return file.toAbsolutePath().normalize();
+  }
+
+  /**
+   * CRC of the first bytes of the file, up to the given length
+   */
+  private static long fingerprint(Path file, long length) throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(length, FINGERPRINT_LENGTH));
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+        // until the buffer is full
+      }
+    }
+    CRC32 crc = new CRC32();
+    crc.update(buffer.array(), 0, buffer.position());
+    return crc.getValue();
+  }
+
+  private static class Watermark {
+    final long position;
+    final long fingerprint;
+
+    Watermark(long position, long fingerprint) {
+      this.position = position;
+      this.fingerprint = fingerprint;
+    }
+  }
+}
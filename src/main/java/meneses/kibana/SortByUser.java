@@ -0,0 +1,198 @@
+package meneses.kibana;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.stream.Collectors;
+import meneses.kibana.metrics.Counter;
+import meneses.kibana.metrics.Metrics;
+import meneses.kibana.metrics.MetricsReporter;
+import meneses.kibana.metrics.Timer;
+
+import static meneses.kibana.Save.SEPARATOR;
+
+/**
+ * Sorts CSV exports by install time, so that {@link Load} can process them grouped by user with
+ * {@code -Dload.groupByUser=true}, only keeping the state of one user at a time.
+ * <p>
+ * It's an external sort with bounded memory: lines are read until they add up to about {@code -Dsort.runMegabytes}
+ * (64 by default), sorted and written to a run file, then the runs are merged with a heap of their next lines. Lines
+ * are compared by their raw install time, which is the same string for all the rows of a user, so rows without install
+ * time come first. The sort is stable, so that the rows of a user keep the order of the input, which is the time order
+ * for exports of {@link Download}.
+ * <p>
+ * Usage: {@code SortByUser <sorted.csv> <export.csv>...}. Runs are written to a temporary directory next to the output,
+ * or in {@code -Dsort.tmpDir}, which is deleted once they are merged.
+ */
+public class SortByUser {
+  private static final long RUN_BYTES = Integer.getInteger("sort.runMegabytes", 64) * 1024L * 1024;
+  private static final String TMP_DIR = System.getProperty("sort.tmpDir");
+  private static final char SEPARATOR_CHAR = SEPARATOR.charAt(0);
+
+  private static final Counter ROWS = Metrics.counter("sort.rows");
+  // time to sort and write each run, with rows as items
+  private static final Timer RUNS = Metrics.timer("sort.runs");
+  private static final Timer MERGE = Metrics.timer("sort.merge");
+
+  public static void main(String[] args) throws IOException {
+    long start = System.currentTimeMillis();
+    Path output = Paths.get(args[0]);
+    List<Path> inputs = Arrays.stream(args).skip(1).map(Paths::get).collect(Collectors.toList());
+    MetricsReporter reporter = MetricsReporter.start();
+    try {
+      sort(inputs, output);
+    } finally {
+      reporter.close();
+    }
+    System.out.println(System.currentTimeMillis() - start + " ms");
+  }
+
+  public static void sort(List<Path> inputs, Path output) throws IOException {
+    Path parent = output.toAbsolutePath().getParent();
+    Path tmpDir = Files.createTempDirectory(TMP_DIR != null ? Paths.get(TMP_DIR) : parent, "sort-");
+    List<Path> runs = new ArrayList<>();
+    try {
+      List<String> lines = new ArrayList<>();
+      long bytes = 0;
+      for (Path input : inputs) {
+        System.out.println("Reading " + input);
+        try (BufferedReader reader = Files.newBufferedReader(input, StandardCharsets.UTF_8)) {
+          // header
+          reader.readLine();
+          String line;
+          while ((line = reader.readLine()) != null) {
+            lines.add(line);
+            // chars, plus the string and the reference
+            bytes += line.length() + 48;
+            if (bytes >= RUN_BYTES) {
+              runs.add(writeRun(lines, tmpDir.resolve("run-" + runs.size() + ".csv")));
+              lines.clear();
+              bytes = 0;
+            }
+          }
+        }
+      }
+      if (runs.isEmpty()) {
+        // everything fits in memory
+        runs.add(writeRun(lines, output));
+      } else {
+        if (!lines.isEmpty()) {
+          runs.add(writeRun(lines, tmpDir.resolve("run-" + runs.size() + ".csv")));
+        }
+        lines.clear();
+        merge(runs, output);
+      }
+    } finally {
+      for (Path run : runs) {
+        if (!run.equals(output)) {
+          Files.deleteIfExists(run);
+        }
+      }
+      Files.deleteIfExists(tmpDir);
+    }
+  }
+
+  /**
+   * Sorts the lines and writes them to a file with the header of the exports
+   */
+  private static Path writeRun(List<String> lines, Path path) throws IOException {
+    long start = System.nanoTime();
+    String[] sorted = lines.toArray(new String[0]);
+    // stable, so that the lines of a user keep their order
+    Arrays.sort(sorted, SortByUser::compare);
+    try (BufferedWriter writer = Files.newBufferedWriter(path, StandardCharsets.UTF_8)) {
+      writer.write(String.join(SEPARATOR, Save.FIELDS));
+      writer.write('\n');
+      for (String line : sorted) {
+        writer.write(line);
+        writer.write('\n');
+      }
+    }
+    RUNS.recordSince(start, sorted.length);
+    ROWS.add(sorted.length);
+    System.out.println("Sorted " + sorted.length + " rows into " + path);
+    return path;
+  }
+
+  /**
+   * Merges the sorted runs. Lines of the same install time are taken from the earlier runs first, to keep the order of
+   * the input.
+   */
+  private static void merge(List<Path> runs, Path output) throws IOException {
+    long start = System.nanoTime();
+    PriorityQueue<Run> heap = new PriorityQueue<>((a, b) -> {
+      int c = compare(a.line, b.line);
+      return c != 0 ? c : Integer.compare(a.index, b.index);
+    });
+    List<Run> open = new ArrayList<>();
+    long rows = 0;
+    try (BufferedWriter writer = Files.newBufferedWriter(output, StandardCharsets.UTF_8)) {
+      for (int i = 0; i < runs.size(); i++) {
+        Run run = new Run(i, Files.newBufferedReader(runs.get(i), StandardCharsets.UTF_8));
+        open.add(run);
+        // header
+        run.reader.readLine();
+        if (run.next()) {
+          heap.add(run);
+        }
+      }
+      writer.write(String.join(SEPARATOR, Save.FIELDS));
+      writer.write('\n');
+      while (!heap.isEmpty()) {
+        Run run = heap.poll();
+        writer.write(run.line);
+        writer.write('\n');
+        rows++;
+        if (run.next()) {
+          heap.add(run);
+        }
+      }
+    } finally {
+      for (Run run : open) {
+        run.reader.close();
+      }
+    }
+    MERGE.recordSince(start, rows);
+    System.out.println("Merged " + runs.size() + " runs of " + rows + " rows into " + output);
+  }
+
+  /**
+   * Compares lines by their install time, the first field, without extracting it
+   */
+  static int compare(CharSequence a, CharSequence b) {
+    for (int i = 0; ; i++) {
+      boolean aEnd = i == a.length() || a.charAt(i) == SEPARATOR_CHAR;
+      boolean bEnd = i == b.length() || b.charAt(i) == SEPARATOR_CHAR;
+      if (aEnd || bEnd) {
+        return aEnd == bEnd ? 0 : aEnd ? -1 : 1;
+      }
+      if (a.charAt(i) != b.charAt(i)) {
+        return Character.compare(a.charAt(i), b.charAt(i));
+      }
+    }
+  }
+
+  private static final class Run {
+    private final int index;
+    private final BufferedReader reader;
+    private String line;
+
+    private Run(int index, BufferedReader reader) {
+      this.index = index;
+      this.reader = reader;
+    }
+
+    private boolean next() throws IOException {
+      line = reader.readLine();
+      return line != null;
+    }
+  }
+}
@@ -0,0 +1,246 @@
+package meneses.kibana;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import meneses.kibana.columnar.ColumnarWriter;
+import org.apache.lucene.util.BytesRef;
+import org.elasticsearch.common.bytes.BytesReference;
+
+/**
+ * Writes the selected top-level fields of a document's raw JSON source as one CSV line, without building a map of the
+ * whole source.
+ * <p>
+ * The source is read with a streaming parser. Values of the selected fields are encoded as UTF-8 into a reused scratch
+ * area and then copied, in column order, into a reused output buffer that is flushed to the underlying stream when full.
+ * Objects and arrays (such as {@code analyses}) are copied as compact JSON. Missing and null values are written as
+ * empty strings.
+ * <p>
+ * The extracted values can also be handed to a {@link ColumnarWriter} instead of being written as CSV, or be
+ * {@link #read(BytesReference)} by one serializer and written by others, such as one per partition of an export.
+ */
+class SourceSerializer {
+  private static final JsonFactory JSON_FACTORY = new JsonFactory();
+  private static final int BUFFER_SIZE = 1 << 16;
+
+  private final OutputStream out;
+  private final byte separator;
+  private final Map<String, int[]> columnsByField = new HashMap<>();
+  private final int columnCount;
+
+  private final int[] valueStart;
+  private final int[] valueEnd;
+  private byte[] scratch = new byte[1024];
+  private int scratchPos;
+
+  private final byte[] buffer = new byte[BUFFER_SIZE];
+  private int bufferPos;
+
+  SourceSerializer(String[] fields, char separator, OutputStream out) {
+    this.out = out;
+    this.separator = (byte) separator;
+    this.columnCount = fields.length;
+    this.valueStart = new int[fields.length];
+    this.valueEnd = new int[fields.length];
+    for (int i = 0; i < fields.length; i++) {
+      int column = i;
+      // a field can be exported in several columns
+      columnsByField.merge(fields[i], new int[] {column}, (a, b) -> {
+        int[] c = Arrays.copyOf(a, a.length + 1);
+        c[a.length] = column;
+        return c;
+      });
+    }
+  }
+
+  /**
+   * Writes the source as a CSV line.
+   * Returns false if the source is not a JSON object, in which case nothing is written.
+   */
+  boolean write(BytesReference source) throws IOException {
+    if (!read(source)) {
+      return false;
+    }
+    writeLine(this);
+    return true;
+  }
+
+  /**
+   * Writes the values last read by the given serializer, which has the same fields, as a CSV line
+   */
+  void writeLine(SourceSerializer row) throws IOException {
+    for (int i = 0; i < columnCount; i++) {
+      if (i > 0) {
+        writeByte(separator);
+      }
+      writeBytes(row.scratch, row.valueStart[i], row.valueEnd[i] - row.valueStart[i]);
+    }
+    writeByte((byte) '\n');
+  }
+
+  /**
+   * Writes the source as a row of the given columnar file.
+   * Returns false if the source is not a JSON object, in which case nothing is written.
+   */
+  boolean write(BytesReference source, ColumnarWriter writer) throws IOException {
+    if (!read(source)) {
+      return false;
+    }
+    writeRow(writer);
+    return true;
+  }
+
+  /**
+   * Writes the values last read as a row of the given columnar file
+   */
+  void writeRow(ColumnarWriter writer) throws IOException {
+    for (int i = 0; i < columnCount; i++) {
+      writer.set(i, scratch, valueStart[i], valueEnd[i]);
+    }
+    writer.endRow();
+  }
+
+  /**
+   * Value of a column last read, empty if the field was missing
+   */
+  String value(int column) {
+    return new String(scratch, valueStart[column], valueEnd[column] - valueStart[column], StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Reads the values of the fields, to be written by {@link #writeLine(SourceSerializer)} or {@link #writeRow}.
+   * Returns false if the source is not a JSON object.
+   */
+  boolean read(BytesReference source) throws IOException {
+    BytesRef ref = source.toBytesRef();
+    Arrays.fill(valueEnd, 0);
+    Arrays.fill(valueStart, 0);
+    scratchPos = 0;
+
+    try (JsonParser parser = JSON_FACTORY.createParser(ref.bytes, ref.offset, ref.length)) {
+      if (parser.nextToken() != JsonToken.START_OBJECT) {
+        return false;
+      }
+      JsonToken token;
+      while ((token = parser.nextToken()) == JsonToken.FIELD_NAME) {
+        // field names are canonicalized by the parser, so this doesn't allocate
+        int[] columns = columnsByField.get(parser.getCurrentName());
+        token = parser.nextToken();
+        if (columns == null) {
+          parser.skipChildren();
+          continue;
+        }
+
+        int start = scratchPos;
+        if (token == JsonToken.START_OBJECT || token == JsonToken.START_ARRAY) {
+          int from = (int) parser.getTokenLocation().getByteOffset();
+          parser.skipChildren();
+          int to = (int) parser.getCurrentLocation().getByteOffset();
+          appendCompactJson(ref.bytes, ref.offset + from, ref.offset + to);
+        } else if (token != JsonToken.VALUE_NULL) {
+          appendChars(parser.getTextCharacters(), parser.getTextOffset(), parser.getTextLength());
+        }
+        for (int c : columns) {
+          valueStart[c] = start;
+          valueEnd[c] = scratchPos;
+        }
+      }
+    }
+    return true;
+  }
+
+  void writeRaw(String s) throws IOException {
+    scratchPos = 0;
+    appendChars(s.toCharArray(), 0, s.length());
+    writeBytes(scratch, 0, scratchPos);
+  }
+
+  void flush() throws IOException {
+    out.write(buffer, 0, bufferPos);
+    bufferPos = 0;
+    out.flush();
+  }
+
+  /**
+   * Copies the raw JSON, dropping whitespace outside of strings so that the value stays on one line
+   */
+  private void appendCompactJson(byte[] bytes, int from, int to) {
+    ensureScratch(to - from);
+    boolean inString = false;
+    boolean escaped = false;
+    for (int i = from; i < to; i++) {
+      byte b = bytes[i];
+      if (inString) {
+        if (escaped) {
+          escaped = false;
+        } else if (b == '\\') {
+          escaped = true;
+        } else if (b == '"') {
+          inString = false;
+        }
+      } else if (b == '"') {
+        inString = true;
+      } else if (b == ' ' || b == '\n' || b == '\r' || b == '\t') {
+        continue;
+      }
+      scratch[scratchPos++] = b;
+    }
+  }
+
+  private void appendChars(char[] chars, int offset, int length) {
+    ensureScratch(length * 3);
+    int end = offset + length;
+    for (int i = offset; i < end; i++) {
+      char c = chars[i];
+      if (c < 0x80) {
+        scratch[scratchPos++] = (byte) c;
+      } else if (c < 0x800) {
+        scratch[scratchPos++] = (byte) (0xC0 | (c >> 6));
+        scratch[scratchPos++] = (byte) (0x80 | (c & 0x3F));
+      } else if (Character.isHighSurrogate(c) && i + 1 < end && Character.isLowSurrogate(chars[i + 1])) {
+        int cp = Character.toCodePoint(c, chars[++i]);
+        scratch[scratchPos++] = (byte) (0xF0 | (cp >> 18));
+        scratch[scratchPos++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+        scratch[scratchPos++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+        scratch[scratchPos++] = (byte) (0x80 | (cp & 0x3F));
+      } else {
+        scratch[scratchPos++] = (byte) (0xE0 | (c >> 12));
+        scratch[scratchPos++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+        scratch[scratchPos++] = (byte) (0x80 | (c & 0x3F));
+      }
+    }
+  }
+
+  private void ensureScratch(int extra) {
+    if (scratchPos + extra > scratch.length) {
+      scratch = Arrays.copyOf(scratch, Math.max(scratch.length * 2, scratchPos + extra));
+    }
+  }
+
+  private void writeByte(byte b) throws IOException {
+    if (bufferPos == buffer.length) {
+      out.write(buffer, 0, bufferPos);
+      bufferPos = 0;
+    }
+    buffer[bufferPos++] = b;
+  }
+
+  private void writeBytes(byte[] bytes, int offset, int length) throws IOException {
+    if (length > buffer.length - bufferPos) {
+      out.write(buffer, 0, bufferPos);
+      bufferPos = 0;
+      if (length > buffer.length) {
+        out.write(bytes, offset, length);
+        return;
+      }
+    }
+    System.arraycopy(bytes, offset, buffer, bufferPos, length);
+    bufferPos += length;
+  }
+}
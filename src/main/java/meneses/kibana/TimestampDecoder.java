@@ -0,0 +1,243 @@
+package meneses.kibana;
+
+import java.time.DateTimeException;
+import java.time.LocalDateTime;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+
+/**
+ * Decodes the ISO-8601 timestamps found in the telemetry ({@code 2018-06-16T02:54:56.248+01:00},
+ * {@code 2019-01-15T09:15:31.001Z}, with or without fraction of second) into epoch seconds, nanos and offset, without
+ * going through {@link DateTimeFormatter}. Other shapes fall back to {@link DateTimeFormatter#ISO_DATE_TIME}.
+ * <p>
+ * Optionally keeps a bounded cache of recently decoded values, so that values that repeat a lot (such as the install
+ * time, which is the same for all pings of a user) are decoded only once and share the same {@link OffsetDateTime}.
+ * Not thread safe: the decoded values are kept in the instance until the next call to {@link #decode(CharSequence)}.
+ */
+public class TimestampDecoder {
+  private static final DateTimeFormatter FORMATTER = DateTimeFormatter.ISO_DATE_TIME;
+
+  private long epochSecond;
+  private int nano;
+  private int offsetSeconds;
+  private OffsetDateTime dateTime;
+
+  // direct-mapped cache
+  private final String[] cacheKeys;
+  private final long[] cacheEpochSeconds;
+  private final int[] cacheNanos;
+  private final int[] cacheOffsets;
+  private final OffsetDateTime[] cacheDateTimes;
+  private final int cacheMask;
+
+  public TimestampDecoder() {
+    this(0);
+  }
+
+  /**
+   * @param cacheSize number of cached values, rounded up to a power of 2. 0 disables the cache.
+   */
+  public TimestampDecoder(int cacheSize) {
+    int size = cacheSize <= 1 ? Math.max(cacheSize, 0) : Integer.highestOneBit(cacheSize - 1) << 1;
+    cacheKeys = new String[size];
+    cacheEpochSeconds = new long[size];
+    cacheNanos = new int[size];
+    cacheOffsets = new int[size];
+    cacheDateTimes = new OffsetDateTime[size];
+    cacheMask = size - 1;
+  }
+
+  public void decode(CharSequence s) {
+    if (cacheKeys.length == 0) {
+      decodeUncached(s);
+      return;
+    }
+
+    int slot = hash(s) & cacheMask;
+    String key = cacheKeys[slot];
+    if (key != null && contentEquals(key, s)) {
+      epochSecond = cacheEpochSeconds[slot];
+      nano = cacheNanos[slot];
+      offsetSeconds = cacheOffsets[slot];
+      dateTime = cacheDateTimes[slot];
+      return;
+    }
+
+    decodeUncached(s);
+    cacheKeys[slot] = s.toString();
+    cacheEpochSeconds[slot] = epochSecond;
+    cacheNanos[slot] = nano;
+    cacheOffsets[slot] = offsetSeconds;
+    cacheDateTimes[slot] = dateTime();
+  }
+
+  /**
+   * Like {@link #decode(CharSequence)}, but returns false instead of throwing if the value can't be parsed, in which
+   * case the decoded values are undefined
+   */
+  public boolean tryDecode(CharSequence s) {
+    try {
+      decode(s);
+      return true;
+    } catch (DateTimeException e) {
+      return false;
+    }
+  }
+
+  public long epochMillis() {
+    return epochSecond * 1000 + nano / 1_000_000;
+  }
+
+  public int offsetSeconds() {
+    return offsetSeconds;
+  }
+
+  /**
+   * Epoch millis shifted by the offset, i.e. the local date-time as if it was in UTC
+   */
+  public long localMillis() {
+    return epochMillis() + offsetSeconds * 1000L;
+  }
+
+  /**
+   * Created lazily, so it costs nothing if the value is not used
+   */
+  public OffsetDateTime dateTime() {
+    if (dateTime == null) {
+      ZoneOffset offset = ZoneOffset.ofTotalSeconds(offsetSeconds);
+      dateTime = OffsetDateTime.of(LocalDateTime.ofEpochSecond(epochSecond, nano, offset), offset);
+    }
+    return dateTime;
+  }
+
+  private void decodeUncached(CharSequence s) {
+    dateTime = null;
+    if (!decodeFast(s)) {
+      dateTime = OffsetDateTime.parse(s, FORMATTER);
+      epochSecond = dateTime.toEpochSecond();
+      nano = dateTime.getNano();
+      offsetSeconds = dateTime.getOffset().getTotalSeconds();
+    }
+  }
+
+  /**
+   * yyyy-MM-ddTHH:mm:ss[.S{1,9}](Z|+HH:mm|-HH:mm)
+   */
+  private boolean decodeFast(CharSequence s) {
+    int length = s.length();
+    if (length < 20 || s.charAt(4) != '-' || s.charAt(7) != '-' || s.charAt(10) != 'T' || s.charAt(13) != ':' || s.charAt(16) != ':') {
+      return false;
+    }
+    int year = digits(s, 0, 4);
+    int month = digits(s, 5, 2);
+    int day = digits(s, 8, 2);
+    int hour = digits(s, 11, 2);
+    int minute = digits(s, 14, 2);
+    int second = digits(s, 17, 2);
+    if (year < 0 || month < 1 || month > 12 || day < 1 || day > lengthOfMonth(year, month) || hour < 0 || hour > 23
+      || minute < 0 || minute > 59 || second < 0 || second > 59) {
+      return false;
+    }
+
+    int i = 19;
+    int fraction = 0;
+    if (s.charAt(i) == '.') {
+      i++;
+      int digits = 0;
+      while (i < length && digits < 9 && isDigit(s.charAt(i))) {
+        fraction = fraction * 10 + (s.charAt(i) - '0');
+        i++;
+        digits++;
+      }
+      if (digits == 0 || (i < length && isDigit(s.charAt(i)))) {
+        return false;
+      }
+      for (; digits < 9; digits++) {
+        fraction *= 10;
+      }
+    }
+
+    int offset;
+    if (i == length - 1 && s.charAt(i) == 'Z') {
+      offset = 0;
+    } else if (i == length - 6 && (s.charAt(i) == '+' || s.charAt(i) == '-') && s.charAt(i + 3) == ':') {
+      int offsetHours = digits(s, i + 1, 2);
+      int offsetMinutes = digits(s, i + 4, 2);
+      if (offsetHours < 0 || offsetHours > 18 || offsetMinutes < 0 || offsetMinutes > 59) {
+        return false;
+      }
+      offset = (offsetHours * 3600 + offsetMinutes * 60) * (s.charAt(i) == '-' ? -1 : 1);
+    } else {
+      return false;
+    }
+
+    epochSecond = daysFromCivil(year, month, day) * 86400L + hour * 3600 + minute * 60 + second - offset;
+    nano = fraction;
+    offsetSeconds = offset;
+    return true;
+  }
+
+  private static int digits(CharSequence s, int from, int count) {
+    int value = 0;
+    for (int i = from; i < from + count; i++) {
+      char c = s.charAt(i);
+      if (!isDigit(c)) {
+        return -1;
+      }
+      value = value * 10 + (c - '0');
+    }
+    return value;
+  }
+
+  private static boolean isDigit(char c) {
+    return c >= '0' && c <= '9';
+  }
+
+  private static int lengthOfMonth(int year, int month) {
+    switch (month) {
+      case 2:
+        return (year % 4 == 0 && (year % 100 != 0 || year % 400 == 0)) ? 29 : 28;
+      case 4:
+      case 6:
+      case 9:
+      case 11:
+        return 30;
+      default:
+        return 31;
+    }
+  }
+
+  /**
+   * Days since 1970-01-01 of a date of the proleptic Gregorian calendar
+   */
+  private static long daysFromCivil(int year, int month, int day) {
+    long y = month <= 2 ? year - 1 : year;
+    long era = Math.floorDiv(y, 400);
+    long yearOfEra = y - era * 400;
+    long dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+    long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+    return era * 146097 + dayOfEra - 719468;
+  }
+
+  private static int hash(CharSequence s) {
+    int h = 0;
+    for (int i = 0; i < s.length(); i++) {
+      h = 31 * h + s.charAt(i);
+    }
+    return h ^ (h >>> 16);
+  }
+
+  private static boolean contentEquals(String a, CharSequence b) {
+    int length = a.length();
+    if (length != b.length()) {
+      return false;
+    }
+    for (int i = 0; i < length; i++) {
+      if (a.charAt(i) != b.charAt(i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
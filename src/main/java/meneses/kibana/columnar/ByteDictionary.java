@@ -0,0 +1,111 @@
+package meneses.kibana.columnar;
+
+import java.util.Arrays;
+
+/**
+ * Assigns dense codes to distinct byte sequences, without creating an object per lookup
+ */
+class ByteDictionary {
+  private byte[] bytes = new byte[4096];
+  private int bytesPos = 0;
+  private int[] offsets = new int[64];
+  private int[] lengths = new int[64];
+  private int[] hashes = new int[64];
+  private int size = 0;
+
+  // open addressing table of code + 1, 0 being free
+  private int[] table = new int[128];
+
+  int code(byte[] b, int from, int to) {
+    int hash = hash(b, from, to);
+    int mask = table.length - 1;
+    for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+      int entry = table[slot];
+      if (entry == 0) {
+        int code = add(b, from, to, hash);
+        table[slot] = code + 1;
+        if (size * 2 > table.length) {
+          rehash();
+        }
+        return code;
+      }
+      int code = entry - 1;
+      if (hashes[code] == hash && equals(code, b, from, to)) {
+        return code;
+      }
+    }
+  }
+
+  int size() {
+    return size;
+  }
+
+  byte[] bytes() {
+    return bytes;
+  }
+
+  int offset(int code) {
+    return offsets[code];
+  }
+
+  int length(int code) {
+    return lengths[code];
+  }
+
+  void clear() {
+    size = 0;
+    bytesPos = 0;
+    Arrays.fill(table, 0);
+  }
+
+  private int add(byte[] b, int from, int to, int hash) {
+    int length = to - from;
+    if (size == offsets.length) {
+      offsets = Arrays.copyOf(offsets, size * 2);
+      lengths = Arrays.copyOf(lengths, size * 2);
+      hashes = Arrays.copyOf(hashes, size * 2);
+    }
+    if (bytesPos + length > bytes.length) {
+      bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, bytesPos + length));
+    }
+    System.arraycopy(b, from, bytes, bytesPos, length);
+    offsets[size] = bytesPos;
+    lengths[size] = length;
+    hashes[size] = hash;
+    bytesPos += length;
+    return size++;
+  }
+
+  private boolean equals(int code, byte[] b, int from, int to) {
+    if (lengths[code] != to - from) {
+      return false;
+    }
+    int offset = offsets[code];
+    for (int i = from; i < to; i++) {
+      if (bytes[offset++] != b[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private void rehash() {
+    table = new int[table.length * 2];
+    int mask = table.length - 1;
+    for (int code = 0; code < size; code++) {
+      int slot = hashes[code] & mask;
+      while (table[slot] != 0) {
+        slot = (slot + 1) & mask;
+      }
+      table[slot] = code + 1;
+    }
+  }
+
+  private static int hash(byte[] b, int from, int to) {
+    int h = 1;
+    for (int i = from; i < to; i++) {
+      h = 31 * h + b[i];
+    }
+    return h ^ (h >>> 16);
+  }
+}
@@ -0,0 +1,259 @@
+package meneses.kibana.columnar;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+
+/**
+ * Reads files written by {@link ColumnarWriter}, one block at a time.
+ * Only the requested columns are read and decoded, the others are skipped.
+ * <p>
+ * Blocks can be read from a given position, see {@link #range(long, long)}, for instance to read only the blocks
+ * appended since a previous read, which ended at {@link #position()}.
+ */
+public class ColumnarReader implements AutoCloseable {
+  private final FileChannel channel;
+  private final String[] names;
+  private final Encoding[] encodings;
+  private final boolean[] wanted;
+  private final Column[] columns;
+  private final long firstBlock;
+  private long end = Long.MAX_VALUE;
+  private int rows = 0;
+
+  public ColumnarReader(Path path, int... columnsToRead) throws IOException {
+    this.channel = FileChannel.open(path, StandardOpenOption.READ);
+    ByteBuffer header = read(12);
+    if (header.getInt() != ColumnarWriter.MAGIC) {
+      throw new IOException("Not a columnar telemetry file: " + path);
+    }
+    int version = header.getInt();
+    if (version != ColumnarWriter.VERSION) {
+      throw new IOException("Unsupported version " + version + ": " + path);
+    }
+    int count = header.getInt();
+    names = new String[count];
+    encodings = new Encoding[count];
+    for (int i = 0; i < count; i++) {
+      int length = read(2).getShort() & 0xFFFF;
+      names[i] = new String(read(length).array(), 0, length, StandardCharsets.UTF_8);
+      encodings[i] = Encoding.of(read(1).get());
+    }
+
+    wanted = new boolean[count];
+    columns = new Column[count];
+    for (int c : columnsToRead) {
+      wanted[c] = true;
+    }
+    firstBlock = channel.position();
+  }
+
+  /**
+   * Reads only the blocks between the given positions, which must be the start of a block (or 0 for the first one)
+   * and the end of a block.
+   */
+  public void range(long start, long end) throws IOException {
+    channel.position(Math.max(start, firstBlock));
+    this.end = end;
+  }
+
+  /**
+   * Position of the next block to read
+   */
+  public long position() throws IOException {
+    return channel.position();
+  }
+
+  /**
+   * End of the last complete block between the given start, which must be the start of a block (or 0 for the first
+   * one), and the given size, for a file that may still be being written. Only the block headers are read. Moves the
+   * reader to that position.
+   */
+  public long lastBlockEnd(long start, long size) throws IOException {
+    long position = Math.max(start, firstBlock);
+    int headerLength = 4 + 4 * names.length;
+    while (position + headerLength <= size) {
+      // skips the row count
+      channel.position(position + 4);
+      ByteBuffer lengths = read(4 * names.length);
+      long blockEnd = position + headerLength;
+      for (int i = 0; i < names.length; i++) {
+        blockEnd += lengths.getInt();
+      }
+      if (blockEnd > size) {
+        break;
+      }
+      position = blockEnd;
+    }
+    channel.position(position);
+    return position;
+  }
+
+  public String[] names() {
+    return names;
+  }
+
+  /**
+   * Reads the next block. Returns false at the end of the file.
+   */
+  public boolean nextBlock() throws IOException {
+    if (channel.position() >= Math.min(end, channel.size())) {
+      rows = 0;
+      return false;
+    }
+    ByteBuffer blockHeader = read(4 + 4 * names.length);
+    rows = blockHeader.getInt();
+    int[] lengths = new int[names.length];
+    for (int i = 0; i < names.length; i++) {
+      lengths[i] = blockHeader.getInt();
+    }
+    for (int i = 0; i < names.length; i++) {
+      if (wanted[i]) {
+        columns[i] = decode(encodings[i], read(lengths[i]), rows);
+      } else {
+        channel.position(channel.position() + lengths[i]);
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Number of rows in the current block
+   */
+  public int rows() {
+    return rows;
+  }
+
+  /**
+   * Returns the value of a TIMESTAMP column as epoch millis, {@link Long#MIN_VALUE} if it's empty, or
+   * {@link ColumnarWriter#INVALID_TIME} if it couldn't be parsed
+   */
+  public long epochMillis(int column, int row) {
+    return ((TimestampColumn) column(column)).millis[row];
+  }
+
+  /**
+   * Returns the offset of the value of a TIMESTAMP column, in seconds
+   */
+  public int offsetSeconds(int column, int row) {
+    return ((TimestampColumn) column(column)).offsets[row];
+  }
+
+  /**
+   * Returns the value of a TIMESTAMP column, or null if it's empty or couldn't be parsed
+   */
+  public OffsetDateTime dateTime(int column, int row) {
+    TimestampColumn c = (TimestampColumn) column(column);
+    if (c.millis[row] == Long.MIN_VALUE || c.millis[row] == ColumnarWriter.INVALID_TIME) {
+      return null;
+    }
+    return OffsetDateTime.ofInstant(Instant.ofEpochMilli(c.millis[row]), ZoneOffset.ofTotalSeconds(c.offsets[row]));
+  }
+
+  /**
+   * Returns the value of a DICTIONARY or STRING column. Values of DICTIONARY columns are shared between the rows of a block.
+   */
+  public String string(int column, int row) {
+    Column c = column(column);
+    if (c instanceof DictionaryColumn) {
+      DictionaryColumn d = (DictionaryColumn) c;
+      return d.values[d.codes[row]];
+    }
+    StringColumn s = (StringColumn) c;
+    return new String(s.data, s.starts[row], s.starts[row + 1] - s.starts[row], StandardCharsets.UTF_8);
+  }
+
+  @Override
+  public void close() throws IOException {
+    channel.close();
+  }
+
+  private Column column(int column) {
+    if (!wanted[column]) {
+      throw new IllegalStateException("Column not read: " + names[column]);
+    }
+    return columns[column];
+  }
+
+  private ByteBuffer read(int length) throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocate(length);
+    while (buffer.hasRemaining()) {
+      if (channel.read(buffer) < 0) {
+        throw new EOFException();
+      }
+    }
+    buffer.flip();
+    return buffer;
+  }
+
+  private static Column decode(Encoding encoding, ByteBuffer data, int rows) {
+    switch (encoding) {
+      case TIMESTAMP:
+        TimestampColumn t = new TimestampColumn();
+        t.millis = new long[rows];
+        t.offsets = new int[rows];
+        data.asLongBuffer().get(t.millis);
+        data.position(8 * rows);
+        data.asIntBuffer().get(t.offsets);
+        return t;
+      case DICTIONARY:
+        DictionaryColumn d = new DictionaryColumn();
+        d.values = new String[data.getInt()];
+        for (int i = 0; i < d.values.length; i++) {
+          int length = data.getInt();
+          d.values[i] = new String(data.array(), data.position(), length, StandardCharsets.UTF_8);
+          data.position(data.position() + length);
+        }
+        int width = data.get();
+        d.codes = new int[rows];
+        for (int i = 0; i < rows; i++) {
+          if (width == 1) {
+            d.codes[i] = data.get() & 0xFF;
+          } else if (width == 2) {
+            d.codes[i] = data.getShort() & 0xFFFF;
+          } else {
+            d.codes[i] = data.getInt();
+          }
+        }
+        return d;
+      case STRING:
+        StringColumn s = new StringColumn();
+        s.starts = new int[rows + 1];
+        int start = 4 * rows;
+        for (int i = 0; i < rows; i++) {
+          s.starts[i] = start;
+          start += data.getInt();
+        }
+        s.starts[rows] = start;
+        s.data = data.array();
+        return s;
+      default:
+        throw new IllegalStateException("Unsupported encoding: " + encoding);
+    }
+  }
+
+  private interface Column {
+  }
+
+  private static class TimestampColumn implements Column {
+    long[] millis;
+    int[] offsets;
+  }
+
+  private static class DictionaryColumn implements Column {
+    String[] values;
+    int[] codes;
+  }
+
+  private static class StringColumn implements Column {
+    byte[] data;
+    int[] starts;
+  }
+}
@@ -0,0 +1,326 @@
+package meneses.kibana.columnar;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import meneses.kibana.TimestampDecoder;
+
+/**
+ * Writes rows in the columnar telemetry format.
+ * <p>
+ * The file starts with a header (magic, version, column names and encodings) followed by blocks of up to
+ * {@link #BLOCK_ROWS} rows. Each block starts with its row count and the byte length of each column, so that readers
+ * can skip the columns they don't need, followed by the data of each column. See {@link Encoding}.
+ */
+public class ColumnarWriter implements AutoCloseable {
+  public static final String EXTENSION = ".tcol";
+  static final int MAGIC = 0x544c4d43;
+  static final int VERSION = 1;
+  static final int BLOCK_ROWS = 64 * 1024;
+  /**
+   * Epoch millis of TIMESTAMP values that are not empty but can't be parsed, so that they stay invalid rather than
+   * missing
+   */
+  public static final long INVALID_TIME = Long.MIN_VALUE + 1;
+
+  private final DataOutputStream out;
+  private final ColumnBuffer[] columns;
+  private int rows = 0;
+
+  public ColumnarWriter(OutputStream out, String[] names, Encoding[] encodings) throws IOException {
+    this(out, names, encodings, false);
+  }
+
+  /**
+   * When appending to an existing file, the header is not written again
+   */
+  public ColumnarWriter(OutputStream out, String[] names, Encoding[] encodings, boolean append) throws IOException {
+    this.out = new DataOutputStream(new BufferedOutputStream(out, 1 << 16));
+    this.columns = new ColumnBuffer[names.length];
+    for (int i = 0; i < names.length; i++) {
+      columns[i] = createBuffer(encodings[i]);
+    }
+
+    if (!append) {
+      this.out.writeInt(MAGIC);
+      this.out.writeInt(VERSION);
+      this.out.writeInt(names.length);
+      for (int i = 0; i < names.length; i++) {
+        this.out.writeUTF(names[i]);
+        this.out.writeByte(encodings[i].id);
+      }
+    }
+  }
+
+  /**
+   * Sets the value of a column in the current row, as UTF-8 bytes
+   */
+  public void set(int column, byte[] bytes, int from, int to) {
+    columns[column].set(rows, bytes, from, to);
+  }
+
+  /**
+   * Ends the current row. Columns that were not set are empty.
+   */
+  public void endRow() throws IOException {
+    rows++;
+    for (ColumnBuffer c : columns) {
+      c.fill(rows);
+    }
+    if (rows == BLOCK_ROWS) {
+      flushBlock();
+    }
+  }
+
+  /**
+   * Writes the pending rows as a (possibly smaller) block and flushes the stream
+   */
+  public void flush() throws IOException {
+    if (rows > 0) {
+      flushBlock();
+    }
+    out.flush();
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (rows > 0) {
+      flushBlock();
+    }
+    out.close();
+  }
+
+  private void flushBlock() throws IOException {
+    out.writeInt(rows);
+    byte[][] data = new byte[columns.length][];
+    for (int i = 0; i < columns.length; i++) {
+      data[i] = columns[i].toBytes(rows);
+      out.writeInt(data[i].length);
+    }
+    for (byte[] d : data) {
+      out.write(d);
+    }
+    for (ColumnBuffer c : columns) {
+      c.reset();
+    }
+    rows = 0;
+  }
+
+  private static ColumnBuffer createBuffer(Encoding encoding) {
+    switch (encoding) {
+      case TIMESTAMP:
+        return new TimestampBuffer();
+      case DICTIONARY:
+        return new DictionaryBuffer();
+      case STRING:
+        return new TextBuffer();
+      default:
+        throw new IllegalStateException("Unsupported encoding: " + encoding);
+    }
+  }
+
+  private abstract static class ColumnBuffer {
+    /**
+     * Sets the value of the given row
+     */
+    abstract void set(int row, byte[] bytes, int from, int to);
+
+    /**
+     * Makes sure all rows before the given one have a value
+     */
+    abstract void fill(int rows);
+
+    abstract byte[] toBytes(int rows) throws IOException;
+
+    abstract void reset();
+  }
+
+  private static class TimestampBuffer extends ColumnBuffer {
+    private final long[] millis = new long[BLOCK_ROWS];
+    private final int[] offsets = new int[BLOCK_ROWS];
+    private final TimestampDecoder decoder = new TimestampDecoder();
+    private final AsciiChars chars = new AsciiChars();
+    private int filled = 0;
+
+    @Override
+    void set(int row, byte[] bytes, int from, int to) {
+      fill(row + 1);
+      if (from == to) {
+        return;
+      }
+      if (decoder.tryDecode(chars.of(bytes, from, to))) {
+        millis[row] = decoder.epochMillis();
+        offsets[row] = decoder.offsetSeconds();
+      } else {
+        millis[row] = INVALID_TIME;
+      }
+    }
+
+    @Override
+    void fill(int rows) {
+      for (; filled < rows; filled++) {
+        millis[filled] = Long.MIN_VALUE;
+        offsets[filled] = 0;
+      }
+    }
+
+    @Override
+    byte[] toBytes(int rows) throws IOException {
+      ByteArrayOutputStream buffer = new ByteArrayOutputStream(rows * 12);
+      DataOutputStream bytes = new DataOutputStream(buffer);
+      for (int i = 0; i < rows; i++) {
+        bytes.writeLong(millis[i]);
+      }
+      for (int i = 0; i < rows; i++) {
+        bytes.writeInt(offsets[i]);
+      }
+      return buffer.toByteArray();
+    }
+
+    @Override
+    void reset() {
+      filled = 0;
+    }
+  }
+
+  /**
+   * Bytes of a value seen as chars, without decoding them. Timestamps are ASCII, and other bytes make them invalid.
+   */
+  private static final class AsciiChars implements CharSequence {
+    private byte[] bytes;
+    private int from;
+    private int length;
+
+    private AsciiChars of(byte[] bytes, int from, int to) {
+      this.bytes = bytes;
+      this.from = from;
+      this.length = to - from;
+      return this;
+    }
+
+    @Override
+    public int length() {
+      return length;
+    }
+
+    @Override
+    public char charAt(int index) {
+      return (char) (bytes[from + index] & 0xff);
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+      return toString().substring(start, end);
+    }
+
+    @Override
+    public String toString() {
+      return new String(bytes, from, length, StandardCharsets.ISO_8859_1);
+    }
+  }
+
+  private static class DictionaryBuffer extends ColumnBuffer {
+    private static final byte[] EMPTY = new byte[0];
+
+    private final ByteDictionary dictionary = new ByteDictionary();
+    private final int[] codes = new int[BLOCK_ROWS];
+    private int filled = 0;
+    private int emptyCode = -1;
+
+    @Override
+    void set(int row, byte[] bytes, int from, int to) {
+      fill(row);
+      codes[row] = dictionary.code(bytes, from, to);
+      filled = row + 1;
+    }
+
+    @Override
+    void fill(int rows) {
+      for (; filled < rows; filled++) {
+        if (emptyCode < 0) {
+          emptyCode = dictionary.code(EMPTY, 0, 0);
+        }
+        codes[filled] = emptyCode;
+      }
+    }
+
+    @Override
+    byte[] toBytes(int rows) throws IOException {
+      ByteArrayOutputStream buffer = new ByteArrayOutputStream(rows * 2);
+      DataOutputStream bytes = new DataOutputStream(buffer);
+      int size = dictionary.size();
+      bytes.writeInt(size);
+      for (int i = 0; i < size; i++) {
+        bytes.writeInt(dictionary.length(i));
+        bytes.write(dictionary.bytes(), dictionary.offset(i), dictionary.length(i));
+      }
+      int width = size <= 0x100 ? 1 : (size <= 0x10000 ? 2 : 4);
+      bytes.write(width);
+      for (int i = 0; i < rows; i++) {
+        if (width == 1) {
+          bytes.write(codes[i]);
+        } else if (width == 2) {
+          bytes.writeShort(codes[i]);
+        } else {
+          bytes.writeInt(codes[i]);
+        }
+      }
+      return buffer.toByteArray();
+    }
+
+    @Override
+    void reset() {
+      dictionary.clear();
+      filled = 0;
+      emptyCode = -1;
+    }
+  }
+
+  private static class TextBuffer extends ColumnBuffer {
+    private final int[] lengths = new int[BLOCK_ROWS];
+    private byte[] data = new byte[1 << 20];
+    private int dataPos = 0;
+    private int filled = 0;
+
+    @Override
+    void set(int row, byte[] bytes, int from, int to) {
+      fill(row);
+      int length = to - from;
+      if (dataPos + length > data.length) {
+        data = Arrays.copyOf(data, Math.max(2 * data.length, dataPos + length));
+      }
+      System.arraycopy(bytes, from, data, dataPos, length);
+      dataPos += length;
+      lengths[row] = length;
+      filled = row + 1;
+    }
+
+    @Override
+    void fill(int rows) {
+      for (; filled < rows; filled++) {
+        lengths[filled] = 0;
+      }
+    }
+
+    @Override
+    byte[] toBytes(int rows) throws IOException {
+      ByteArrayOutputStream buffer = new ByteArrayOutputStream(rows * 4 + dataPos);
+      DataOutputStream bytes = new DataOutputStream(buffer);
+      for (int i = 0; i < rows; i++) {
+        bytes.writeInt(lengths[i]);
+      }
+      bytes.write(data, 0, dataPos);
+      return buffer.toByteArray();
+    }
+
+    @Override
+    void reset() {
+      dataPos = 0;
+      filled = 0;
+    }
+  }
+}
@@ -0,0 +1,37 @@
+package meneses.kibana.columnar;
+
+/**
+ * How the values of a column are stored in a block
+ */
+public enum Encoding {
+  /**
+   * ISO-8601 date-time with offset, stored as epoch millis (long) and offset seconds (int).
+   * Empty values are stored as {@link Long#MIN_VALUE}, and values that can't be parsed as
+   * {@link ColumnarWriter#INVALID_TIME}. Precision below the millisecond is lost.
+   */
+  TIMESTAMP(1),
+  /**
+   * Low-cardinality strings: a dictionary of the distinct values of the block followed by one code per row,
+   * using 1, 2 or 4 bytes per code depending on the size of the dictionary.
+   */
+  DICTIONARY(2),
+  /**
+   * Arbitrary strings: the byte length of each row followed by the concatenated UTF-8 bytes
+   */
+  STRING(3);
+
+  final int id;
+
+  Encoding(int id) {
+    this.id = id;
+  }
+
+  static Encoding of(int id) {
+    for (Encoding e : values()) {
+      if (e.id == id) {
+        return e;
+      }
+    }
+    throw new IllegalStateException("Unknown encoding: " + id);
+  }
+}
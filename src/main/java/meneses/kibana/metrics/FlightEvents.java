@@ -0,0 +1,94 @@
+package meneses.kibana.metrics;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * Custom JDK Flight Recorder events, recorded along with the JVM's own when a recording is started, for instance with
+ * {@code -XX:StartFlightRecording=filename=load.jfr}.
+ * <p>
+ * The build targets Java 11 for them. Runtimes linked without the {@code jdk.jfr} module don't have JFR, so callers must
+ * check {@link #AVAILABLE} first: the events are then only referenced from this class, and are never loaded there.
+ */
+public final class FlightEvents {
+  public static final boolean AVAILABLE = isAvailable();
+
+  private FlightEvents() {
+  }
+
+  private static boolean isAvailable() {
+    try {
+      Class.forName("jdk.jfr.Event", false, FlightEvents.class.getClassLoader());
+      return true;
+    } catch (ClassNotFoundException | LinkageError e) {
+      return false;
+    }
+  }
+
+  /**
+   * Starts timing a page fetch. The returned handle is given back to {@link #endPageFetch}, possibly by another thread.
+   */
+  public static Object beginPageFetch() {
+    PageFetch event = new PageFetch();
+    event.begin();
+    return event;
+  }
+
+  public static void endPageFetch(Object handle, int hits) {
+    PageFetch event = (PageFetch) handle;
+    event.end();
+    if (event.shouldCommit()) {
+      event.hits = hits;
+      event.commit();
+    }
+  }
+
+  public static void batchHandOff(int lines, long backlog, int limit, long claimNanos) {
+    BatchHandOff event = new BatchHandOff();
+    if (event.isEnabled()) {
+      event.lines = lines;
+      event.backlog = backlog;
+      event.limit = limit;
+      event.claimWait = claimNanos;
+      event.commit();
+    }
+  }
+
+  @Name("meneses.kibana.PageFetch")
+  @Label("Page Fetch")
+  @Description("A page of documents fetched from Elasticsearch by Download")
+  @Category("Telemetry")
+  @StackTrace(false)
+  static final class PageFetch extends Event {
+    @Label("Hits")
+    int hits;
+  }
+
+  @Name("meneses.kibana.BatchHandOff")
+  @Label("Batch Hand-off")
+  @Description("A batch of lines published by the reader of Load to the consumers")
+  @Category("Telemetry")
+  @StackTrace(false)
+  static final class BatchHandOff extends Event {
+    @Label("Lines")
+    int lines;
+
+    @Label("Backlog")
+    @Description("Batches published and not yet consumed, this one included")
+    long backlog;
+
+    @Label("Batch Limit")
+    @Description("Number of lines per batch after this one")
+    int limit;
+
+    @Label("Claim Wait")
+    @Description("Time the reader waited for a free batch before filling this one")
+    @Timespan(Timespan.NANOSECONDS)
+    long claimWait;
+  }
+}
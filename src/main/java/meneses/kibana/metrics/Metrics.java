@@ -0,0 +1,64 @@
+package meneses.kibana.metrics;
+
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.LongSupplier;
+
+/**
+ * Process-wide registry of named {@link Counter}s, {@link Timer}s and gauges, readable at any time while Load or
+ * Download run, and dumped to a file by {@link MetricsReporter}.
+ * <p>
+ * Counters and timers are created on first use and then shared by all the threads using the same name, so hot paths
+ * should look them up once and keep them. Gauges are sampled only when read; registering a gauge again replaces it.
+ */
+public final class Metrics {
+  private static final ConcurrentMap<String, Counter> COUNTERS = new ConcurrentHashMap<>();
+  private static final ConcurrentMap<String, Timer> TIMERS = new ConcurrentHashMap<>();
+  private static final ConcurrentMap<String, LongSupplier> GAUGES = new ConcurrentHashMap<>();
+
+  private Metrics() {
+  }
+
+  public static Counter counter(String name) {
+    return COUNTERS.computeIfAbsent(name, n -> new Counter());
+  }
+
+  public static Timer timer(String name) {
+    return TIMERS.computeIfAbsent(name, n -> new Timer());
+  }
+
+  public static void gauge(String name, LongSupplier value) {
+    GAUGES.put(name, value);
+  }
+
+  /**
+   * All current values, by name. Timers are flattened to {@code name.count}, {@code name.items}, {@code name.nanos}
+   * and {@code name.maxNanos}.
+   */
+  public static SortedMap<String, Long> snapshot() {
+    SortedMap<String, Long> values = new TreeMap<>();
+    COUNTERS.forEach((name, c) -> values.put(name, c.get()));
+    TIMERS.forEach((name, t) -> {
+      values.put(name + ".count", t.count());
+      values.put(name + ".items", t.items());
+      values.put(name + ".nanos", t.nanos());
+      values.put(name + ".maxNanos", t.maxNanos());
+    });
+    GAUGES.forEach((name, g) -> values.put(name, g.getAsLong()));
+    return values;
+  }
+
+  static SortedMap<String, Counter> counters() {
+    return new TreeMap<>(COUNTERS);
+  }
+
+  static SortedMap<String, Timer> timers() {
+    return new TreeMap<>(TIMERS);
+  }
+
+  static SortedMap<String, LongSupplier> gauges() {
+    return new TreeMap<>(GAUGES);
+  }
+}
@@ -0,0 +1,146 @@
+package meneses.kibana.metrics;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Appends the {@link Metrics} to a file every few seconds, one JSON object per line, and once more when closed.
+ * <p>
+ * Each line has the time, the counters with their rate per second since the previous line, the timers with their
+ * items per second and nanos per item, and the gauges. Enabled with {@code -Dmetrics.file=<file>}, every
+ * {@code -Dmetrics.interval} seconds (10 by default).
+ */
+public final class MetricsReporter implements AutoCloseable {
+  private static final String FILE = System.getProperty("metrics.file");
+  private static final int INTERVAL_SECONDS = Integer.getInteger("metrics.interval", 10);
+  private static final JsonFactory JSON = new JsonFactory();
+
+  private final Path path;
+  private final Thread thread;
+  private final long start = System.nanoTime();
+  // values at the previous dump, to compute the rates
+  private final Map<String, Long> previous = new HashMap<>();
+  private long previousNanos = start;
+  private IOException failure;
+
+  private MetricsReporter(Path path, long intervalMillis) {
+    this.path = path;
+    this.thread = new Thread(() -> {
+      try {
+        while (true) {
+          Thread.sleep(intervalMillis);
+          dump();
+        }
+      } catch (InterruptedException e) {
+        // closed
+      }
+    }, "metrics-reporter");
+    thread.setDaemon(true);
+  }
+
+  /**
+   * Starts reporting if a file is configured. Otherwise the returned reporter does nothing. It must be closed, usually
+   * in a finally block around the work whose metrics it reports.
+   */
+  public static MetricsReporter start() throws IOException {
+    return FILE == null ? new MetricsReporter(null, 0) : start(Paths.get(FILE), TimeUnit.SECONDS.toMillis(INTERVAL_SECONDS));
+  }
+
+  public static MetricsReporter start(Path path, long intervalMillis) throws IOException {
+    Files.deleteIfExists(path);
+    MetricsReporter reporter = new MetricsReporter(path, intervalMillis);
+    reporter.thread.start();
+    return reporter;
+  }
+
+  /**
+   * Stops the periodic dumps and writes the final values
+   */
+  @Override public void close() throws IOException {
+    if (path == null) {
+      return;
+    }
+    thread.interrupt();
+    try {
+      thread.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    dump();
+    if (failure != null) {
+      throw failure;
+    }
+  }
+
+  private synchronized void dump() {
+    if (failure != null) {
+      return;
+    }
+    long now = System.nanoTime();
+    double seconds = Math.max(1, now - previousNanos) / 1e9;
+    try (OutputStream out = Files.newOutputStream(path, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+      JsonGenerator json = JSON.createGenerator(out, JsonEncoding.UTF8)) {
+      json.writeStartObject();
+      json.writeStringField("time", Instant.now().toString());
+      json.writeNumberField("elapsedMillis", TimeUnit.NANOSECONDS.toMillis(now - start));
+
+      json.writeObjectFieldStart("counters");
+      for (Map.Entry<String, Counter> e : Metrics.counters().entrySet()) {
+        long value = e.getValue().get();
+        json.writeObjectFieldStart(e.getKey());
+        json.writeNumberField("value", value);
+        json.writeNumberField("perSecond", rate(e.getKey(), value, seconds));
+        json.writeEndObject();
+      }
+      json.writeEndObject();
+
+      json.writeObjectFieldStart("timers");
+      for (Map.Entry<String, Timer> e : Metrics.timers().entrySet()) {
+        Timer t = e.getValue();
+        long items = t.items();
+        json.writeObjectFieldStart(e.getKey());
+        json.writeNumberField("count", t.count());
+        json.writeNumberField("items", items);
+        json.writeNumberField("nanos", t.nanos());
+        json.writeNumberField("maxNanos", t.maxNanos());
+        json.writeNumberField("nanosPerItem", round(t.nanosPerItem()));
+        json.writeNumberField("itemsPerSecond", rate(e.getKey() + ".items", items, seconds));
+        json.writeEndObject();
+      }
+      json.writeEndObject();
+
+      json.writeObjectFieldStart("gauges");
+      for (Map.Entry<String, LongSupplier> e : Metrics.gauges().entrySet()) {
+        json.writeNumberField(e.getKey(), e.getValue().getAsLong());
+      }
+      json.writeEndObject();
+
+      json.writeEndObject();
+      json.writeRaw('\n');
+    } catch (IOException e) {
+      failure = e;
+    }
+    previousNanos = now;
+  }
+
+  private double rate(String name, long value, double seconds) {
+    Long before = previous.put(name, value);
+    return round((value - (before == null ? 0 : before)) / seconds);
+  }
+
+  private static double round(double value) {
+    return Math.round(value * 10) / 10.0;
+  }
+}
@@ -0,0 +1,56 @@
+package meneses.kibana.metrics;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Durations of an operation that handles a number of items each time, such as a processor given a batch of rows, so
+ * that both the time per call and the time per item can be read.
+ */
+public final class Timer {
+  private final LongAdder count = new LongAdder();
+  private final LongAdder items = new LongAdder();
+  private final LongAdder nanos = new LongAdder();
+  private final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+
+  Timer() {
+  }
+
+  public void record(long nanos, long items) {
+    this.count.increment();
+    this.items.add(items);
+    this.nanos.add(nanos);
+    this.maxNanos.accumulate(nanos);
+  }
+
+  /**
+   * Records the time since the given {@link System#nanoTime()}
+   */
+  public void recordSince(long startNanos, long items) {
+    record(System.nanoTime() - startNanos, items);
+  }
+
+  public long count() {
+    return count.sum();
+  }
+
+  public long items() {
+    return items.sum();
+  }
+
+  public long nanos() {
+    return nanos.sum();
+  }
+
+  public long maxNanos() {
+    return maxNanos.get();
+  }
+
+  /**
+   * Mean nanos per item, or 0 if nothing was recorded
+   */
+  public double nanosPerItem() {
+    long i = items();
+    return i == 0 ? 0 : (double) nanos() / i;
+  }
+}
@@ -0,0 +1,392 @@
+package meneses.kibana.processor;
+
+import java.util.Arrays;
+
+/**
+ * Streaming decoder of the analyses field, a list of {@code {language, rate_per_duration: {label: rate, ...}}}
+ * objects. Each entry is handed to a {@link Sink} as it is read, without building a tree or any per-row object.
+ * <p>
+ * Like the lenient Gson parsing it replaces, it accepts both JSON and the {@code Map.toString} form written by older
+ * exports ({@code [{language=java, rate_per_duration={0-300=93.0, ...}}]}): names and values can be unquoted, and
+ * names can be followed by '=' instead of ':'. Unknown fields and labels are ignored.
+ * <p>
+ * Language names are interned by the decoder to small ints, in order of appearance, see {@link #language(int)}.
+ * Not thread safe.
+ */
+final class AnalysesDecoder {
+  interface Sink {
+    /**
+     * Called for each entry. The levels array is reused for the next entry.
+     */
+    void accept(int language, double[] levels);
+  }
+
+  private static final String LANGUAGE = "language";
+  private static final String RATE_PER_DURATION = "rate_per_duration";
+  // powers of ten that are exact doubles, see parseDouble
+  private static final double[] POWERS_OF_TEN = {1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+    1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22};
+
+  private final String[] labels;
+  private final double[] levels;
+  private String[] languages = new String[8];
+  private int languageCount = 0;
+
+  private CharSequence s;
+  private int pos;
+  private int end;
+
+  // current string or literal: either the range [tokenStart, tokenEnd) of the input, or unescaped if it had escapes
+  private int tokenStart;
+  private int tokenEnd;
+  private boolean tokenEscaped;
+  private final StringBuilder unescaped = new StringBuilder();
+
+  /**
+   * @param labels labels of the rates, in the order of the levels passed to the sink
+   */
+  AnalysesDecoder(String[] labels) {
+    this.labels = labels;
+    this.levels = new double[labels.length];
+  }
+
+  /**
+   * Decodes the field and passes each of its entries to the sink.
+   *
+   * @throws IllegalArgumentException if the field is malformed
+   */
+  void decode(CharSequence field, Sink sink) {
+    this.s = field;
+    this.pos = 0;
+    this.end = field.length();
+    expect('[');
+    if (!tryConsume(']')) {
+      do {
+        decodeEntry(sink);
+      } while (tryConsume(','));
+      expect(']');
+    }
+    skipWhitespace();
+    if (pos != end) {
+      throw error("unexpected characters after the list");
+    }
+    this.s = null;
+  }
+
+  private void decodeEntry(Sink sink) {
+    int language = -1;
+    Arrays.fill(levels, 0.0);
+    expect('{');
+    if (!tryConsume('}')) {
+      do {
+        readName();
+        if (tokenEquals(LANGUAGE)) {
+          if (peek() == '{' || peek() == '[') {
+            throw error("language is not a string");
+          }
+          readToken();
+          language = intern();
+        } else if (tokenEquals(RATE_PER_DURATION)) {
+          decodeRates();
+        } else {
+          skipValue();
+        }
+      } while (tryConsume(','));
+      expect('}');
+    }
+    if (language < 0) {
+      throw error("entry without language");
+    }
+    sink.accept(language, levels);
+  }
+
+  private void decodeRates() {
+    expect('{');
+    if (tryConsume('}')) {
+      return;
+    }
+    do {
+      readName();
+      int level = level();
+      if (level < 0 || peek() == '{' || peek() == '[') {
+        skipValue();
+      } else {
+        readToken();
+        levels[level] = parseDouble();
+      }
+    } while (tryConsume(','));
+    expect('}');
+  }
+
+  private int level() {
+    for (int i = 0; i < labels.length; i++) {
+      if (tokenEquals(labels[i])) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  private void readName() {
+    readToken();
+    skipWhitespace();
+    if (pos < end && s.charAt(pos) == ':') {
+      pos++;
+    } else if (pos < end && s.charAt(pos) == '=') {
+      pos++;
+      if (pos < end && s.charAt(pos) == '>') {
+        pos++;
+      }
+    } else {
+      throw error("expected ':' or '='");
+    }
+  }
+
+  private void skipValue() {
+    char c = peek();
+    if (c == '{' || c == '[') {
+      char close = c == '{' ? '}' : ']';
+      pos++;
+      if (tryConsume(close)) {
+        return;
+      }
+      do {
+        if (close == '}') {
+          readName();
+        }
+        skipValue();
+      } while (tryConsume(','));
+      expect(close);
+    } else {
+      readToken();
+    }
+  }
+
+  /**
+   * Reads a quoted string or an unquoted literal.
+   */
+  private void readToken() {
+    char c = peek();
+    tokenEscaped = false;
+    if (c == '"' || c == '\'') {
+      readQuoted(c);
+      return;
+    }
+    tokenStart = pos;
+    while (pos < end && !isLiteralEnd(s.charAt(pos))) {
+      pos++;
+    }
+    tokenEnd = pos;
+    if (tokenStart == tokenEnd) {
+      throw error("expected a value");
+    }
+  }
+
+  private void readQuoted(char quote) {
+    pos++;
+    tokenStart = pos;
+    while (pos < end) {
+      char c = s.charAt(pos);
+      if (c == quote) {
+        tokenEnd = pos++;
+        return;
+      }
+      if (c == '\\') {
+        readEscaped(quote);
+        return;
+      }
+      pos++;
+    }
+    throw error("unterminated string");
+  }
+
+  private void readEscaped(char quote) {
+    tokenEscaped = true;
+    unescaped.setLength(0);
+    unescaped.append(s, tokenStart, pos);
+    while (pos < end) {
+      char c = s.charAt(pos++);
+      if (c == quote) {
+        return;
+      }
+      if (c != '\\') {
+        unescaped.append(c);
+        continue;
+      }
+      if (pos == end) {
+        break;
+      }
+      char e = s.charAt(pos++);
+      switch (e) {
+        case 'b': unescaped.append('\b'); break;
+        case 'f': unescaped.append('\f'); break;
+        case 'n': unescaped.append('\n'); break;
+        case 'r': unescaped.append('\r'); break;
+        case 't': unescaped.append('\t'); break;
+        case 'u':
+          if (pos + 4 > end) {
+            throw error("unterminated escape");
+          }
+          int code = 0;
+          for (int i = 0; i < 4; i++) {
+            int digit = Character.digit(s.charAt(pos++), 16);
+            if (digit < 0) {
+              throw error("invalid escape");
+            }
+            code = code << 4 | digit;
+          }
+          unescaped.append((char) code);
+          break;
+        default:
+          unescaped.append(e);
+      }
+    }
+    throw error("unterminated string");
+  }
+
+  private static boolean isLiteralEnd(char c) {
+    switch (c) {
+      case '/': case '\\': case ';': case '#': case '=': case '{': case '}': case '[': case ']': case ':': case ',':
+      case ' ': case '\t': case '\f': case '\r': case '\n':
+        return true;
+      default:
+        return false;
+    }
+  }
+
+  private boolean tokenEquals(String value) {
+    if (tokenEscaped) {
+      return value.contentEquals(unescaped);
+    }
+    int length = tokenEnd - tokenStart;
+    if (length != value.length()) {
+      return false;
+    }
+    for (int i = 0; i < length; i++) {
+      if (s.charAt(tokenStart + i) != value.charAt(i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private String tokenString() {
+    return tokenEscaped ? unescaped.toString() : s.subSequence(tokenStart, tokenEnd).toString();
+  }
+
+  /**
+   * Number of languages interned so far
+   */
+  int languageCount() {
+    return languageCount;
+  }
+
+  String language(int language) {
+    return languages[language];
+  }
+
+  /**
+   * Returns the int of the language, interning it if it's new.
+   */
+  int language(String name) {
+    for (int i = 0; i < languageCount; i++) {
+      if (languages[i].equals(name)) {
+        return i;
+      }
+    }
+    return add(name);
+  }
+
+  private int intern() {
+    for (int i = 0; i < languageCount; i++) {
+      if (tokenEquals(languages[i])) {
+        return i;
+      }
+    }
+    return add(tokenString());
+  }
+
+  private int add(String name) {
+    if (languageCount == languages.length) {
+      languages = Arrays.copyOf(languages, languageCount * 2);
+    }
+    languages[languageCount] = name;
+    return languageCount++;
+  }
+
+  /**
+   * Parses the current token. Plain decimals of up to 15 significant digits are computed exactly as an integer divided
+   * by a power of ten, which is correctly rounded since both are exact doubles. Anything else is left to
+   * {@link Double#parseDouble(String)}.
+   */
+  private double parseDouble() {
+    if (!tokenEscaped) {
+      int i = tokenStart;
+      boolean negative = i < tokenEnd && s.charAt(i) == '-';
+      if (negative) {
+        i++;
+      }
+      long mantissa = 0;
+      int digits = 0;
+      int decimals = -1;
+      for (; i < tokenEnd; i++) {
+        char c = s.charAt(i);
+        if (c >= '0' && c <= '9') {
+          mantissa = mantissa * 10 + (c - '0');
+          digits++;
+          if (decimals >= 0) {
+            decimals++;
+          }
+        } else if (c == '.' && decimals < 0) {
+          decimals = 0;
+        } else {
+          break;
+        }
+      }
+      if (i == tokenEnd && digits > 0 && digits <= 15 && decimals != 0) {
+        double value = decimals > 0 ? mantissa / POWERS_OF_TEN[decimals] : mantissa;
+        return negative ? -value : value;
+      }
+    }
+    try {
+      return Double.parseDouble(tokenString());
+    } catch (NumberFormatException e) {
+      throw error("invalid number '" + tokenString() + "'");
+    }
+  }
+
+  private void skipWhitespace() {
+    while (pos < end && Character.isWhitespace(s.charAt(pos))) {
+      pos++;
+    }
+  }
+
+  private char peek() {
+    skipWhitespace();
+    if (pos == end) {
+      throw error("unexpected end");
+    }
+    return s.charAt(pos);
+  }
+
+  private boolean tryConsume(char c) {
+    skipWhitespace();
+    if (pos < end && s.charAt(pos) == c) {
+      pos++;
+      return true;
+    }
+    return false;
+  }
+
+  private void expect(char c) {
+    if (!tryConsume(c)) {
+      throw error("expected '" + c + "'");
+    }
+  }
+
+  private IllegalArgumentException error(String message) {
+    String field = s.toString();
+    s = null;
+    return new IllegalArgumentException("Invalid analyses at position " + pos + ": " + message + ": " + field);
+  }
+}
@@ -0,0 +1,19 @@
+package meneses.kibana.processor;
+
+/**
+ * Optional columns of a {@link RowBatch}. Only the columns needed by the processors are filled.
+ * Install and system times are always filled, since rows are validated with them.
+ */
+public enum Column {
+  ANALYSES(1),
+  PRODUCT(5);
+
+  /**
+   * Index of the field in exported rows
+   */
+  public final int field;
+
+  Column(int field) {
+    this.field = field;
+  }
+}
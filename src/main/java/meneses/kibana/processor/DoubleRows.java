@@ -0,0 +1,112 @@
+package meneses.kibana.processor;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Fixed width rows of doubles per primitive long key, for summing without an object per entry.
+ * Rows are kept in insertion order in one contiguous slab, where row r starts at {@code r * width()}, and are found by
+ * key through a {@link LongIntMap} of row indexes. {@link Long#MIN_VALUE} can't be used as a key.
+ */
+public final class DoubleRows {
+  private final int width;
+  private final LongIntMap rowsByKey = new LongIntMap();
+  private long[] keys = new long[16];
+  private double[] slab;
+  private int rows = 0;
+
+  public DoubleRows(int width) {
+    this.width = width;
+    this.slab = new double[keys.length * width];
+  }
+
+  /**
+   * Adds {@link #width()} values, starting at the given offset, to the row of the key. The row starts with zeros.
+   */
+  public void add(long key, double[] values, int offset) {
+    int base = row(key) * width;
+    for (int i = 0; i < width; i++) {
+      slab[base + i] += values[offset + i];
+    }
+  }
+
+  /**
+   * Returns the index of the row of the key, adding it if it's absent.
+   */
+  public int row(long key) {
+    int row = rowsByKey.get(key, -1);
+    if (row < 0) {
+      if (rows == keys.length) {
+        keys = Arrays.copyOf(keys, rows * 2);
+        slab = Arrays.copyOf(slab, rows * 2 * width);
+      }
+      row = rows++;
+      keys[row] = key;
+      rowsByKey.put(key, row);
+    }
+    return row;
+  }
+
+  /**
+   * Removes all rows, keeping the capacity
+   */
+  public void clear() {
+    rowsByKey.clear();
+    Arrays.fill(slab, 0, rows * width, 0.0);
+    rows = 0;
+  }
+
+  public int width() {
+    return width;
+  }
+
+  public int rows() {
+    return rows;
+  }
+
+  public long key(int row) {
+    return keys[row];
+  }
+
+  /**
+   * Writes the keys and values of the rows, see {@link #read(DataInput)}
+   */
+  public void write(DataOutput out) throws IOException {
+    out.writeInt(width);
+    out.writeInt(rows);
+    for (int row = 0; row < rows; row++) {
+      out.writeLong(keys[row]);
+      for (int i = 0; i < width; i++) {
+        out.writeDouble(slab[row * width + i]);
+      }
+    }
+  }
+
+  /**
+   * Adds the rows written by {@link #write(DataOutput)} to the ones of the same keys
+   */
+  public void read(DataInput in) throws IOException {
+    int w = in.readInt();
+    if (w != width) {
+      throw new IOException("Expected rows of " + width + " values, got " + w);
+    }
+    int count = in.readInt();
+    double[] values = new double[width];
+    for (int row = 0; row < count; row++) {
+      long key = in.readLong();
+      for (int i = 0; i < width; i++) {
+        values[i] = in.readDouble();
+      }
+      add(key, values, 0);
+    }
+  }
+
+  /**
+   * The rows, one after the other. Only the first {@code rows() * width()} values are used.
+   */
+  public double[] slab() {
+    return slab;
+  }
+}
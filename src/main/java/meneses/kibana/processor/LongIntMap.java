@@ -0,0 +1,152 @@
+package meneses.kibana.processor;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Open addressing map of primitive long keys to int values, without an object per entry.
+ * {@link Long#MIN_VALUE} can't be used as a key. Entries are iterated by slot, see {@link #capacity()}.
+ */
+public final class LongIntMap {
+  private static final long FREE = Long.MIN_VALUE;
+
+  private long[] keys;
+  private int[] values;
+  private int size = 0;
+
+  public LongIntMap() {
+    this(16);
+  }
+
+  public LongIntMap(int expectedSize) {
+    int capacity = Integer.highestOneBit(Math.max(8, expectedSize * 2) - 1) << 1;
+    keys = new long[capacity];
+    values = new int[capacity];
+    Arrays.fill(keys, FREE);
+  }
+
+  /**
+   * Adds delta to the value of the key, which is 0 if the key is absent. Returns the new value.
+   */
+  public int add(long key, int delta) {
+    int slot = slot(key);
+    if (keys[slot] == FREE) {
+      keys[slot] = key;
+      values[slot] = delta;
+      if (++size * 2 > keys.length) {
+        rehash();
+      }
+      return delta;
+    }
+    values[slot] += delta;
+    return values[slot];
+  }
+
+  public void put(long key, int value) {
+    int slot = slot(key);
+    values[slot] = value;
+    if (keys[slot] == FREE) {
+      keys[slot] = key;
+      if (++size * 2 > keys.length) {
+        rehash();
+      }
+    }
+  }
+
+  /**
+   * Returns the value of the key, or the given default if it's absent
+   */
+  public int get(long key, int defaultValue) {
+    int slot = slot(key);
+    return keys[slot] == FREE ? defaultValue : values[slot];
+  }
+
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Removes all entries, keeping the capacity
+   */
+  public void clear() {
+    if (size > 0) {
+      Arrays.fill(keys, FREE);
+      size = 0;
+    }
+  }
+
+  /**
+   * Number of slots, for iteration with {@link #isUsed(int)}, {@link #keyAt(int)} and {@link #valueAt(int)}
+   */
+  public int capacity() {
+    return keys.length;
+  }
+
+  public boolean isUsed(int slot) {
+    return keys[slot] != FREE;
+  }
+
+  public long keyAt(int slot) {
+    return keys[slot];
+  }
+
+  public int valueAt(int slot) {
+    return values[slot];
+  }
+
+  /**
+   * Writes the entries, see {@link #read(DataInput)}
+   */
+  public void write(DataOutput out) throws IOException {
+    out.writeInt(size);
+    for (int slot = 0; slot < keys.length; slot++) {
+      if (keys[slot] != FREE) {
+        out.writeLong(keys[slot]);
+        out.writeInt(values[slot]);
+      }
+    }
+  }
+
+  /**
+   * Adds the values of entries written by {@link #write(DataOutput)} to the ones of this map
+   */
+  public void read(DataInput in) throws IOException {
+    int count = in.readInt();
+    for (int i = 0; i < count; i++) {
+      add(in.readLong(), in.readInt());
+    }
+  }
+
+  private int slot(long key) {
+    int mask = keys.length - 1;
+    int slot = hash(key) & mask;
+    while (keys[slot] != FREE && keys[slot] != key) {
+      slot = (slot + 1) & mask;
+    }
+    return slot;
+  }
+
+  private void rehash() {
+    long[] oldKeys = keys;
+    int[] oldValues = values;
+    keys = new long[oldKeys.length * 2];
+    values = new int[oldKeys.length * 2];
+    Arrays.fill(keys, FREE);
+    for (int i = 0; i < oldKeys.length; i++) {
+      if (oldKeys[i] != FREE) {
+        int slot = slot(oldKeys[i]);
+        keys[slot] = oldKeys[i];
+        values[slot] = oldValues[i];
+      }
+    }
+  }
+
+  static int hash(long key) {
+    key ^= key >>> 33;
+    key *= 0xff51afd7ed558ccdL;
+    key ^= key >>> 33;
+    return (int) key;
+  }
+}
@@ -0,0 +1,59 @@
+package meneses.kibana.processor;
+
+import java.util.Arrays;
+import java.util.function.IntFunction;
+
+/**
+ * Values per month, in an array indexed by month (see {@link RowBatch#month(long)}) from the first month seen, so
+ * that looking them up needs no boxing or hashing.
+ */
+final class MonthTable<T> {
+  private Object[] values = new Object[0];
+  private int first = 0;
+
+  @SuppressWarnings("unchecked")
+  T get(int month) {
+    int i = month - first;
+    return i >= 0 && i < values.length ? (T) values[i] : null;
+  }
+
+  T computeIfAbsent(int month, IntFunction<T> factory) {
+    T value = get(month);
+    if (value == null) {
+      value = factory.apply(month);
+      set(month, value);
+    }
+    return value;
+  }
+
+  void clear() {
+    Arrays.fill(values, null);
+  }
+
+  /**
+   * First month, to iterate until {@link #end()}. Months without value are null.
+   */
+  int start() {
+    return first;
+  }
+
+  int end() {
+    return first + values.length;
+  }
+
+  private void set(int month, T value) {
+    if (values.length == 0) {
+      values = new Object[12];
+      first = month;
+    } else if (month < first) {
+      int shift = Math.max(first - month, 12);
+      Object[] grown = new Object[values.length + shift];
+      System.arraycopy(values, 0, grown, shift, values.length);
+      values = grown;
+      first -= shift;
+    } else if (month - first >= values.length) {
+      values = Arrays.copyOf(values, Math.max(month - first + 1, values.length + 12));
+    }
+    values[month - first] = value;
+  }
+}
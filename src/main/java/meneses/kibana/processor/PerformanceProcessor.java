@@ -1,172 +1,353 @@
 package meneses.kibana.processor;
 
-import com.google.gson.JsonArray;
-import com.google.gson.JsonElement;
-import com.google.gson.JsonObject;
-import com.google.gson.JsonParser;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.text.NumberFormat;
-import java.time.OffsetDateTime;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
-import java.util.HashSet;
+import java.util.Collections;
+import java.util.EnumSet;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
-import java.util.Objects;
 import java.util.Set;
 import java.util.TreeMap;
-
+import org.roaringbitmap.RoaringBitmap;
+
+/**
+ * Performance of the analyses per language. Unique users per language are counted exactly, or estimated with a
+ * {@link HyperLogLog} sketch when a precision is given.
+ * <p>
+ * Exact unique users are kept as bitmaps of user ids. The analyses field is decoded as a stream by
+ * {@link AnalysesDecoder}, which interns languages to small ints. The rates are added straight into the row of each
+ * user and language in a {@link DoubleRows} slab, keyed by {@code user << 32 | language}.
+ * <p>
+ * When only a {@link Sampling} of the users is processed, counts are scaled up. Percentages and averages are ratios over
+ * whole users, so they are estimated as they are.
+ * <p>
+ * The rows of the users are folded into sums per language by {@link #after()}, or as soon as the rows of the users end
+ * when rows come grouped by user (see {@link #endUsers()}), while {@link RetentionProcessor} still knows their months of
+ * usage.
+ */
 public class PerformanceProcessor implements Processor {
   private static final NumberFormat NUMBER_FORMAT = NumberFormat.getInstance(Locale.US);
+  private static final int LEVELS = PERF_LEVEL.values().length;
 
-  private final Map<UserLang, RatePerDuration> durationsPerUserLang = new HashMap<>();
-  private final Map<String, Set<OffsetDateTime>> uniqueUsersPerLang = new HashMap<>();
+  private final DoubleRows durationsPerUserLang = new DoubleRows(LEVELS);
+  // indexed by language, null until the language is seen. Users are added as id + 1, 0 being users without install time.
+  private final List<RoaringBitmap> uniqueUsersPerLang = new ArrayList<>();
+  private final List<HyperLogLog> approxUniqueUsersPerLang = new ArrayList<>();
   private final RetentionProcessor retention;
+  private final int precision;
+
+  // per language, unique users folded so far, the sums of each level and the number of users reaching the 85th
+  // percentile at each level
+  private long[] foldedUsersPerLang = new long[0];
+  private double[] sumPerLang = new double[0];
+  private double[] percentil = new double[0];
+  // java performance level and number of users, per months of usage
+  private final Map<Integer, Integer> perfByMonth = new TreeMap<>();
+  private final Map<Integer, Integer> countByMonth = new TreeMap<>();
+
+  private final AnalysesDecoder decoder = new AnalysesDecoder(PERF_LEVEL.labels());
+  private final AnalysesDecoder.Sink accumulator = this::accumulate;
+  // user of the row being processed
+  private long installKey;
+  private int user;
 
   public PerformanceProcessor(RetentionProcessor retention) {
+    this(retention, 0);
+  }
+
+  /**
+   * @param precision precision of the sketches estimating the unique users per language, or 0 to count them exactly
+   */
+  public PerformanceProcessor(RetentionProcessor retention, int precision) {
     this.retention = retention;
+    this.precision = precision;
   }
 
   @Override public void before() {
 
   }
 
-  @Override public void process(OffsetDateTime installTime, OffsetDateTime systemTime, String[] fields) {
-    String json = fields[1];
-    if (json.isEmpty()) {
-      return;
+  @Override public Set<Column> columns() {
+    return EnumSet.of(Column.ANALYSES);
+  }
+
+  @Override public List<Processor> dependencies() {
+    return Collections.singletonList(retention);
+  }
+
+  @Override public void process(RowBatch batch) {
+    int[] ids = batch.users(retention.users);
+    for (int i = 0; i < batch.size(); i++) {
+      if (!batch.hasAnalyses(i)) {
+        continue;
+      }
+      this.user = ids[i];
+      this.installKey = batch.hasInstallTime(i) ? UserIds.key(batch.installMillis(i), batch.installOffset(i)) : Long.MIN_VALUE;
+      decoder.decode(batch.analyses(i), accumulator);
+    }
+  }
+
+  private void accumulate(int language, double[] levels) {
+    if (precision > 0) {
+      approxUniqueUsers(language).add(installKey);
+    } else {
+      uniqueUsers(language).add(user + 1);
     }
+    durationsPerUserLang.add(key(user, language), levels, 0);
+  }
 
-    List<RatePerDuration> durations = parse(json);
+  @Override public void merge(Processor other) {
+    PerformanceProcessor o = (PerformanceProcessor) other;
+    int[] mapping = retention.users.mapping(o.retention.users);
+    int[] languages = new int[o.decoder.languageCount()];
+    for (int i = 0; i < languages.length; i++) {
+      languages[i] = decoder.language(o.decoder.language(i));
+    }
 
-    for (RatePerDuration rpd : durations) {
-      uniqueUsersPerLang.computeIfAbsent(rpd.language, k -> new HashSet<>()).add(installTime);
-      UserLang userLang = new UserLang(installTime, rpd.language);
-      durationsPerUserLang.compute(userLang, (k, v) -> v != null ? sum(v, rpd) : rpd);
+    double[] slab = o.durationsPerUserLang.slab();
+    for (int row = 0; row < o.durationsPerUserLang.rows(); row++) {
+      long key = o.durationsPerUserLang.key(row);
+      int user = user(key) == UserIds.NONE ? UserIds.NONE : mapping[user(key)];
+      durationsPerUserLang.add(key(user, languages[language(key)]), slab, row * LEVELS);
+    }
+    for (int i = 0; i < o.uniqueUsersPerLang.size(); i++) {
+      if (o.uniqueUsersPerLang.get(i) != null) {
+        RoaringBitmap users = uniqueUsers(languages[i]);
+        o.uniqueUsersPerLang.get(i).forEach((int user) -> users.add(user == 0 ? 0 : mapping[user - 1] + 1));
+      }
+    }
+    for (int i = 0; i < o.approxUniqueUsersPerLang.size(); i++) {
+      if (o.approxUniqueUsersPerLang.get(i) != null) {
+        approxUniqueUsers(languages[i]).merge(o.approxUniqueUsersPerLang.get(i));
+      }
     }
   }
 
-  @Override public void after() {
-    System.out.println("Unique Users per Language");
-    for (Map.Entry<String, Set<OffsetDateTime>> e : uniqueUsersPerLang.entrySet()) {
-      System.out.println(String.format("%10s %10s", e.getKey(), NUMBER_FORMAT.format(e.getValue().size())));
+  /**
+   * Writes the languages, then the rates and users of each language. Users are ids of the {@link UserIds} written by
+   * {@link RetentionProcessor}.
+   */
+  @Override public void writeState(DataOutput out) throws IOException {
+    out.writeInt(precision);
+    out.writeInt(decoder.languageCount());
+    for (int i = 0; i < decoder.languageCount(); i++) {
+      out.writeUTF(decoder.language(i));
     }
+    durationsPerUserLang.write(out);
+    for (int i = 0; i < decoder.languageCount(); i++) {
+      RoaringBitmap users = get(uniqueUsersPerLang, i);
+      out.writeBoolean(users != null);
+      if (users != null) {
+        users.serialize(out);
+      }
+      HyperLogLog sketch = get(approxUniqueUsersPerLang, i);
+      out.writeBoolean(sketch != null);
+      if (sketch != null) {
+        sketch.write(out);
+      }
+    }
+  }
 
-    System.out.println("Processing performance stats");
+  @Override public void readState(DataInput in) throws IOException {
+    int p = in.readInt();
+    if (p != precision) {
+      throw new IOException("State of performance was written with precision " + p + ", not " + precision);
+    }
+    if (decoder.languageCount() > 0 || durationsPerUserLang.rows() > 0) {
+      throw new IllegalStateException("State can only be read before any row is processed");
+    }
+    int languages = in.readInt();
+    for (int i = 0; i < languages; i++) {
+      decoder.language(in.readUTF());
+    }
+    durationsPerUserLang.read(in);
+    for (int i = 0; i < languages; i++) {
+      if (in.readBoolean()) {
+        uniqueUsers(i).deserialize(in);
+      }
+      if (in.readBoolean()) {
+        approxUniqueUsers(i).merge(HyperLogLog.read(in));
+      }
+    }
+  }
 
-    Map<String, RatePerDuration> sumPerLang = new HashMap();
-    Map<String, RatePerDuration> percentil = new HashMap<>();
-    Map<Integer, Integer> perfByMonth = new TreeMap<>();
-    Map<Integer, Integer> countByMonth = new TreeMap<>();
+  /**
+   * Adds the rows of the users seen so far to the sums per language, then drops them
+   */
+  @Override public void endUsers() {
+    fold();
+  }
 
-    for (Map.Entry<UserLang, RatePerDuration> e : durationsPerUserLang.entrySet()) {
-      double total = Arrays.stream(e.getValue().levels).sum();
+  /**
+   * Adds the rows and the users seen since the last fold to the sums and counts per language, and clears them
+   */
+  private void fold() {
+    int languages = decoder.languageCount();
+    foldedUsersPerLang = Arrays.copyOf(foldedUsersPerLang, languages);
+    sumPerLang = Arrays.copyOf(sumPerLang, languages * LEVELS);
+    percentil = Arrays.copyOf(percentil, languages * LEVELS);
+    for (int lang = 0; lang < uniqueUsersPerLang.size(); lang++) {
+      RoaringBitmap users = uniqueUsersPerLang.get(lang);
+      if (users != null) {
+        foldedUsersPerLang[lang] += users.getCardinality();
+        users.clear();
+      }
+    }
+    int java = languageIndex("java");
+
+    double[] slab = durationsPerUserLang.slab();
+    for (int row = 0; row < durationsPerUserLang.rows(); row++) {
+      int offset = row * LEVELS;
+      long key = durationsPerUserLang.key(row);
+      int lang = language(key);
+      double total = 0.0;
+      for (int i = 0; i < LEVELS; i++) {
+        total += slab[offset + i];
+        sumPerLang[lang * LEVELS + i] += slab[offset + i];
+      }
       double sum = 0.0;
       double reference = 0.85 * total;
       int perfLevel = 0;
 
-      sumPerLang.compute(e.getKey().language, (k, v) -> v == null ? e.getValue() : sum(v, e.getValue()));
-
-      for (; perfLevel < e.getValue().levels.length; perfLevel++) {
-        sum += e.getValue().levels[perfLevel];
+      for (; perfLevel < LEVELS; perfLevel++) {
+        sum += slab[offset + perfLevel];
         if (sum >= reference) {
-          percentil.computeIfAbsent(e.getKey().language, k -> new RatePerDuration()).levels[perfLevel]++;
+          percentil[lang * LEVELS + perfLevel]++;
           break;
         }
       }
 
-      if ("java".equals(e.getValue().language)) {
+      if (lang == java) {
         int l = perfLevel;
-        Integer months = retention.retentionByUser.get(e.getKey().user);
+        Integer months = retention.retention(user(key));
         if (months != null) {
           countByMonth.compute(months, (k, v) -> v == null ? 1 : v + 1);
           perfByMonth.compute(months, (k, v) -> v == null ? l : v + l);
         }
       }
     }
+    durationsPerUserLang.clear();
+  }
+
+  /**
+   * Index of the language, or -1 if it wasn't seen
+   */
+  private int languageIndex(String language) {
+    for (int i = 0; i < decoder.languageCount(); i++) {
+      if (decoder.language(i).equals(language)) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  @Override public void after() {
+    fold();
+    Sampling sampling = retention.sampling;
+    // languages are sorted so that the report doesn't depend on the order in which rows were processed or merged
+    Map<String, Integer> languages = new TreeMap<>();
+    for (int i = 0; i < decoder.languageCount(); i++) {
+      languages.put(decoder.language(i), i);
+    }
+
+    System.out.println("Unique Users per Language");
+    for (Map.Entry<String, Integer> e : languages.entrySet()) {
+      if (get(uniqueUsersPerLang, e.getValue()) != null) {
+        long users = foldedUsersPerLang[e.getValue()];
+        System.out.println(String.format("%10s %10s", e.getKey(), NUMBER_FORMAT.format(sampling.scale(users)))
+          + (sampling.isSampled() ? " +/- " + NUMBER_FORMAT.format(sampling.bound(users)) : ""));
+      }
+    }
+    for (Map.Entry<String, Integer> e : languages.entrySet()) {
+      HyperLogLog sketch = get(approxUniqueUsersPerLang, e.getValue());
+      if (sketch != null) {
+        long estimate = sketch.estimate();
+        // the error of the sketch and the one of the sample are independent
+        double sketchBound = sampling.scale(2 * estimate * sketch.standardError());
+        double sampleBound = sampling.bound(estimate);
+        System.out.println(String.format("%10s %10s +/- %s", e.getKey(), NUMBER_FORMAT.format(sampling.scale(estimate)),
+          NUMBER_FORMAT.format(Math.round(Math.sqrt(sketchBound * sketchBound + sampleBound * sampleBound)))));
+      }
+    }
+
+    System.out.println("Processing performance stats");
 
     System.out.println("JAVA performance vs months of usage");
     for (Map.Entry<Integer, Integer> f : countByMonth.entrySet()) {
-      System.out.println(String.format("%8s %8s %3.2f", f.getKey(), f.getValue(), ((double) perfByMonth.get(f.getKey())) / f.getValue()));
+      System.out.println(String.format("%8s %8s %3.2f", f.getKey(), sampling.scale(f.getValue()), ((double) perfByMonth.get(f.getKey())) / f.getValue()));
     }
 
-    for (Map.Entry<String, RatePerDuration> e : percentil.entrySet()) {
+    for (Map.Entry<String, Integer> e : languages.entrySet()) {
+      int offset = e.getValue() * LEVELS;
+      double totalPerc = 0.0;
+      double totalSum = 0.0;
+      for (int i = 0; i < LEVELS; i++) {
+        totalPerc += percentil[offset + i];
+        totalSum += sumPerLang[offset + i];
+      }
+      if (totalPerc == 0) {
+        // no user with analyses of this language
+        continue;
+      }
       System.out.println("LANG: " + e.getKey());
-      double totalPerc = Arrays.stream(e.getValue().levels).sum();
-      double totalSum = Arrays.stream(sumPerLang.get(e.getKey()).levels).sum();
 
       for (PERF_LEVEL level : PERF_LEVEL.values()) {
         System.out.println(String.format("   %10s %10s %5s%% %10s %5s%%", level.label,
-          NUMBER_FORMAT.format(e.getValue().levels[level.level]),
-          NUMBER_FORMAT.format(Math.round(100.0 * e.getValue().levels[level.level] / totalPerc)),
-          NUMBER_FORMAT.format(sumPerLang.get(e.getKey()).levels[level.level]),
-          NUMBER_FORMAT.format(Math.round(100.0 * sumPerLang.get(e.getKey()).levels[level.level] / totalSum))));
+          NUMBER_FORMAT.format(sampling.isSampled() ? sampling.scale(percentil[offset + level.level]) : percentil[offset + level.level]),
+          NUMBER_FORMAT.format(Math.round(100.0 * percentil[offset + level.level] / totalPerc)),
+          NUMBER_FORMAT.format(sampling.isSampled() ? sampling.scale(sumPerLang[offset + level.level]) : sumPerLang[offset + level.level]),
+          NUMBER_FORMAT.format(Math.round(100.0 * sumPerLang[offset + level.level] / totalSum))));
       }
     }
-  }
-
-  private List<RatePerDuration> parse(String field) {
-    List<RatePerDuration> list = new ArrayList<>();
-    JsonArray root = new JsonParser().parse(field).getAsJsonArray();
-    for (JsonElement el : root) {
-      RatePerDuration rpd = new RatePerDuration();
-      JsonObject obj = el.getAsJsonObject();
-      rpd.language = obj.get("language").getAsString();
-      JsonObject rates = obj.getAsJsonObject("rate_per_duration");
-      for (PERF_LEVEL level : PERF_LEVEL.values()) {
-        rpd.levels[level.level] = getAsDouble(rates, level.label);
-      }
-      list.add(rpd);
+    if (sampling.isSampled()) {
+      System.out.println(sampling.note());
     }
-
-    return list;
   }
 
-  private double getAsDouble(JsonObject obj, String field) {
-    JsonElement el = obj.get(field);
-    return el == null ? 0.0 : el.getAsDouble();
+  private RoaringBitmap uniqueUsers(int language) {
+    RoaringBitmap users = get(uniqueUsersPerLang, language);
+    if (users == null) {
+      users = new RoaringBitmap();
+      set(uniqueUsersPerLang, language, users);
+    }
+    return users;
   }
 
-  private RatePerDuration sum(RatePerDuration r1, RatePerDuration r2) {
-    for (int i = 0; i < r1.levels.length; i++) {
-      r1.levels[i] += r2.levels[i];
+  private HyperLogLog approxUniqueUsers(int language) {
+    HyperLogLog sketch = get(approxUniqueUsersPerLang, language);
+    if (sketch == null) {
+      sketch = new HyperLogLog(precision);
+      set(approxUniqueUsersPerLang, language, sketch);
     }
-    return r1;
+    return sketch;
   }
 
-  private class RatePerDuration {
-    String language;
-    double[] levels = new double[PERF_LEVEL.values().length];
+  private static <T> T get(List<T> list, int index) {
+    return index < list.size() ? list.get(index) : null;
   }
 
-  private static class UserLang {
-    private OffsetDateTime user;
-    private String language;
-
-    public UserLang(OffsetDateTime user, String language) {
-      this.user = user;
-      this.language = language;
+  private static <T> void set(List<T> list, int index, T value) {
+    while (list.size() <= index) {
+      list.add(null);
     }
+    list.set(index, value);
+  }
 
-    @Override public boolean equals(Object o) {
-      if (this == o)
-        return true;
-      if (o == null || getClass() != o.getClass())
-        return false;
-      UserLang userLang = (UserLang) o;
-      return Objects.equals(user, userLang.user) &&
-        Objects.equals(language, userLang.language);
-    }
+  private static long key(int user, int language) {
+    return (long) user << 32 | language;
+  }
 
-    @Override public int hashCode() {
-      return Objects.hash(user, language);
-    }
+  private static int user(long key) {
+    return (int) (key >> 32);
+  }
 
-    @Override
-    public String toString() {
-      return user + "-" + language;
-    }
+  private static int language(long key) {
+    return (int) key;
   }
 
   private enum PERF_LEVEL {
@@ -184,6 +365,10 @@ public class PerformanceProcessor implements Processor {
       this.level = level;
       this.label = label;
     }
+
+    private static String[] labels() {
+      return Arrays.stream(values()).map(l -> l.label).toArray(String[]::new);
+    }
   }
 
 }
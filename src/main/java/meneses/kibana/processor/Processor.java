@@ -1,11 +1,67 @@
 package meneses.kibana.processor;
 
-import java.time.OffsetDateTime;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
 
 public interface Processor {
   void before();
 
-  void process(OffsetDateTime installTime, OffsetDateTime systemTime, String[] fields);
+  /**
+   * Optional columns read by {@link #process(RowBatch)}. Columns that no processor needs are left empty.
+   */
+  Set<Column> columns();
+
+  /**
+   * Processors whose results are read by {@link #after()}, which must come before this one in the list of processors.
+   * When processors run concurrently, this one's after() only starts once theirs are done.
+   */
+  default List<Processor> dependencies() {
+    return Collections.emptyList();
+  }
+
+  /**
+   * Called on the thread that filled the batch, before any processor gets it, for the work that can't be done while
+   * other processors read the batch, such as assigning user ids (see {@link RowBatch#users(UserIds)}).
+   */
+  default void prepare(RowBatch batch) {
+  }
+
+  /**
+   * The batch is reused for the next rows, so values that need to be kept must be copied. Processors may process the
+   * same batch concurrently, so they must only read it, after it's {@link #prepare(RowBatch) prepared}.
+   */
+  void process(RowBatch batch);
+
+  /**
+   * Adds the state of another instance of the same processor, that processed other rows, to this one.
+   * It's called before {@link #after()}, only on the instance that will produce the report.
+   */
+  void merge(Processor other);
+
+  /**
+   * Called when the users of all rows processed so far have no more rows, when rows come grouped by user (see
+   * {@code Load}), so that their state can be folded into the aggregates and dropped. Their ids are then reused for
+   * the next users. Processors are called in the reverse order of the list, so that each one still finds the state of
+   * its {@link #dependencies()}.
+   */
+  default void endUsers() {
+  }
+
+  /**
+   * Writes the state aggregated so far, before {@link #after()}, so that a later run can restore it with
+   * {@link #readState(DataInput)} and only process newer rows.
+   */
+  void writeState(DataOutput out) throws IOException;
+
+  /**
+   * Restores a state written by {@link #writeState(DataOutput)}, after {@link #before()} and before any row.
+   * Processors that share a {@link UserIds} must be restored in the same order as they were written.
+   */
+  void readState(DataInput in) throws IOException;
 
   void after();
 }
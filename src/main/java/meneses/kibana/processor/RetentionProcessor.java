@@ -1,21 +1,66 @@
 package meneses.kibana.processor;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.text.NumberFormat;
 import java.time.OffsetDateTime;
 import java.time.ZoneOffset;
 import java.time.temporal.ChronoUnit;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.EnumSet;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
 import java.util.TreeMap;
 
+/**
+ * First and last use of each user. The state of a user is kept in primitive arrays indexed by its id in {@link UserIds},
+ * which is shared with the other processors, along with the {@link Sampling} of the users.
+ * <p>
+ * The months of usage of each user are counted by {@link #after()}, or as soon as its rows end when rows come grouped
+ * by user (see {@link #endUsers()}), which then also clears the ids.
+ */
 public class RetentionProcessor implements Processor {
   private static final NumberFormat NUMBER_FORMAT = NumberFormat.getInstance(Locale.US);
+  private static final long UNSET = Long.MIN_VALUE;
+  static final int NO_RETENTION = Integer.MIN_VALUE;
+  private static final long TOO_RECENT = OffsetDateTime.of(2019, 1, 1, 0, 0, 0, 0, ZoneOffset.UTC).toInstant().toEpochMilli();
+  private static final long STILL_USING = OffsetDateTime.of(2019, 2, 1, 0, 0, 0, 0, ZoneOffset.UTC).toInstant().toEpochMilli();
 
-  final Map<OffsetDateTime, OffsetDateTime> lastUsePerUser = new HashMap<>();
-  final Map<OffsetDateTime, OffsetDateTime> firstUsePerUser = new HashMap<>();
+  final UserIds users;
+  final Sampling sampling;
+
+  // epoch millis and offset seconds of the last and first use, indexed by user id
+  long[] lastUse = new long[0];
+  int[] lastUseOffset = new int[0];
+  long[] firstUse = new long[0];
+  int[] firstUseOffset = new int[0];
+
+  // months of usage, indexed by user id, or NO_RETENTION. Computed by after().
+  int[] retentionByUser = new int[0];
+
+  // users per months of usage (-1 for still using), and per days of usage for the ones of less than a month
+  private final TreeMap<Integer, Integer> retention = new TreeMap<>();
+  private final TreeMap<RETENTION_CATEGORY, Integer> retentionCat = new TreeMap<>();
+
+  public RetentionProcessor() {
+    this(new UserIds());
+  }
+
+  public RetentionProcessor(UserIds users) {
+    this(users, Sampling.ALL);
+  }
+
+  /**
+   * @param sampling sample of the users whose rows are processed, by which counts are scaled up
+   */
+  public RetentionProcessor(UserIds users, Sampling sampling) {
+    this.users = users;
+    this.sampling = sampling;
+  }
 
   @Override
   public void before() {
@@ -23,62 +68,188 @@ public class RetentionProcessor implements Processor {
   }
 
   @Override
-  public void process(OffsetDateTime installTime, OffsetDateTime systemTime, String[] fields) {
-    if (installTime != null) {
-      // Last use per user
-      lastUsePerUser.compute(installTime, (k, v) -> {
-        if (v == null) {
-          return systemTime;
-        }
-        return systemTime.isAfter(v) ? systemTime : v;
-      });
+  public Set<Column> columns() {
+    return EnumSet.noneOf(Column.class);
+  }
 
-      firstUsePerUser.compute(installTime, (k, v) -> {
-        if (v == null) {
-          return systemTime;
-        }
-        return systemTime.isBefore(v) ? systemTime : v;
-      });
+  /**
+   * Assigns the ids of the users of the batch, which the processors sharing them then only read
+   */
+  @Override
+  public void prepare(RowBatch batch) {
+    batch.users(users);
+  }
+
+  @Override
+  public void process(RowBatch batch) {
+    int[] ids = batch.users(users);
+    ensureCapacity(users.size());
+    for (int i = 0; i < batch.size(); i++) {
+      if (ids[i] != UserIds.NONE) {
+        long millis = batch.systemMillis(i);
+        int offset = batch.systemOffset(i);
+        use(ids[i], millis, offset, millis, offset);
+      }
+    }
+  }
+
+  /**
+   * Adds the first and last use of a user aggregated elsewhere, such as by Elasticsearch, instead of its rows
+   */
+  public void addUse(long installMillis, int installOffset, long firstMillis, int firstOffset, long lastMillis, int lastOffset) {
+    int user = users.id(UserIds.key(installMillis, installOffset));
+    ensureCapacity(users.size());
+    use(user, firstMillis, firstOffset, lastMillis, lastOffset);
+  }
+
+  private void use(int user, long firstMillis, int firstOffset, long lastMillis, int lastOffset) {
+    // Last use per user
+    if (lastUse[user] == UNSET || lastMillis > lastUse[user]) {
+      lastUse[user] = lastMillis;
+      lastUseOffset[user] = lastOffset;
+    }
+    if (firstUse[user] == UNSET || firstMillis < firstUse[user]) {
+      firstUse[user] = firstMillis;
+      firstUseOffset[user] = firstOffset;
     }
   }
 
-  Map<OffsetDateTime, Integer> retentionByUser = new HashMap<>();
+  private void ensureCapacity(int size) {
+    if (size > lastUse.length) {
+      int capacity = Math.max(size, 2 * lastUse.length);
+      int from = lastUse.length;
+      lastUse = Arrays.copyOf(lastUse, capacity);
+      lastUseOffset = Arrays.copyOf(lastUseOffset, capacity);
+      firstUse = Arrays.copyOf(firstUse, capacity);
+      firstUseOffset = Arrays.copyOf(firstUseOffset, capacity);
+      Arrays.fill(lastUse, from, capacity, UNSET);
+      Arrays.fill(firstUse, from, capacity, UNSET);
+    }
+  }
 
   @Override
-  public void after() {
-    System.out.println("\nComputing retention");
-    TreeMap<Integer, Integer> retention = new TreeMap<>();
-    TreeMap<Integer, Integer> aggregateRetention = new TreeMap<>();
-    TreeMap<RETENTION_CATEGORY, Integer> retentionCat = new TreeMap<>();
+  public void merge(Processor other) {
+    RetentionProcessor o = (RetentionProcessor) other;
+    int[] mapping = users.mapping(o.users);
+    ensureCapacity(users.size());
+    for (int i = 0; i < mapping.length; i++) {
+      if (i < o.lastUse.length && o.lastUse[i] != UNSET) {
+        use(mapping[i], o.firstUse[i], o.firstUseOffset[i], o.lastUse[i], o.lastUseOffset[i]);
+      }
+    }
+  }
 
-    for (Map.Entry<OffsetDateTime, OffsetDateTime> e : lastUsePerUser.entrySet()) {
-      // too recent installs
-      if (e.getKey().isAfter(OffsetDateTime.of(2019, 1, 1, 0, 0, 0, 0, ZoneOffset.UTC))) {
-        continue;
+  /**
+   * Writes the users, which the processors sharing them depend on, and their first and last use
+   */
+  @Override
+  public void writeState(DataOutput out) throws IOException {
+    users.write(out);
+    for (int user = 0; user < users.size(); user++) {
+      boolean used = hasUsed(user);
+      out.writeBoolean(used);
+      if (used) {
+        out.writeLong(firstUse[user]);
+        out.writeInt(firstUseOffset[user]);
+        out.writeLong(lastUse[user]);
+        out.writeInt(lastUseOffset[user]);
       }
+    }
+  }
 
-      // still using it
-      if (e.getValue().isAfter(OffsetDateTime.of(2019, 2, 1, 0, 0, 0, 0, ZoneOffset.UTC))) {
-        retention.compute(-1, (k, v) -> v == null ? 1 : v + 1);
-        retentionByUser.put(e.getKey(), -1);
-        continue;
+  @Override
+  public void readState(DataInput in) throws IOException {
+    users.read(in);
+    ensureCapacity(users.size());
+    for (int user = 0; user < users.size(); user++) {
+      if (in.readBoolean()) {
+        use(user, in.readLong(), in.readInt(), in.readLong(), in.readInt());
       }
+    }
+  }
+
+  /**
+   * Whether the user was seen by this processor
+   */
+  boolean hasUsed(int user) {
+    return user < lastUse.length && lastUse[user] != UNSET;
+  }
+
+  OffsetDateTime lastUse(int user) {
+    return UserIds.toDateTime(lastUse[user], lastUseOffset[user]);
+  }
+
+  OffsetDateTime firstUse(int user) {
+    return UserIds.toDateTime(firstUse[user], firstUseOffset[user]);
+  }
+
+  /**
+   * Months of usage of the user, or null if it's not known. Users that after() didn't see yet, which are the ones not
+   * folded yet by {@link #endUsers()}, get it computed on the fly.
+   */
+  Integer retention(int user) {
+    if (user == UserIds.NONE) {
+      return null;
+    }
+    int months = user < retentionByUser.length ? retentionByUser[user] : months(user);
+    return months == NO_RETENTION ? null : months;
+  }
 
-      // installs before November and stopped using at some point
-      int months = (int) e.getKey().until(e.getValue(), ChronoUnit.MONTHS);
-      retention.compute(months, (k, v) -> v == null ? 1 : v + 1);
-      retentionByUser.put(e.getKey(), months);
-
-      if (months == 0) {
-        int days = (int) e.getKey().until(e.getValue(), ChronoUnit.DAYS);
-        for (RETENTION_CATEGORY c : RETENTION_CATEGORY.values()) {
-          if (days <= c.rangeEnd) {
-            retentionCat.compute(c, (k, v) -> v == null ? 1 : v + 1);
-            break;
-          }
+  /**
+   * Months between the install and the last use of the user, -1 if it's still using it, or NO_RETENTION if it wasn't
+   * seen or installed too recently
+   */
+  private int months(int user) {
+    if (!hasUsed(user) || UserIds.epochMillis(users.key(user)) > TOO_RECENT) {
+      return NO_RETENTION;
+    }
+    if (lastUse[user] > STILL_USING) {
+      return -1;
+    }
+    // installs before November and stopped using at some point
+    return (int) users.installTime(user).until(lastUse(user), ChronoUnit.MONTHS);
+  }
+
+  private void count(int user, int months) {
+    if (months == NO_RETENTION) {
+      return;
+    }
+    retention.compute(months, (k, v) -> v == null ? 1 : v + 1);
+    if (months == 0) {
+      int days = (int) users.installTime(user).until(lastUse(user), ChronoUnit.DAYS);
+      for (RETENTION_CATEGORY c : RETENTION_CATEGORY.values()) {
+        if (days <= c.rangeEnd) {
+          retentionCat.compute(c, (k, v) -> v == null ? 1 : v + 1);
+          break;
         }
       }
+    }
+  }
 
+  /**
+   * Counts the users seen so far, then drops them along with their ids
+   */
+  @Override
+  public void endUsers() {
+    int size = Math.min(users.size(), lastUse.length);
+    for (int user = 0; user < size; user++) {
+      count(user, months(user));
+    }
+    Arrays.fill(lastUse, 0, size, UNSET);
+    Arrays.fill(firstUse, 0, size, UNSET);
+    users.clear();
+  }
+
+  @Override
+  public void after() {
+    System.out.println("\nComputing retention");
+    TreeMap<Integer, Integer> aggregateRetention = new TreeMap<>();
+
+    ensureCapacity(users.size());
+    retentionByUser = new int[users.size()];
+    for (int user = 0; user < users.size(); user++) {
+      retentionByUser[user] = months(user);
+      count(user, retentionByUser[user]);
     }
 
     List<Integer> keys = new ArrayList<>(retention.descendingKeySet());
@@ -91,13 +262,19 @@ public class RetentionProcessor implements Processor {
     for (Map.Entry<Integer, Integer> e : retention.entrySet()) {
       System.out.println(String.format("%3s %5s %s",
         NUMBER_FORMAT.format(e.getKey()),
-        NUMBER_FORMAT.format(e.getValue()),
-        NUMBER_FORMAT.format(aggregateRetention.get(e.getKey()))));
+        NUMBER_FORMAT.format(sampling.scale(e.getValue())),
+        NUMBER_FORMAT.format(sampling.scale(aggregateRetention.get(e.getKey()))))
+        + (sampling.isSampled() ? " +/- " + NUMBER_FORMAT.format(sampling.bound(e.getValue())) : ""));
     }
 
     System.out.println("\nFor users that used for less than a month, days using it:");
     for (RETENTION_CATEGORY c : RETENTION_CATEGORY.values()) {
-      System.out.println(String.format("%10s %8s", c.label, retentionCat.getOrDefault(c, 0)));
+      int count = retentionCat.getOrDefault(c, 0);
+      System.out.println(String.format("%10s %8s", c.label, sampling.scale(count))
+        + (sampling.isSampled() ? " +/- " + sampling.bound(count) : ""));
+    }
+    if (sampling.isSampled()) {
+      System.out.println(sampling.note());
     }
 
   }
@@ -0,0 +1,175 @@
+package meneses.kibana.processor;
+
+/**
+ * Reusable view over the fields of a row.
+ * <p>
+ * Tokenizing a line only records where each field starts and ends. Fields are converted only when asked for, and
+ * {@link #get(int)} returns a view that is valid until the row is reset, so that reading a field doesn't need to
+ * create a substring. Fields that don't exist in the row are empty.
+ */
+public final class Row {
+  private static final int MAX_FIELDS = 32;
+
+  private final CharSequence[] sources = new CharSequence[MAX_FIELDS];
+  private final int[] starts = new int[MAX_FIELDS];
+  private final int[] ends = new int[MAX_FIELDS];
+  private final Field[] views = new Field[MAX_FIELDS];
+  private final char separator;
+  private int size;
+
+  public Row(char separator) {
+    this.separator = separator;
+    for (int i = 0; i < MAX_FIELDS; i++) {
+      views[i] = new Field(i);
+    }
+  }
+
+  /**
+   * Tokenizes a line. Fields past {@link #MAX_FIELDS} are ignored.
+   */
+  public Row reset(CharSequence line) {
+    size = 0;
+    int start = 0;
+    int length = line.length();
+    for (int i = 0; i < length && size < MAX_FIELDS - 1; i++) {
+      if (line.charAt(i) == separator) {
+        setField(line, start, i);
+        start = i + 1;
+      }
+    }
+    setField(line, start, length);
+    return this;
+  }
+
+  /**
+   * Tokenizes only the first fields of a line, the others being ignored as if they didn't exist
+   */
+  public Row reset(CharSequence line, int fields) {
+    if (fields >= MAX_FIELDS) {
+      return reset(line);
+    }
+    size = 0;
+    int start = 0;
+    int length = line.length();
+    for (int i = 0; i < length && size < fields; i++) {
+      if (line.charAt(i) == separator) {
+        setField(line, start, i);
+        start = i + 1;
+      }
+    }
+    if (size < fields) {
+      setField(line, start, length);
+    }
+    return this;
+  }
+
+  private void setField(CharSequence line, int start, int end) {
+    sources[size] = line;
+    starts[size] = start;
+    ends[size] = end;
+    size++;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Whether all fields are empty
+   */
+  public boolean isBlank() {
+    for (int i = 0; i < size; i++) {
+      if (starts[i] != ends[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  public boolean isEmpty(int field) {
+    return field >= size || starts[field] == ends[field];
+  }
+
+  public int length(int field) {
+    return field >= size ? 0 : ends[field] - starts[field];
+  }
+
+  public char charAt(int field, int index) {
+    return sources[field].charAt(starts[field] + index);
+  }
+
+  /**
+   * Returns a view of the field, only valid until the row is reset
+   */
+  public CharSequence get(int field) {
+    return views[field];
+  }
+
+  /**
+   * Copies the chars of the field to the destination, like {@link String#getChars(int, int, char[], int)}
+   */
+  public void getChars(int field, char[] dst, int dstBegin) {
+    if (field >= size) {
+      return;
+    }
+    CharSequence source = sources[field];
+    if (source instanceof String) {
+      ((String) source).getChars(starts[field], ends[field], dst, dstBegin);
+    } else {
+      for (int i = starts[field]; i < ends[field]; i++) {
+        dst[dstBegin++] = source.charAt(i);
+      }
+    }
+  }
+
+  public String getString(int field) {
+    if (field >= size) {
+      return "";
+    }
+    CharSequence source = sources[field];
+    if (source instanceof String && starts[field] == 0 && ends[field] == source.length()) {
+      return (String) source;
+    }
+    return source.subSequence(starts[field], ends[field]).toString();
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < size; i++) {
+      if (i > 0) {
+        sb.append(separator);
+      }
+      sb.append(get(i));
+    }
+    return sb.toString();
+  }
+
+  private final class Field implements CharSequence {
+    private final int field;
+
+    private Field(int field) {
+      this.field = field;
+    }
+
+    @Override
+    public int length() {
+      return Row.this.length(field);
+    }
+
+    @Override
+    public char charAt(int index) {
+      return Row.this.charAt(field, index);
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+      return sources[field].subSequence(starts[field] + start, starts[field] + end);
+    }
+
+    @Override
+    public String toString() {
+      return getString(field);
+    }
+  }
+}
@@ -0,0 +1,204 @@
+package meneses.kibana.processor;
+
+import java.util.Arrays;
+
+/**
+ * A batch of valid rows, stored by column: install and system times as epoch millis and offset seconds, the product as
+ * a code of a dictionary that is kept across batches, and the raw text of the analyses.
+ * <p>
+ * Only the {@link Column}s needed by the processors are filled, the others being empty. The batch is reused, so
+ * values that need to be kept must be copied. Not thread safe, but once filled and its user ids computed, several
+ * threads can read it, except for the view of {@link #analyses(int)} which only one of them can use.
+ */
+public final class RowBatch {
+  public static final int CAPACITY = 1024;
+  public static final long NO_TIME = Long.MIN_VALUE;
+  public static final int NO_CODE = -1;
+  private static final long DAY_MILLIS = 24L * 3600 * 1000;
+
+  private int size = 0;
+  private final long[] installMillis = new long[CAPACITY];
+  private final int[] installOffset = new int[CAPACITY];
+  private final long[] systemMillis = new long[CAPACITY];
+  private final int[] systemOffset = new int[CAPACITY];
+
+  private final int[] products = new int[CAPACITY];
+  private final StringDictionary productNames = new StringDictionary();
+
+  // analyses of row i are the chars [analysesStart[i], analysesEnd[i]) of analysesChars
+  private char[] analysesChars = new char[64 * 1024];
+  private int analysesLength = 0;
+  private final int[] analysesStart = new int[CAPACITY];
+  private final int[] analysesEnd = new int[CAPACITY];
+  private final Slice analysesView = new Slice();
+
+  // user ids of the rows, computed for the dictionary usersOf, or not computed yet if it's null
+  private final int[] users = new int[CAPACITY];
+  private UserIds usersOf;
+
+  public void clear() {
+    size = 0;
+    analysesLength = 0;
+    usersOf = null;
+  }
+
+  public boolean isFull() {
+    return size == CAPACITY;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Adds a row with the given times, and empty optional columns. Returns its index.
+   *
+   * @param installMillis {@link #NO_TIME} if the row has no install time
+   */
+  public int add(long installMillis, int installOffset, long systemMillis, int systemOffset) {
+    int row = size++;
+    this.installMillis[row] = installMillis;
+    this.installOffset[row] = installOffset;
+    this.systemMillis[row] = systemMillis;
+    this.systemOffset[row] = systemOffset;
+    products[row] = NO_CODE;
+    analysesStart[row] = analysesLength;
+    analysesEnd[row] = analysesLength;
+    usersOf = null;
+    return row;
+  }
+
+  public void setProduct(int row, CharSequence product) {
+    products[row] = productNames.code(product);
+  }
+
+  public void setAnalyses(int row, CharSequence analyses) {
+    int length = analyses.length();
+    int start = reserveAnalyses(row, length);
+    if (analyses instanceof String) {
+      ((String) analyses).getChars(0, length, analysesChars, start);
+    } else {
+      for (int i = 0; i < length; i++) {
+        analysesChars[start + i] = analyses.charAt(i);
+      }
+    }
+  }
+
+  public void setAnalyses(int row, Row source, int field) {
+    int start = reserveAnalyses(row, source.length(field));
+    source.getChars(field, analysesChars, start);
+  }
+
+  private int reserveAnalyses(int row, int length) {
+    if (analysesLength + length > analysesChars.length) {
+      analysesChars = Arrays.copyOf(analysesChars, Math.max(analysesLength + length, 2 * analysesChars.length));
+    }
+    int start = analysesLength;
+    analysesLength += length;
+    analysesStart[row] = start;
+    analysesEnd[row] = analysesLength;
+    return start;
+  }
+
+  public boolean hasInstallTime(int row) {
+    return installMillis[row] != NO_TIME;
+  }
+
+  public long installMillis(int row) {
+    return installMillis[row];
+  }
+
+  public int installOffset(int row) {
+    return installOffset[row];
+  }
+
+  public long systemMillis(int row) {
+    return systemMillis[row];
+  }
+
+  public int systemOffset(int row) {
+    return systemOffset[row];
+  }
+
+  /**
+   * Month of the system time, in its own offset. See {@link #month(long)}.
+   */
+  public int systemMonth(int row) {
+    return month(systemMillis[row] + systemOffset[row] * 1000L);
+  }
+
+  /**
+   * Code of the product in {@link #products()}, or {@link #NO_CODE} if the column isn't filled
+   */
+  public int product(int row) {
+    return products[row];
+  }
+
+  public StringDictionary products() {
+    return productNames;
+  }
+
+  public boolean hasAnalyses(int row) {
+    return analysesEnd[row] > analysesStart[row];
+  }
+
+  /**
+   * Returns a view of the analyses of the row, only valid until the next call
+   */
+  public CharSequence analyses(int row) {
+    analysesView.start = analysesStart[row];
+    analysesView.end = analysesEnd[row];
+    return analysesView;
+  }
+
+  /**
+   * Ids of the users of the rows in the given dictionary, or {@link UserIds#NONE} for rows without install time.
+   * They are looked up once per batch, and shared by the processors using the same dictionary.
+   */
+  public int[] users(UserIds ids) {
+    if (usersOf != ids) {
+      for (int i = 0; i < size; i++) {
+        users[i] = installMillis[i] == NO_TIME ? UserIds.NONE : ids.id(UserIds.key(installMillis[i], installOffset[i]));
+      }
+      usersOf = ids;
+    }
+    return users;
+  }
+
+  /**
+   * Months since year 0 (year * 12 + month - 1) of a local date-time given in millis as if it was UTC
+   */
+  public static int month(long localMillis) {
+    // civil from days, see http://howardhinnant.github.io/date_algorithms.html
+    long z = Math.floorDiv(localMillis, DAY_MILLIS) + 719468;
+    long era = Math.floorDiv(z, 146097);
+    long dayOfEra = z - era * 146097;
+    long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+    long dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+    long shiftedMonth = (5 * dayOfYear + 2) / 153;
+    long month = shiftedMonth < 10 ? shiftedMonth + 3 : shiftedMonth - 9;
+    long year = yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
+    return (int) (year * 12 + month - 1);
+  }
+
+  private final class Slice implements CharSequence {
+    private int start;
+    private int end;
+
+    @Override public int length() {
+      return end - start;
+    }
+
+    @Override public char charAt(int index) {
+      return analysesChars[start + index];
+    }
+
+    @Override public CharSequence subSequence(int from, int to) {
+      return new String(analysesChars, start + from, to - from);
+    }
+
+    @Override public String toString() {
+      return new String(analysesChars, start, end - start);
+    }
+  }
+}
@@ -0,0 +1,95 @@
+package meneses.kibana.processor;
+
+/**
+ * Sample of the users whose rows are processed, for quick approximate reports.
+ * <p>
+ * Users are kept or dropped whole, by a hash of their install time, so that their retention, their pings per month and
+ * their performance are the same as in a full run, and the sample is the same from one run to the other. Rows without
+ * install time, which belong to no user, are kept or dropped one by one, by a hash of their system time.
+ * <p>
+ * Each user being kept independently with probability f, a count of k kept users estimates k / f users, with a variance
+ * of k (1 - f) / f^2, and a sum over the kept users of values y estimates sum(y) / f, with a variance of
+ * sum(y^2) (1 - f) / f^2. Bounds are 95% confidence bounds (1.96 standard errors).
+ */
+public final class Sampling {
+  public static final Sampling ALL = new Sampling(1.0);
+  private static final double Z_95 = 1.96;
+
+  private final double fraction;
+  // hashes below it are kept, out of 2^53
+  private final long threshold;
+
+  public Sampling(double fraction) {
+    if (!(fraction > 0 && fraction <= 1)) {
+      throw new IllegalArgumentException("Fraction of users to sample must be in (0, 1]: " + fraction);
+    }
+    this.fraction = fraction;
+    this.threshold = (long) Math.ceil(fraction * (1L << 53));
+  }
+
+  public boolean isSampled() {
+    return fraction < 1;
+  }
+
+  public double fraction() {
+    return fraction;
+  }
+
+  /**
+   * Whether to keep the rows with the given raw install time (or system time, for rows without install time)
+   */
+  public boolean keep(CharSequence time) {
+    // FNV-1a, then mixed so that the high bits depend on all the chars
+    long hash = 0xcbf29ce484222325L;
+    for (int i = 0; i < time.length(); i++) {
+      hash = (hash ^ time.charAt(i)) * 0x100000001b3L;
+    }
+    return (mix(hash) >>> 11) < threshold;
+  }
+
+  /**
+   * Whether to keep the rows with the given install time (or system time), as a key of {@link UserIds}, for times that
+   * are already decoded
+   */
+  public boolean keep(long key) {
+    return (mix(key) >>> 11) < threshold;
+  }
+
+  /**
+   * Estimate of a count or of a sum, from the one of the sample
+   */
+  public long scale(double sampled) {
+    return Math.round(sampled / fraction);
+  }
+
+  /**
+   * Bound of the estimate of a count of users (or of rows without users), from the count of the sample
+   */
+  public long bound(long sampled) {
+    return sumBound(sampled);
+  }
+
+  /**
+   * Bound of the estimate of a sum over users, from the sum of the squares of the values of the users of the sample
+   */
+  public long sumBound(double sampledSumOfSquares) {
+    return Math.round(Z_95 * Math.sqrt(sampledSumOfSquares * (1 - fraction)) / fraction);
+  }
+
+  /**
+   * Note printed after a report whose counts are estimated from the sample
+   */
+  public String note() {
+    return String.format("Sampled %.2f%% of the users: counts are scaled up, +/- is a 95%% confidence bound", 100 * fraction);
+  }
+
+  // finalizer of MurmurHash3
+  private static long mix(long h) {
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    h *= 0xc4ceb93fe53ec81aL;
+    h ^= h >>> 33;
+    return h;
+  }
+}
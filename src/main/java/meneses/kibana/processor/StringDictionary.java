@@ -0,0 +1,109 @@
+package meneses.kibana.processor;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Dictionary of strings to dense int codes (0, 1, 2, ...). Values are looked up by content, so that a view over a
+ * field can be encoded without creating a String. Not thread safe.
+ */
+public final class StringDictionary {
+  private String[] values = new String[16];
+  private int[] hashes = new int[16];
+  // open addressing table of code + 1, 0 being free
+  private int[] table = new int[32];
+  private int size = 0;
+
+  /**
+   * Returns the code of the value, adding it if it's new
+   */
+  public int code(CharSequence value) {
+    int hash = hash(value);
+    int mask = table.length - 1;
+    for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+      int entry = table[slot];
+      if (entry == 0) {
+        return add(slot, hash, value);
+      }
+      if (hashes[entry - 1] == hash && contentEquals(values[entry - 1], value)) {
+        return entry - 1;
+      }
+    }
+  }
+
+  public String get(int code) {
+    return values[code];
+  }
+
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Writes the values in the order of their codes, see {@link #read(DataInput)}
+   */
+  public void write(DataOutput out) throws IOException {
+    out.writeInt(size);
+    for (int code = 0; code < size; code++) {
+      out.writeUTF(values[code]);
+    }
+  }
+
+  /**
+   * Adds the values written by {@link #write(DataOutput)}. They keep their codes if the dictionary is empty.
+   */
+  public void read(DataInput in) throws IOException {
+    int count = in.readInt();
+    for (int i = 0; i < count; i++) {
+      code(in.readUTF());
+    }
+  }
+
+  private int add(int slot, int hash, CharSequence value) {
+    if (size == values.length) {
+      values = Arrays.copyOf(values, size * 2);
+      hashes = Arrays.copyOf(hashes, size * 2);
+    }
+    values[size] = value.toString();
+    hashes[size] = hash;
+    table[slot] = ++size;
+    if (2 * size > table.length) {
+      rehash();
+    }
+    return size - 1;
+  }
+
+  private void rehash() {
+    table = new int[table.length * 2];
+    int mask = table.length - 1;
+    for (int code = 0; code < size; code++) {
+      int slot = hashes[code] & mask;
+      while (table[slot] != 0) {
+        slot = (slot + 1) & mask;
+      }
+      table[slot] = code + 1;
+    }
+  }
+
+  private static int hash(CharSequence value) {
+    int h = 0;
+    for (int i = 0; i < value.length(); i++) {
+      h = 31 * h + value.charAt(i);
+    }
+    return h ^ (h >>> 16);
+  }
+
+  private static boolean contentEquals(String s, CharSequence value) {
+    if (s.length() != value.length()) {
+      return false;
+    }
+    for (int i = 0; i < s.length(); i++) {
+      if (s.charAt(i) != value.charAt(i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
@@ -0,0 +1,158 @@
+package meneses.kibana.processor;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.time.LocalDateTime;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.util.Arrays;
+
+/**
+ * Dictionary of users, identified by their install time, to dense int ids (0, 1, 2, ...) that processors use as
+ * indexes of primitive arrays.
+ * <p>
+ * Install times are packed in a long made of the epoch millis and the offset, so two install times are the same user
+ * if they are equal to the millisecond with the same offset. Not thread safe.
+ */
+public final class UserIds {
+  public static final int NONE = -1;
+  private static final int OFFSET_BITS = 17;
+  private static final int MAX_OFFSET = 18 * 3600;
+
+  private long[] keys = new long[1024];
+  // open addressing table of id + 1, 0 being free
+  private int[] table = new int[2048];
+  private int size = 0;
+
+  private UserIds lastMerged;
+  private int[] lastMapping;
+
+  /**
+   * Returns the id of the user with the given {@link #key(long, int) key}, adding it if it's new
+   */
+  public int id(long key) {
+    int mask = table.length - 1;
+    for (int slot = hash(key) & mask; ; slot = (slot + 1) & mask) {
+      int entry = table[slot];
+      if (entry == 0) {
+        if (size == keys.length) {
+          keys = Arrays.copyOf(keys, size * 2);
+        }
+        keys[size] = key;
+        table[slot] = ++size;
+        if (2 * size > table.length) {
+          rehash();
+        }
+        return size - 1;
+      }
+      if (keys[entry - 1] == key) {
+        return entry - 1;
+      }
+    }
+  }
+
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Removes all users, so that ids start again from 0. Ids given before must not be used anymore.
+   */
+  public void clear() {
+    if (size > 0) {
+      Arrays.fill(table, 0);
+      size = 0;
+    }
+    lastMerged = null;
+    lastMapping = null;
+  }
+
+  public long key(int id) {
+    return keys[id];
+  }
+
+  public OffsetDateTime installTime(int id) {
+    return toDateTime(keys[id]);
+  }
+
+  /**
+   * Ids in this dictionary of all users of another one, indexed by their id in the other dictionary.
+   * Users that are not yet in this dictionary are added.
+   */
+  public int[] mapping(UserIds other) {
+    if (other == lastMerged && lastMapping.length == other.size) {
+      return lastMapping;
+    }
+    int[] mapping = new int[other.size];
+    for (int i = 0; i < other.size; i++) {
+      mapping[i] = id(other.keys[i]);
+    }
+    lastMerged = other;
+    lastMapping = mapping;
+    return mapping;
+  }
+
+  /**
+   * Writes the users in the order of their ids, see {@link #read(DataInput)}
+   */
+  public void write(DataOutput out) throws IOException {
+    out.writeInt(size);
+    for (int id = 0; id < size; id++) {
+      out.writeLong(keys[id]);
+    }
+  }
+
+  /**
+   * Adds the users written by {@link #write(DataOutput)}, with the same ids. The dictionary must be empty.
+   */
+  public void read(DataInput in) throws IOException {
+    if (size > 0) {
+      throw new IllegalStateException("Users can only be read into an empty dictionary");
+    }
+    int count = in.readInt();
+    for (int i = 0; i < count; i++) {
+      id(in.readLong());
+    }
+  }
+
+  public static long key(long epochMillis, int offsetSeconds) {
+    return (epochMillis << OFFSET_BITS) | (offsetSeconds + MAX_OFFSET);
+  }
+
+  public static long epochMillis(long key) {
+    return key >> OFFSET_BITS;
+  }
+
+  public static int offsetSeconds(long key) {
+    return (int) (key & ((1 << OFFSET_BITS) - 1)) - MAX_OFFSET;
+  }
+
+  public static OffsetDateTime toDateTime(long key) {
+    return toDateTime(epochMillis(key), offsetSeconds(key));
+  }
+
+  public static OffsetDateTime toDateTime(long epochMillis, int offsetSeconds) {
+    ZoneOffset offset = ZoneOffset.ofTotalSeconds(offsetSeconds);
+    return OffsetDateTime.of(LocalDateTime.ofEpochSecond(Math.floorDiv(epochMillis, 1000), (int) Math.floorMod(epochMillis, 1000L) * 1_000_000, offset), offset);
+  }
+
+  private void rehash() {
+    table = new int[table.length * 2];
+    int mask = table.length - 1;
+    for (int id = 0; id < size; id++) {
+      int slot = hash(keys[id]) & mask;
+      while (table[slot] != 0) {
+        slot = (slot + 1) & mask;
+      }
+      table[slot] = id + 1;
+    }
+  }
+
+  private static int hash(long key) {
+    key ^= key >>> 33;
+    key *= 0xff51afd7ed558ccdL;
+    key ^= key >>> 33;
+    return (int) key;
+  }
+}
@@ -1,96 +1,394 @@
 package meneses.kibana.processor;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.text.NumberFormat;
 import java.time.OffsetDateTime;
 import java.time.YearMonth;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.EnumSet;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
+import java.util.function.IntFunction;
+import org.roaringbitmap.RoaringBitmap;
 
+/**
+ * Pings and users per month.
+ * <p>
+ * Users are identified by their id in {@link UserIds}, and months by their index (see {@link RowBatch#month(long)}).
+ * The users of each month are kept in a compressed bitmap, so that new and dropping users can be computed with bitmap
+ * operations, and the number of pings per month and product, and per user and month, are kept in primitive maps keyed
+ * by both.
+ * <p>
+ * In approximate mode (precision > 0), the users of each month are instead estimated with a {@link HyperLogLog} sketch
+ * of the given precision, and new and dropping users come from the first and last use kept by {@link RetentionProcessor}.
+ * <p>
+ * When only a {@link Sampling} of the users is processed, counts are scaled up, with bounds for the unique users and the
+ * pings. Pings of a month are a sum over the users of their pings, so their bound comes from the pings of each user.
+ * <p>
+ * The state of the users is folded into counts per month by {@link #after()}, or as soon as their rows end when rows
+ * come grouped by user (see {@link #endUsers()}). As users of different folds are different, their counts add up.
+ */
 public class UsersProcessor implements Processor {
   private static final NumberFormat NUMBER_FORMAT = NumberFormat.getInstance(Locale.US);
+  private static final IntFunction<RoaringBitmap> NEW_BITMAP = m -> new RoaringBitmap();
 
-  private final Map<OffsetDateTime, Integer> users = new TreeMap<>();
-  private final Map<YearMonth, Map<String, Integer>> pingsByMonthAndProduct = new TreeMap<>();
-  private final Map<YearMonth, Set<OffsetDateTime>> uniqueByMonth = new HashMap<>();
-  private final Map<YearMonth, Map<OffsetDateTime, Integer>> countPerUserAndMonth = new HashMap<>();
+  private final RoaringBitmap users = new RoaringBitmap();
+  // key is month << 32 | product code in products
+  private final LongIntMap pingsByMonthAndProduct = new LongIntMap();
+  private final StringDictionary products = new StringDictionary();
+  private final MonthTable<RoaringBitmap> uniqueByMonth = new MonthTable<>();
+  private final MonthTable<HyperLogLog> approxUniqueByMonth = new MonthTable<>();
+  // key is user id << 32 | month
+  private final LongIntMap countPerUserAndMonth = new LongIntMap();
+
+  // counts of the users folded so far: users, unique users, users seen for the first and for the last time, per month
+  private long foldedUsers = 0;
+  private final Map<Integer, Integer> uniquePerMonth = new HashMap<>();
+  private final Map<Integer, Integer> firstUsePerMonth = new HashMap<>();
+  private final Map<Integer, Integer> lastUsePerMonth = new HashMap<>();
+  // sums of the squares of the pings of the users of each month, and their pings, for the bounds when sampled
+  private final Map<Integer, Double> squaredUserPings = new HashMap<>();
+  private final Map<Integer, Integer> userPings = new HashMap<>();
+  private final Map<YearMonth, Map<USE_CATEGORY, Integer>> countPerCategoryAndMonth = new TreeMap<>();
+
+  // codes in products of the codes of the products of the batches
+  private StringDictionary mappedProducts;
+  private int[] productMapping = new int[0];
 
   private final RetentionProcessor retention;
+  private final int precision;
+  private final IntFunction<HyperLogLog> newSketch;
 
   public UsersProcessor(RetentionProcessor retention) {
+    this(retention, 0);
+  }
+
+  /**
+   * @param precision precision of the sketches estimating the unique users per month, or 0 to count them exactly
+   */
+  public UsersProcessor(RetentionProcessor retention, int precision) {
     this.retention = retention;
+    this.precision = precision;
+    this.newSketch = m -> new HyperLogLog(precision);
   }
 
   @Override public void before() {
 
   }
 
-  @Override public void process(OffsetDateTime installTime, OffsetDateTime systemTime, String[] fields) {
-    YearMonth systemYearMonth = YearMonth.from(systemTime);
-    String product = fields[5];
-    pingsByMonthAndProduct.computeIfAbsent(systemYearMonth, k -> new HashMap<>()).compute(product, (k, v) -> v == null ? 1 : v + 1);
+  @Override public Set<Column> columns() {
+    return EnumSet.of(Column.PRODUCT);
+  }
 
-    if (installTime != null) {
-      uniqueByMonth.compute(systemYearMonth, (k, v) -> {
-        if (v == null) {
-          v = new HashSet<>();
+  @Override public List<Processor> dependencies() {
+    return Collections.singletonList(retention);
+  }
+
+  @Override public void process(RowBatch batch) {
+    int[] ids = batch.users(retention.users);
+    int[] productCodes = productMapping(batch.products());
+    for (int i = 0; i < batch.size(); i++) {
+      int month = batch.systemMonth(i);
+      pingsByMonthAndProduct.add(key(month, productCodes[batch.product(i)]), 1);
+
+      int user = ids[i];
+      if (user != UserIds.NONE) {
+        if (precision > 0) {
+          approxUniqueByMonth.computeIfAbsent(month, newSketch).add(UserIds.key(batch.installMillis(i), batch.installOffset(i)));
+        } else {
+          uniqueByMonth.computeIfAbsent(month, NEW_BITMAP).add(user);
         }
-        v.add(installTime);
-        return v;
-      });
 
-      // Unique users
-      users.compute(installTime, (k, v) -> v == null ? 1 : v + 1);
-      countPerUserAndMonth.computeIfAbsent(systemYearMonth, k -> new HashMap<>()).compute(installTime, (k, v) -> v == null ? 1 : v + 1);
+        // Unique users
+        users.add(user);
+        countPerUserAndMonth.add(key(user, month), 1);
+      }
     }
   }
 
-  @Override public void after() {
-    Map<YearMonth, Integer> lastUsePerMonth = new HashMap<>();
-    Map<YearMonth, Integer> firstUsePerMonth = new HashMap<>();
+  /**
+   * Adds pings of a month and product aggregated elsewhere, such as by Elasticsearch, instead of their rows
+   *
+   * @param month see {@link RowBatch#month(long)}
+   */
+  public void addPings(int month, String product, int pings) {
+    pingsByMonthAndProduct.add(key(month, products.code(product)), pings);
+  }
+
+  /**
+   * Adds the pings of a user in a month aggregated elsewhere. They must also be added by product with
+   * {@link #addPings(int, String, int)}.
+   */
+  public void addUserPings(long installMillis, int installOffset, int month, int pings) {
+    int user = retention.users.id(UserIds.key(installMillis, installOffset));
+    if (precision > 0) {
+      approxUniqueByMonth.computeIfAbsent(month, newSketch).add(UserIds.key(installMillis, installOffset));
+    } else {
+      uniqueByMonth.computeIfAbsent(month, NEW_BITMAP).add(user);
+    }
+    users.add(user);
+    countPerUserAndMonth.add(key(user, month), pings);
+  }
+
+  private int[] productMapping(StringDictionary batchProducts) {
+    if (batchProducts != mappedProducts) {
+      mappedProducts = batchProducts;
+      productMapping = new int[0];
+    }
+    if (productMapping.length < batchProducts.size()) {
+      int from = productMapping.length;
+      productMapping = Arrays.copyOf(productMapping, batchProducts.size());
+      for (int code = from; code < productMapping.length; code++) {
+        productMapping[code] = products.code(batchProducts.get(code));
+      }
+    }
+    return productMapping;
+  }
+
+  private static long key(int high, int low) {
+    return ((long) high << 32) | low;
+  }
+
+  private static int high(long key) {
+    return (int) (key >>> 32);
+  }
+
+  private static int low(long key) {
+    return (int) key;
+  }
+
+  private static YearMonth yearMonth(int month) {
+    return YearMonth.of(month / 12, month % 12 + 1);
+  }
+
+  private static int month(OffsetDateTime dateTime) {
+    return dateTime.getYear() * 12 + dateTime.getMonthValue() - 1;
+  }
+
+  @Override public void merge(Processor other) {
+    UsersProcessor o = (UsersProcessor) other;
+    int[] mapping = retention.users.mapping(o.retention.users);
+    users.or(remap(o.users, mapping));
+    for (int slot = 0; slot < o.pingsByMonthAndProduct.capacity(); slot++) {
+      if (o.pingsByMonthAndProduct.isUsed(slot)) {
+        long key = o.pingsByMonthAndProduct.keyAt(slot);
+        int product = products.code(o.products.get(low(key)));
+        pingsByMonthAndProduct.add(key(high(key), product), o.pingsByMonthAndProduct.valueAt(slot));
+      }
+    }
+    for (int month = o.uniqueByMonth.start(); month < o.uniqueByMonth.end(); month++) {
+      if (o.uniqueByMonth.get(month) != null) {
+        uniqueByMonth.computeIfAbsent(month, NEW_BITMAP).or(remap(o.uniqueByMonth.get(month), mapping));
+      }
+    }
+    for (int month = o.approxUniqueByMonth.start(); month < o.approxUniqueByMonth.end(); month++) {
+      if (o.approxUniqueByMonth.get(month) != null) {
+        approxUniqueByMonth.computeIfAbsent(month, newSketch).merge(o.approxUniqueByMonth.get(month));
+      }
+    }
+    for (int slot = 0; slot < o.countPerUserAndMonth.capacity(); slot++) {
+      if (o.countPerUserAndMonth.isUsed(slot)) {
+        long key = o.countPerUserAndMonth.keyAt(slot);
+        countPerUserAndMonth.add(key(mapping[high(key)], low(key)), o.countPerUserAndMonth.valueAt(slot));
+      }
+    }
+  }
+
+  /**
+   * Writes the state, whose user ids are the ones of the {@link UserIds} written by {@link RetentionProcessor}
+   */
+  @Override public void writeState(DataOutput out) throws IOException {
+    out.writeInt(precision);
+    users.serialize(out);
+    products.write(out);
+    pingsByMonthAndProduct.write(out);
+    writeMonths(out, uniqueByMonth);
+    out.writeInt(approxUniqueByMonth.end() - approxUniqueByMonth.start());
+    for (int month = approxUniqueByMonth.start(); month < approxUniqueByMonth.end(); month++) {
+      HyperLogLog sketch = approxUniqueByMonth.get(month);
+      out.writeBoolean(sketch != null);
+      if (sketch != null) {
+        out.writeInt(month);
+        sketch.write(out);
+      }
+    }
+    countPerUserAndMonth.write(out);
+  }
+
+  @Override public void readState(DataInput in) throws IOException {
+    int p = in.readInt();
+    if (p != precision) {
+      throw new IOException("State of users was written with precision " + p + ", not " + precision);
+    }
+    users.deserialize(in);
+    products.read(in);
+    pingsByMonthAndProduct.read(in);
+    readMonths(in, uniqueByMonth);
+    int months = in.readInt();
+    for (int i = 0; i < months; i++) {
+      if (in.readBoolean()) {
+        int month = in.readInt();
+        approxUniqueByMonth.computeIfAbsent(month, newSketch).merge(HyperLogLog.read(in));
+      }
+    }
+    countPerUserAndMonth.read(in);
+  }
+
+  private static void writeMonths(DataOutput out, MonthTable<RoaringBitmap> table) throws IOException {
+    out.writeInt(table.end() - table.start());
+    for (int month = table.start(); month < table.end(); month++) {
+      RoaringBitmap bitmap = table.get(month);
+      out.writeBoolean(bitmap != null);
+      if (bitmap != null) {
+        out.writeInt(month);
+        bitmap.serialize(out);
+      }
+    }
+  }
+
+  private static void readMonths(DataInput in, MonthTable<RoaringBitmap> table) throws IOException {
+    int months = in.readInt();
+    for (int i = 0; i < months; i++) {
+      if (in.readBoolean()) {
+        int month = in.readInt();
+        RoaringBitmap bitmap = new RoaringBitmap();
+        bitmap.deserialize(in);
+        table.computeIfAbsent(month, NEW_BITMAP).or(bitmap);
+      }
+    }
+  }
+
+  private static RoaringBitmap remap(RoaringBitmap bitmap, int[] mapping) {
+    RoaringBitmap remapped = new RoaringBitmap();
+    bitmap.forEach((int user) -> remapped.add(mapping[user]));
+    return remapped;
+  }
+
+  private long errorBound(long estimate) {
+    return Math.round(2 * estimate * new HyperLogLog(precision).standardError());
+  }
+
+  /**
+   * Counts the users seen so far, then drops them
+   */
+  @Override public void endUsers() {
+    fold();
+  }
+
+  /**
+   * Adds the users seen since the last fold to the counts per month, and clears their state
+   */
+  private void fold() {
+    if (precision > 0) {
+      for (int user = 0; user < retention.users.size(); user++) {
+        if (retention.hasUsed(user)) {
+          lastUsePerMonth.merge(month(retention.lastUse(user)), 1, Integer::sum);
+          firstUsePerMonth.merge(month(retention.firstUse(user)), 1, Integer::sum);
+        }
+      }
+    }
+    RoaringBitmap seen = new RoaringBitmap();
+    for (int month = uniqueByMonth.start(); month < uniqueByMonth.end(); month++) {
+      if (uniqueByMonth.get(month) != null) {
+        uniquePerMonth.merge(month, uniqueByMonth.get(month).getCardinality(), Integer::sum);
+        firstUsePerMonth.merge(month, RoaringBitmap.andNotCardinality(uniqueByMonth.get(month), seen), Integer::sum);
+        seen.or(uniqueByMonth.get(month));
+      }
+    }
+    seen = new RoaringBitmap();
+    for (int month = uniqueByMonth.end() - 1; month >= uniqueByMonth.start(); month--) {
+      if (uniqueByMonth.get(month) != null) {
+        lastUsePerMonth.merge(month, RoaringBitmap.andNotCardinality(uniqueByMonth.get(month), seen), Integer::sum);
+        seen.or(uniqueByMonth.get(month));
+      }
+    }
+    foldedUsers += users.getCardinality();
 
-    for (Map.Entry<OffsetDateTime, OffsetDateTime> e : retention.lastUsePerUser.entrySet()) {
-      lastUsePerMonth.compute(YearMonth.from(e.getValue()), (k, v) -> v == null ? 1 : v + 1);
+    for (int slot = 0; slot < countPerUserAndMonth.capacity(); slot++) {
+      if (!countPerUserAndMonth.isUsed(slot)) {
+        continue;
+      }
+      int month = low(countPerUserAndMonth.keyAt(slot));
+      int count = countPerUserAndMonth.valueAt(slot);
+      if (retention.sampling.isSampled()) {
+        squaredUserPings.merge(month, (double) count * count, Double::sum);
+        userPings.merge(month, count, Integer::sum);
+      }
+      for (USE_CATEGORY c : USE_CATEGORY.values()) {
+        if (count <= c.rangeEnd) {
+          countPerCategoryAndMonth.computeIfAbsent(yearMonth(month), k -> new TreeMap<>()).merge(c, 1, Integer::sum);
+          break;
+        }
+      }
     }
 
-    for (Map.Entry<OffsetDateTime, OffsetDateTime> e : retention.firstUsePerUser.entrySet()) {
-      firstUsePerMonth.compute(YearMonth.from(e.getValue()), (k, v) -> v == null ? 1 : v + 1);
+    users.clear();
+    uniqueByMonth.clear();
+    countPerUserAndMonth.clear();
+  }
+
+  @Override public void after() {
+    fold();
+
+    Map<Integer, Map<String, Integer>> pingsByMonth = new TreeMap<>();
+    for (int slot = 0; slot < pingsByMonthAndProduct.capacity(); slot++) {
+      if (pingsByMonthAndProduct.isUsed(slot)) {
+        long key = pingsByMonthAndProduct.keyAt(slot);
+        pingsByMonth.computeIfAbsent(high(key), k -> new HashMap<>()).put(products.get(low(key)), pingsByMonthAndProduct.valueAt(slot));
+      }
     }
 
-    System.out.println("Number of users: " + users.size());
+    Sampling sampling = retention.sampling;
+    System.out.println("Number of users: " + sampling.scale(foldedUsers)
+      + (sampling.isSampled() ? " +/- " + sampling.bound(foldedUsers) : ""));
 
     System.out.println("Users per month");
     System.out.println(String.format("%12s%12s%12s%12s%12s%12s%12s%12s%12s",
-      "Month", "Pings", "Pings SLI", "Pings SLE", "Pings VS", "Pings VSCode", "Unique Users", "New Users", "Users Dropping"));
-    for (YearMonth yearMonth : pingsByMonthAndProduct.keySet()) {
-      System.out.println(String.format("%12s%12s%12s%12s%12s%12s%12s%12s%12s",
-        yearMonth,
-        NUMBER_FORMAT.format(pingsByMonthAndProduct.get(yearMonth).values().stream().mapToInt(x -> x).sum()),
-        NUMBER_FORMAT.format(pingsByMonthAndProduct.get(yearMonth).getOrDefault("SonarLint IntelliJ", 0)),
-        NUMBER_FORMAT.format(pingsByMonthAndProduct.get(yearMonth).getOrDefault("SonarLint Eclipse", 0)),
-        NUMBER_FORMAT.format(pingsByMonthAndProduct.get(yearMonth).getOrDefault("SonarLint Visual Studio", 0)),
-        NUMBER_FORMAT.format(pingsByMonthAndProduct.get(yearMonth).getOrDefault("SonarLint VSCode", 0)),
-        NUMBER_FORMAT.format(uniqueByMonth.getOrDefault(yearMonth, Collections.emptySet()).size()),
-        NUMBER_FORMAT.format(firstUsePerMonth.getOrDefault(yearMonth, 0)),
-        NUMBER_FORMAT.format(lastUsePerMonth.getOrDefault(yearMonth, 0))));
-    }
-
-    Map<YearMonth, Map<USE_CATEGORY, Integer>> countPerCategoryAndMonth = new TreeMap<>();
-
-    for (Map.Entry<YearMonth, Map<OffsetDateTime, Integer>> x : countPerUserAndMonth.entrySet()) {
-      YearMonth yearMonth = x.getKey();
-      for (Map.Entry<OffsetDateTime, Integer> e : x.getValue().entrySet()) {
-        for (USE_CATEGORY c : USE_CATEGORY.values()) {
-          if (e.getValue() <= c.rangeEnd) {
-            countPerCategoryAndMonth.computeIfAbsent(yearMonth, k -> new TreeMap<>()).compute(c, (k,v) -> v == null ? 1 : v+1);
-            break;
-          }
-        }
+      "Month", "Pings", "Pings SLI", "Pings SLE", "Pings VS", "Pings VSCode", "Unique Users", "New Users", "Users Dropping")
+      + (precision > 0 || sampling.isSampled() ? String.format("%12s", "+/- Users") : "")
+      + (sampling.isSampled() ? String.format("%12s", "+/- Pings") : ""));
+    for (Map.Entry<Integer, Map<String, Integer>> e : pingsByMonth.entrySet()) {
+      int month = e.getKey();
+      Map<String, Integer> pings = e.getValue();
+      long uniqueUsers;
+      if (precision > 0) {
+        HyperLogLog sketch = approxUniqueByMonth.get(month);
+        uniqueUsers = sketch == null ? 0 : sketch.estimate();
+      } else {
+        uniqueUsers = uniquePerMonth.getOrDefault(month, 0);
       }
+      int totalPings = pings.values().stream().mapToInt(x -> x).sum();
+      // the error of the sketch and the one of the sample are independent
+      long sketchBound = precision > 0 ? sampling.scale(errorBound(uniqueUsers)) : 0;
+      long sampleBound = sampling.bound(uniqueUsers);
+      long usersBound = Math.round(Math.sqrt((double) sketchBound * sketchBound + (double) sampleBound * sampleBound));
+      long pingsBound = sampling.sumBound(squaredUserPings.getOrDefault(month, 0.0) + totalPings - userPings.getOrDefault(month, 0));
+      System.out.println(String.format("%12s%12s%12s%12s%12s%12s%12s%12s%12s",
+        yearMonth(month),
+        NUMBER_FORMAT.format(sampling.scale(totalPings)),
+        NUMBER_FORMAT.format(sampling.scale(pings.getOrDefault("SonarLint IntelliJ", 0))),
+        NUMBER_FORMAT.format(sampling.scale(pings.getOrDefault("SonarLint Eclipse", 0))),
+        NUMBER_FORMAT.format(sampling.scale(pings.getOrDefault("SonarLint Visual Studio", 0))),
+        NUMBER_FORMAT.format(sampling.scale(pings.getOrDefault("SonarLint VSCode", 0))),
+        NUMBER_FORMAT.format(sampling.scale(uniqueUsers)),
+        NUMBER_FORMAT.format(sampling.scale(firstUsePerMonth.getOrDefault(month, 0))),
+        NUMBER_FORMAT.format(sampling.scale(lastUsePerMonth.getOrDefault(month, 0))))
+        + (precision > 0 || sampling.isSampled() ? String.format("%12s", NUMBER_FORMAT.format(usersBound)) : "")
+        + (sampling.isSampled() ? String.format("%12s", NUMBER_FORMAT.format(pingsBound)) : ""));
+    }
+    if (sampling.isSampled()) {
+      System.out.println(sampling.note());
+    }
+    if (precision > 0) {
+      System.out.println(String.format("Unique users are estimated (HyperLogLog, precision %d). +/- is a 95%% confidence bound (2 standard errors of %.2f%%)",
+        precision, 100 * new HyperLogLog(precision).standardError()));
     }
 
     System.out.println("Days using SonarLint per user");
@@ -103,7 +401,7 @@ public class UsersProcessor implements Processor {
     for (Map.Entry<YearMonth, Map<USE_CATEGORY, Integer>> e : countPerCategoryAndMonth.entrySet()) {
       System.out.print(String.format("%10s", e.getKey()));
       for (USE_CATEGORY u : USE_CATEGORY.values()) {
-        System.out.print(String.format("%10s", Integer.toString(e.getValue().getOrDefault(u, 0))));
+        System.out.print(String.format("%10s", Long.toString(sampling.scale(e.getValue().getOrDefault(u, 0)))));
       }
       System.out.println("");
     }
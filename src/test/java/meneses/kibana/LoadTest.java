@@ -0,0 +1,154 @@
+package meneses.kibana;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import meneses.kibana.columnar.ColumnarWriter;
+import meneses.kibana.processor.RetentionProcessor;
+import meneses.kibana.processor.UsersProcessor;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+/**
+ * Checks that the ways {@link Load} can read the rows of aggregate/export.csv print the same reports
+ */
+public class LoadTest {
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  @Test
+  public void shardedReportsAreTheSingleConsumerOnes() throws Exception {
+    String single = Reports.runMain(Load.class, Collections.emptyList(), export().toString());
+    String sharded = Reports.runMain(Load.class, Collections.singletonList("-Dload.shards=3"), export().toString());
+    assertEquals(Reports.of(single), Reports.of(sharded));
+  }
+
+  @Test
+  public void reportsOfRowsGroupedByUserAreTheLoadedOnes() throws Exception {
+    Path sorted = tmp.getRoot().toPath().resolve("sorted.csv");
+    // runs of one line, to merge as many runs as there are rows
+    Reports.runMain(SortByUser.class, Collections.singletonList("-Dsort.runMegabytes=0"), sorted.toString(),
+      export().toString());
+    String grouped = Reports.runMain(Load.class, Collections.singletonList("-Dload.groupByUser=true"),
+      sorted.toString());
+    String loaded = Reports.runMain(Load.class, Collections.emptyList(), export().toString());
+    assertEquals(Reports.of(loaded), Reports.of(grouped));
+  }
+
+  @Test
+  public void lastRowWithoutNewLineIsLoaded() throws Exception {
+    List<String> lines = validLines();
+    Path complete = write("complete.csv", String.join("\n", lines) + "\n");
+    Path withoutNewLine = write("without-new-line.csv", String.join("\n", lines));
+    Path withoutLastRow = write("without-last-row.csv", String.join("\n", lines.subList(0, lines.size() - 1)) + "\n");
+
+    assertEquals(load(complete), load(withoutNewLine));
+    assertNotEquals(load(withoutLastRow), load(withoutNewLine));
+  }
+
+  @Test
+  public void snapshotOfAFileCutInALineIsResumed() throws Exception {
+    byte[] export = Files.readAllBytes(export());
+    int cut = export.length / 2;
+    while (export[cut - 1] == '\n') {
+      cut++;
+    }
+    assertSnapshotResumed("export.csv", export, cut);
+  }
+
+  @Test
+  public void snapshotOfAColumnarFileCutInABlockIsResumed() throws Exception {
+    Path columnar = tmp.getRoot().toPath().resolve("complete" + ColumnarWriter.EXTENSION);
+    List<Long> blockEnds = writeColumnar(columnar, 50);
+    byte[] export = Files.readAllBytes(columnar);
+    int cut = (int) (blockEnds.get(blockEnds.size() / 2) + 10);
+    assertSnapshotResumed("export" + ColumnarWriter.EXTENSION, export, cut);
+  }
+
+  /**
+   * Loads the start of the file with a snapshot, then the whole file from the snapshot, and checks that the reports
+   * are the ones of the rows of the file
+   */
+  private void assertSnapshotResumed(String name, byte[] content, int cut) throws Exception {
+    Path file = tmp.getRoot().toPath().resolve(name);
+    List<String> snapshot = Collections.singletonList("-Dload.snapshot=" + tmp.getRoot().toPath().resolve("snapshot"));
+    Files.write(file, Arrays.copyOf(content, cut));
+    Reports.runMain(Load.class, snapshot, file.toString());
+    Files.write(file, Arrays.copyOfRange(content, cut, content.length), StandardOpenOption.APPEND);
+    String resumed = Reports.runMain(Load.class, snapshot, file.toString());
+
+    String loaded = Reports.runMain(Load.class, Collections.emptyList(), export().toString());
+    assertEquals(Reports.of(loaded), Reports.of(resumed));
+  }
+
+  /**
+   * Loads the rows with {@link RetentionProcessor} and {@link UsersProcessor} only, and returns their reports
+   */
+  static String load(Path file) throws Exception {
+    return Reports.of(Reports.capture(() -> {
+      RetentionProcessor retention = new RetentionProcessor();
+      new Load().work(Arrays.asList(retention, new UsersProcessor(retention)), Collections.singletonList(file));
+    }));
+  }
+
+  /**
+   * Writes the rows of the export to a columnar file, in blocks of the given number of rows, and returns the end of
+   * each block
+   */
+  private static List<Long> writeColumnar(Path path, int blockRows) throws IOException, URISyntaxException {
+    List<Long> blockEnds = new ArrayList<>();
+    List<String> lines = Files.readAllLines(export(), StandardCharsets.UTF_8);
+    try (FileOutputStream out = new FileOutputStream(path.toFile());
+      ColumnarWriter writer = new ColumnarWriter(out, Save.FIELDS, Save.ENCODINGS)) {
+      for (int i = 1; i < lines.size(); i++) {
+        byte[] line = lines.get(i).getBytes(StandardCharsets.UTF_8);
+        int field = 0;
+        int start = 0;
+        for (int j = 0; j <= line.length && field < Save.FIELDS.length; j++) {
+          if (j == line.length || line[j] == Save.SEPARATOR.charAt(0)) {
+            if (j > start) {
+              writer.set(field, line, start, j);
+            }
+            field++;
+            start = j + 1;
+          }
+        }
+        writer.endRow();
+        if (i % blockRows == 0) {
+          writer.flush();
+          blockEnds.add(out.getChannel().size());
+        }
+      }
+    }
+    return blockEnds;
+  }
+
+  /**
+   * Header and rows of the export, without its last rows, which are invalid
+   */
+  private static List<String> validLines() throws IOException, URISyntaxException {
+    List<String> lines = Files.readAllLines(export(), StandardCharsets.UTF_8);
+    return lines.subList(0, lines.size() - 2);
+  }
+
+  private Path write(String name, String content) throws IOException {
+    return Files.write(tmp.getRoot().toPath().resolve(name), content.getBytes(StandardCharsets.UTF_8));
+  }
+
+  static Path export() throws URISyntaxException {
+    return Paths.get(LoadTest.class.getResource("aggregate/export.csv").toURI());
+  }
+}
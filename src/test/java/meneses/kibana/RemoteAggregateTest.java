@@ -0,0 +1,111 @@
+package meneses.kibana;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import meneses.kibana.processor.RetentionProcessor;
+import meneses.kibana.processor.UsersProcessor;
+import org.apache.http.HttpHost;
+import org.elasticsearch.client.RestClient;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks {@link RemoteAggregate} against a local stand-in for Elasticsearch, which returns the recorded responses of
+ * aggregate/{@code <aggregation>-<page>.json} in order, and checks that each page is requested after the last bucket of
+ * the previous one. The responses were recorded for the rows of aggregate/export.csv, 50 buckets at a time. Its times
+ * are in UTC and in order, since aggregations don't keep offsets nor validate the order (see {@link RemoteAggregate}).
+ */
+public class RemoteAggregateTest {
+  private static final String RESOURCES = "aggregate/";
+
+  private HttpServer server;
+  private final Map<String, Integer> pages = new HashMap<>();
+  private final List<String> failures = Collections.synchronizedList(new ArrayList<>());
+
+  @Before
+  public void startStandIn() throws IOException {
+    server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+    server.createContext("/" + Download.INDEX + "/_search", this::search);
+    server.start();
+  }
+
+  @After
+  public void stopStandIn() {
+    server.stop(0);
+  }
+
+  @Test
+  public void reportsAreTheOnesOfTheRows() throws Exception {
+    String aggregated = Reports.capture(() -> {
+      HttpHost host = new HttpHost(server.getAddress().getAddress().getHostAddress(), server.getAddress().getPort(), "http");
+      try (RestHighLevelClient client = new RestHighLevelClient(RestClient.builder(host))) {
+        RetentionProcessor retention = new RetentionProcessor();
+        new RemoteAggregate(client).aggregate(retention, new UsersProcessor(retention, 0));
+      }
+    });
+    String loaded = LoadTest.load(LoadTest.export());
+
+    assertEquals(Collections.emptyList(), failures);
+    assertEquals(3, (int) pages.get("pings"));
+    assertEquals(5, (int) pages.get("users"));
+    assertEquals(loaded, Reports.of(aggregated));
+  }
+
+  private void search(HttpExchange exchange) throws IOException {
+    try {
+      Map<String, Object> request = XContentHelper.convertToMap(new BytesArray(exchange.getRequestBody().readAllBytes()), false, XContentType.JSON).v2();
+      Map<String, Object> aggregations = map(request, "aggregations");
+      String name = aggregations.keySet().iterator().next();
+      int page = pages.merge(name, 1, Integer::sum);
+      Object after = map(map(aggregations, name), "composite").get("after");
+      Object expected = page == 1 ? null : map(map(response(name, page - 1), "aggregations"), "composite#" + name).get("after_key");
+      if (!Objects.equals(expected, after)) {
+        failures.add("Page " + page + " of " + name + " requested after " + after + " instead of " + expected);
+      }
+
+      byte[] body = Files.readAllBytes(resource(name + "-" + page + ".json"));
+      exchange.getResponseHeaders().add("Content-Type", "application/json; charset=UTF-8");
+      exchange.sendResponseHeaders(200, body.length);
+      exchange.getResponseBody().write(body);
+    } catch (Exception e) {
+      failures.add(e.toString());
+      exchange.sendResponseHeaders(500, -1);
+    } finally {
+      exchange.close();
+    }
+  }
+
+  private static Map<String, Object> response(String name, int page) throws IOException, URISyntaxException {
+    byte[] body = Files.readAllBytes(resource(name + "-" + page + ".json"));
+    return XContentHelper.convertToMap(new BytesArray(body), false, XContentType.JSON).v2();
+  }
+
+  @SuppressWarnings("unchecked")
+  private static Map<String, Object> map(Map<String, Object> parent, String key) {
+    return (Map<String, Object>) parent.get(key);
+  }
+
+  private static Path resource(String name) throws URISyntaxException {
+    return Paths.get(RemoteAggregateTest.class.getResource(RESOURCES + name).toURI());
+  }
+}
@@ -0,0 +1,70 @@
+package meneses.kibana;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Reports printed by the entry classes, to check that different ways of computing them print the same
+ */
+final class Reports {
+  private static final String START = "############################";
+
+  private Reports() {
+  }
+
+  /**
+   * The reports of an output, without what comes before them, which depends on where the rows come from, nor the time
+   * it took
+   */
+  static String of(String output) {
+    int start = output.indexOf(START);
+    if (start < 0) {
+      throw new AssertionError("No report in:\n" + output);
+    }
+    return Arrays.stream(output.substring(start).split("\n"))
+      .filter(line -> !line.matches("\\d+ ms"))
+      .collect(Collectors.joining("\n"));
+  }
+
+  /**
+   * Runs the task and returns what it printed
+   */
+  static String capture(Load.RunnableException task) throws Exception {
+    PrintStream out = System.out;
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (PrintStream capture = new PrintStream(bytes, true, StandardCharsets.UTF_8.name())) {
+      System.setOut(capture);
+      task.run();
+    } finally {
+      System.setOut(out);
+    }
+    return new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Runs the main method of the class in a new JVM with the given system properties, since the entry classes read
+   * their options once, and returns what it printed
+   */
+  static String runMain(Class<?> main, List<String> properties, String... args) throws IOException, InterruptedException {
+    List<String> command = new ArrayList<>();
+    command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+    command.add("-cp");
+    command.add(System.getProperty("java.class.path"));
+    command.addAll(properties);
+    command.add(main.getName());
+    command.addAll(Arrays.asList(args));
+    Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+    String output = new String(process.getInputStream().readAllBytes(), StandardCharsets.UTF_8);
+    assertEquals(output, 0, process.waitFor());
+    return output;
+  }
+}
@@ -0,0 +1,107 @@
+package meneses.kibana;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.DateTimeException;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that {@link TimestampDecoder} decodes timestamps like {@link DateTimeFormatter#ISO_OFFSET_DATE_TIME}, both
+ * the shapes it decodes itself and the ones it leaves to the formatter
+ */
+public class TimestampDecoderTest {
+  private static final List<String> DECODED = Arrays.asList(
+    "2018-06-16T02:54:56.248+01:00",
+    "2019-01-15T09:15:31.001Z",
+    "2019-01-15T09:15:31Z",
+    "2017-10-20T01:07:42.167-05:30",
+    "2018-06-16T02:54:56.2+14:00",
+    "2018-06-16T02:54:56.123456789-18:00",
+    "2016-02-29T23:59:59.999Z",
+    "2000-02-29T00:00:00.000+00:00",
+    "1969-12-31T23:59:59.999Z");
+  private static final List<String> FALLBACK = Arrays.asList(
+    "2018-06-16T02:54+01:00",
+    "2018-06-16T02:54:56+01:00:30",
+    "2018-06-16T02:54:56.+01:00",
+    "2018-06-16T02:54:56.248+18:00",
+    "+10000-01-01T00:00:00Z");
+  private static final List<String> INVALID = Arrays.asList(
+    "",
+    "2018-02-29T00:00:00Z",
+    "2018-06-16T24:00:00Z",
+    "2018-06-16T02:60:00Z",
+    "2018-06-16 02:54:56Z",
+    "2018-06-16T02:54:56.1234567891Z",
+    "2018-06-16T02:54:56+19:00",
+    "2018-06-16T02:54:56",
+    "not a date");
+
+  @Test
+  public void decodesLikeTheFormatter() {
+    for (TimestampDecoder decoder : Arrays.asList(new TimestampDecoder(), new TimestampDecoder(4))) {
+      for (String value : values()) {
+        // twice, for the cache
+        assertDecoded(decoder, value);
+        assertDecoded(decoder, value);
+      }
+    }
+  }
+
+  @Test
+  public void decodesTheTimestampsOfTheExport() throws Exception {
+    TimestampDecoder decoder = new TimestampDecoder();
+    List<String> lines = Files.readAllLines(LoadTest.export(), StandardCharsets.UTF_8);
+    for (String line : lines.subList(1, lines.size())) {
+      String[] fields = line.split(Save.SEPARATOR, -1);
+      for (int field : new int[] {0, 3, 6}) {
+        if (!fields[field].isEmpty()) {
+          assertDecoded(decoder, fields[field]);
+        }
+      }
+    }
+  }
+
+  @Test
+  public void rejectsWhatTheFormatterRejects() {
+    TimestampDecoder decoder = new TimestampDecoder(4);
+    for (String value : INVALID) {
+      assertFalse(value, parses(value));
+      assertFalse(value, decoder.tryDecode(value));
+    }
+  }
+
+  private static List<String> values() {
+    List<String> values = new ArrayList<>(DECODED);
+    values.addAll(FALLBACK);
+    return values;
+  }
+
+  private static void assertDecoded(TimestampDecoder decoder, String value) {
+    OffsetDateTime expected = OffsetDateTime.parse(value, DateTimeFormatter.ISO_OFFSET_DATE_TIME);
+    assertTrue(value, decoder.tryDecode(value));
+    assertEquals(value, expected, decoder.dateTime());
+    assertEquals(value, expected.toInstant().toEpochMilli(), decoder.epochMillis());
+    assertEquals(value, expected.getOffset().getTotalSeconds(), decoder.offsetSeconds());
+    assertEquals(value, expected.toLocalDateTime().toInstant(ZoneOffset.UTC).toEpochMilli(), decoder.localMillis());
+  }
+
+  private static boolean parses(String value) {
+    try {
+      OffsetDateTime.parse(value, DateTimeFormatter.ISO_OFFSET_DATE_TIME);
+      return true;
+    } catch (DateTimeException e) {
+      return false;
+    }
+  }
+}
@@ -0,0 +1,129 @@
+package meneses.kibana.processor;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks that {@link AnalysesDecoder} decodes the lenient forms of the analyses field, including the
+ * {@code Map.toString} form of older exports, like their strict JSON form
+ */
+public class AnalysesDecoderTest {
+  private static final String[] LABELS = {"0-300", "300-500", "500-1000", "1000-2000", "2000-4000", "4000+"};
+  private static final String JSON = "[{\"language\":\"java\",\"rate_per_duration\":{\"0-300\":80,\"300-500\":12.5,"
+    + "\"500-1000\":4,\"1000-2000\":2.25,\"2000-4000\":1,\"4000+\":0.25}},"
+    + "{\"language\":\"kotlin\",\"rate_per_duration\":{\"0-300\":0.1,\"4000+\":99.9}}]";
+  private static final List<String> DECODED = Arrays.asList(
+    "java=[80.0, 12.5, 4.0, 2.25, 1.0, 0.25]",
+    "kotlin=[0.1, 0.0, 0.0, 0.0, 0.0, 99.9]");
+
+  @Test
+  public void decodesJson() {
+    assertEquals(DECODED, decode(JSON));
+    assertEquals(Arrays.asList(), decode("[]"));
+    assertEquals(Arrays.asList(), decode(" [ ] "));
+  }
+
+  @Test
+  public void decodesMapToString() {
+    Map<String, Object> java = new LinkedHashMap<>();
+    java.put("language", "java");
+    java.put("rate_per_duration", rates(80.0, 12.5, 4.0, 2.25, 1.0, 0.25));
+    Map<String, Object> kotlin = new LinkedHashMap<>();
+    kotlin.put("language", "kotlin");
+    Map<String, Double> kotlinRates = new LinkedHashMap<>();
+    kotlinRates.put("0-300", 0.1);
+    kotlinRates.put("4000+", 99.9);
+    kotlin.put("rate_per_duration", kotlinRates);
+
+    String field = Arrays.asList(java, kotlin).toString();
+    assertEquals("[{language=java, rate_per_duration={0-300=80.0, 300-500=12.5, 500-1000=4.0, 1000-2000=2.25, "
+      + "2000-4000=1.0, 4000+=0.25}}, {language=kotlin, rate_per_duration={0-300=0.1, 4000+=99.9}}]", field);
+    assertEquals(decode(JSON), decode(field));
+  }
+
+  @Test
+  public void decodesLenientJson() {
+    List<String> fields = Arrays.asList(
+      "[{language:java,rate_per_duration:{0-300:80,300-500:12.5,500-1000:4,1000-2000:2.25,2000-4000:1,4000+:0.25}},"
+        + "{language:kotlin,rate_per_duration:{0-300:0.1,4000+:99.9}}]",
+      "[{'language':'java','rate_per_duration':{'0-300':'80','300-500':'12.5','500-1000':'4','1000-2000':'2.25',"
+        + "'2000-4000':'1','4000+':'0.25'}},{'language':'kotlin','rate_per_duration':{'0-300':'0.1','4000+':'99.9'}}]",
+      " [ { \"language\" => \"java\" ,\n \"rate_per_duration\" = { \"0-300\" : 8e1 , \"300-500\" : 1.25E1 , "
+        + "\"500-1000\" : 4.0 , \"1000-2000\" : 2.250 , \"2000-4000\" : 1 , \"4000+\" : .25 } } ,\t"
+        + "{ \"language\" : \"kot\\u006cin\" , \"rate_per_duration\" : { \"0-300\" : 0.1 , \"4000+\" : 99.9 } } ] ",
+      "[{\"version\":{\"major\":[1,{\"a\":\"b\"}],\"minor\":{}},\"language\":\"java\",\"rate_per_duration\":{"
+        + "\"0-300\":80,\"300-500\":12.5,\"500-1000\":4,\"1000-2000\":2.25,\"2000-4000\":1,\"4000+\":0.25,"
+        + "\"unknown\":{\"x\":1},\"other\":7}},{\"language\":\"kotlin\",\"rate_per_duration\":{\"0-300\":0.1,"
+        + "\"4000+\":99.9},\"files\":[]}]");
+    for (String field : fields) {
+      assertEquals(field, decode(JSON), decode(field));
+    }
+  }
+
+  @Test
+  public void parsesNumbersLikeDouble() {
+    for (String number : Arrays.asList("0", "-0", "0.1", "0.3", "-2.5", "123456789012345", "1234567890123456789",
+      "0.000000000000001", "99.99999999999999", "1e-3", "4.9E-324", "1.7976931348623157E308")) {
+      double[] levels = {Double.parseDouble(number), 0, 0, 0, 0, 0};
+      assertEquals(number, Arrays.asList("java=" + Arrays.toString(levels)),
+        decode("[{language:java,rate_per_duration:{0-300:" + number + "}}]"));
+    }
+  }
+
+  @Test
+  public void internsLanguages() {
+    AnalysesDecoder decoder = new AnalysesDecoder(LABELS);
+    List<Integer> languages = new ArrayList<>();
+    decoder.decode(JSON, (language, levels) -> languages.add(language));
+    decoder.decode("[{language=kotlin}, {language=scala}, {language=java}]",
+      (language, levels) -> languages.add(language));
+    assertEquals(Arrays.asList(0, 1, 1, 2, 0), languages);
+    assertEquals(3, decoder.languageCount());
+    assertEquals("scala", decoder.language(2));
+    assertEquals(1, decoder.language("kotlin"));
+  }
+
+  @Test
+  public void rejectsMalformedFields() {
+    AnalysesDecoder decoder = new AnalysesDecoder(LABELS);
+    for (String field : Arrays.asList("", "{}", "[", "[{language:java}", "[{language:java}] x",
+      "[{rate_per_duration:{0-300:1}}]", "[{language:{}}]", "[{language java}]", "[{language:\"java}]",
+      "[{language:java,rate_per_duration:{0-300:fast}}]")) {
+      try {
+        decoder.decode(field, (language, levels) -> { });
+        fail(field);
+      } catch (IllegalArgumentException e) {
+        // expected
+      }
+    }
+    // still usable after an error
+    assertEquals(DECODED.subList(0, 1), decode(decoder, "[{language:java,rate_per_duration:{0-300:80,300-500:12.5,"
+      + "500-1000:4,1000-2000:2.25,2000-4000:1,4000+:0.25}}]"));
+  }
+
+  private static Map<String, Double> rates(double... rates) {
+    Map<String, Double> map = new LinkedHashMap<>();
+    for (int i = 0; i < rates.length; i++) {
+      map.put(LABELS[i], rates[i]);
+    }
+    return map;
+  }
+
+  private static List<String> decode(String field) {
+    return decode(new AnalysesDecoder(LABELS), field);
+  }
+
+  private static List<String> decode(AnalysesDecoder decoder, String field) {
+    List<String> entries = new ArrayList<>();
+    decoder.decode(field,
+      (language, levels) -> entries.add(decoder.language(language) + "=" + Arrays.toString(levels)));
+    return entries;
+  }
+}